@@ -0,0 +1,502 @@
+package uob.flexiweld.app;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+import uob.flexiweld.app.metrics.FrameTrace;
+import uob.flexiweld.app.metrics.Metrics;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Manages the connection to the camera. Frames are read continuously on a dedicated capture thread, and the most recent
+ * one is kept ready for the video feed to pick up via {@link Camera#pollFrame(Mat)}, so nothing on the EDT ever waits
+ * for the camera.
+ * <p></p>
+ * A watchdog keeps an eye on the capture thread. If the camera stops delivering frames (e.g. because the cable has been
+ * knocked), or reads keep failing, the connection is abandoned and the camera is reopened, waiting a little longer
+ * between each attempt until it comes back. A capture thread that is stuck inside OpenCV can't be interrupted, so
+ * instead its camera is released from under it and it is left behind, to exit if it ever gets unstuck.
+ * <p></p>
+ * Anything else that needs to touch the camera, such as changing or probing the {@link CameraMode}, is also done on
+ * the capture thread, between frames.
+ * @author Finin Quincey
+ */
+public class Camera {
+
+	/** The possible states of the camera connection. */
+	public enum Status {
+
+		STOPPED("Camera stopped"),
+		CONNECTING("Connecting to camera"),
+		RUNNING("Camera running"),
+		STALLED("Camera stalled"),
+		RECONNECTING("Reconnecting to camera");
+
+		private final String displayName;
+
+		Status(String displayName){
+			this.displayName = displayName;
+		}
+
+		/** Returns a readable description of this status, for display to the user. */
+		public String getDisplayName(){
+			return displayName;
+		}
+	}
+
+	/** If no frames arrive for this long while running, the camera is considered to have stalled. In milliseconds. */
+	private static final long STALL_TIMEOUT = 2000;
+	/** If opening the camera takes longer than this, the attempt is abandoned. In milliseconds. */
+	private static final long OPEN_TIMEOUT = 10000;
+	/** The number of failed reads in a row after which the camera is reopened. */
+	private static final int MAX_FAILED_READS = 10;
+	/** The time to wait before the first attempt to reopen the camera, in milliseconds. This doubles after every
+	 * failed attempt, up to {@link Camera#MAX_BACKOFF}. */
+	private static final long INITIAL_BACKOFF = 250;
+	/** The longest time to wait between attempts to reopen the camera, in milliseconds. */
+	private static final long MAX_BACKOFF = 8000;
+	/** The time between watchdog checks, in milliseconds. */
+	private static final long WATCHDOG_INTERVAL = 250;
+
+	/** The resolutions to try when probing the camera's modes, from smallest to largest. These cover the common webcam
+	 * resolutions and the Pi Camera v2's native modes. */
+	private static final int[][] PROBE_RESOLUTIONS = {{320, 240}, {640, 480}, {800, 600}, {1024, 768}, {1280, 720},
+			{1280, 960}, {1640, 922}, {1640, 1232}, {1920, 1080}};
+	/** The pixel formats to try when probing the camera's modes. */
+	private static final String[] PROBE_FORMATS = {"MJPG", "YUYV"};
+	/** The framerate asked for when probing each resolution; the camera will reply with the highest it can do. */
+	private static final double PROBE_FPS = 120;
+	/** Lower framerates offered for each resolution, as long as they are below the highest the camera can do. */
+	private static final double[] STANDARD_FPS = {15, 30};
+	/** The time allowed for each step of probing before the watchdog considers the camera stuck, in milliseconds. */
+	private static final long PROBE_STEP_TIMEOUT = 3000;
+
+	/** The camera number to open. */
+	private final int cameraNumber;
+	/** The mode to ask the camera for when it is (re)opened, or null to use the camera's default mode. */
+	@Nullable private volatile CameraMode requestedMode;
+	/** The mode the camera is actually in, as of when it was last opened or changed. */
+	private volatile CameraMode mode;
+
+	/** The current state of the camera connection. */
+	private volatile Status status = Status.STOPPED;
+	/** The number of attempts made to reopen the camera since it was last running. */
+	private volatile int reconnectAttempts;
+	/** The value of {@link System#nanoTime()} by which the capture thread should next have done something, after
+	 * which the watchdog considers it stuck. */
+	private volatile long activityDeadline;
+	/** The maximum framerate of the camera, defined by the hardware itself. */
+	private volatile double maxFps;
+	/** The dimensions of the images from the camera, as of when it was last opened. */
+	private volatile Size resolution;
+
+	/** The video capture the current capture thread is using, so it can be released if that thread gets stuck. */
+	@Nullable private volatile VideoCapture capture;
+
+	/** Jobs waiting to be run on the capture thread between frames. */
+	private final Queue<Task<?>> tasks = new ConcurrentLinkedQueue<>();
+	/** The job the capture thread is running at the moment, or null if it isn't running one. */
+	@Nullable private volatile Task<?> currentTask;
+
+	/** Incremented each time the capture thread is replaced, so each thread can tell when it's been abandoned. */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/** Guards the frame slot, {@link Camera#latestFrame}, {@link Camera#latestTrace} and {@link Camera#newFrame}. */
+	private final Object frameLock = new Object();
+	/** The most recent frame read from the camera. */
+	private Mat latestFrame = new Mat();
+	/** The trace for {@link Camera#latestFrame}. */
+	@Nullable private FrameTrace latestTrace;
+	/** The trace for the frame last returned by {@link Camera#pollFrame(Mat)}. Only used by the polling thread. */
+	@Nullable private FrameTrace polledTrace;
+	/** Whether {@link Camera#latestFrame} has been read from the camera since it was last picked up. */
+	private boolean newFrame;
+
+	/** Runs the watchdog checks while the camera is open. */
+	private ScheduledExecutorService watchdog;
+
+	/** A job to be run on the capture thread, along with the future that receives its result. */
+	private static final class Task<T> {
+
+		final Function<VideoCapture, T> job;
+		final CompletableFuture<T> result = new CompletableFuture<>();
+
+		Task(Function<VideoCapture, T> job){
+			this.job = job;
+		}
+
+		/** Runs the job, completing the future exceptionally if it throws rather than letting it kill the thread. */
+		void run(VideoCapture vc){
+			try{
+				result.complete(job.apply(vc));
+			}catch(RuntimeException e){
+				System.err.println("Error running camera task");
+				e.printStackTrace();
+				result.completeExceptionally(e);
+			}
+		}
+
+		/** Fails the job because it will never be run (or finish running), unless it has already completed. */
+		void fail(String reason){
+			result.completeExceptionally(new CancellationException(reason));
+		}
+	}
+
+	/**
+	 * Creates a new {@code Camera} for the camera with the given camera number. The camera is not opened until
+	 * {@link Camera#open()} is called.
+	 * @param cameraNumber The number of the camera to access
+	 * @param requestedMode The mode to ask the camera for, or null to use the camera's default mode
+	 */
+	public Camera(int cameraNumber, @Nullable CameraMode requestedMode){
+		this.cameraNumber = cameraNumber;
+		this.requestedMode = requestedMode;
+	}
+
+	/** Returns the current state of the camera connection. */
+	public Status getStatus(){
+		return status;
+	}
+
+	/** Returns the number of attempts made to reopen the camera since it was last running. */
+	public int getReconnectAttempts(){
+		return reconnectAttempts;
+	}
+
+	/** Returns the mode the camera is actually in, which may not be the mode that was asked for. */
+	public CameraMode getMode(){
+		return mode;
+	}
+
+	/** Returns the dimensions of the images from the camera, as of when it was last opened. */
+	public Size getResolution(){
+		return resolution;
+	}
+
+	/** Returns the maximum framerate of the camera, defined by the hardware itself. */
+	public double getMaxFps(){
+		return maxFps;
+	}
+
+	/**
+	 * Opens the camera on a new capture thread and waits for the first frame to arrive. This can take several seconds,
+	 * so it should not be called from the EDT.
+	 * @return True if the camera was opened and a frame was read successfully, false if the camera couldn't be opened
+	 * or didn't deliver a frame within {@link Camera#OPEN_TIMEOUT} milliseconds
+	 */
+	public boolean open(){
+
+		if(status != Status.STOPPED) throw new IllegalStateException("Camera already open!");
+
+		CompletableFuture<Boolean> opened = new CompletableFuture<>();
+		status = Status.CONNECTING;
+		startCaptureThread(opened);
+
+		boolean success;
+
+		try{
+			success = opened.get(OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException | ExecutionException | TimeoutException e){
+			System.err.println("Timed out waiting for the camera to open");
+			success = false;
+		}
+
+		if(!success){
+			close();
+			return false;
+		}
+
+		watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "Camera watchdog");
+			thread.setDaemon(true); // Don't stop the app from closing
+			return thread;
+		});
+		watchdog.scheduleWithFixedDelay(this::checkCaptureThread, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+
+		return true;
+	}
+
+	/** Closes the camera. The capture thread releases the camera and exits as soon as it can. */
+	public void close(){
+		generation.incrementAndGet(); // Tells the capture thread to stop
+		status = Status.STOPPED;
+		if(watchdog != null) watchdog.shutdownNow();
+		failTasks("Camera closed");
+	}
+
+	/**
+	 * Picks up the most recent frame from the camera, if a new one has arrived since this method was last called.
+	 * @param spare A matrix that is no longer needed, which will be reused to read a future frame into (this avoids
+	 *              allocating a new matrix for every frame). This is only taken if a new frame is returned.
+	 * @return The new frame, or null if no new frame has arrived (in which case {@code spare} is left alone)
+	 */
+	@Nullable
+	public Mat pollFrame(Mat spare){
+		synchronized(frameLock){
+			if(!newFrame) return null;
+			Mat frame = latestFrame;
+			latestFrame = spare;
+			polledTrace = latestTrace;
+			newFrame = false;
+			return frame;
+		}
+	}
+
+	/** Returns the {@link FrameTrace} for the frame last returned by {@link Camera#pollFrame(Mat)}, or null if no
+	 * frames have been returned yet. This should only be called from the thread that polls for frames. */
+	@Nullable
+	public FrameTrace getPolledTrace(){
+		return polledTrace;
+	}
+
+	/**
+	 * Asks the camera to switch to the given mode. The switch happens on the capture thread, and the new mode is also
+	 * used if the camera has to be reopened.
+	 * @param mode The mode to switch to
+	 * @return A {@link CompletableFuture} that completes with the mode the camera actually switched to (which may not
+	 * be quite what was asked for)
+	 */
+	public CompletableFuture<CameraMode> setMode(CameraMode mode){
+		requestedMode = mode;
+		return submit(vc -> {
+			mode.applyTo(vc);
+			this.mode = CameraMode.of(vc);
+			maxFps = this.mode.getFps();
+			return this.mode;
+		});
+	}
+
+	/**
+	 * Finds out which modes the camera supports, by asking for each of a list of common resolutions and pixel formats in
+	 * turn and seeing what the camera actually gives back. This takes a while (the camera has to restart for each one)
+	 * and the video will freeze in the meantime, so it should only be done when necessary. The camera is switched back
+	 * to its current mode afterwards.
+	 * @return A {@link CompletableFuture} that completes with a list of the supported modes, ordered by pixel count
+	 * and then framerate, from smallest to largest
+	 */
+	public CompletableFuture<List<CameraMode>> probeModes(){
+		return submit(this::probe);
+	}
+
+	/** Queues the given job to be run on the capture thread between frames, and returns a future for its result. The
+	 * future completes exceptionally if the job throws, or if the camera is closed or reopened before it finishes. */
+	private <T> CompletableFuture<T> submit(Function<VideoCapture, T> job){
+		Task<T> task = new Task<>(job);
+		tasks.add(task);
+		if(status == Status.STOPPED) task.fail("Camera closed"); // Might have missed the one in close()
+		return task.result;
+	}
+
+	/** Fails the job the capture thread is running, if any, and all the jobs waiting to be run. */
+	private void failTasks(String reason){
+		Task<?> current = currentTask;
+		if(current != null) current.fail(reason);
+		for(Task<?> task; (task = tasks.poll()) != null; ) task.fail(reason);
+	}
+
+	/** Tries out each of the probe resolutions and formats, and returns the modes the camera accepted. */
+	private List<CameraMode> probe(VideoCapture vc){
+
+		CameraMode original = CameraMode.of(vc);
+		Set<CameraMode> modes = new LinkedHashSet<>(); // Set because the camera will give the same answer many times
+
+		for(String format : PROBE_FORMATS){
+			for(int[] resolution : PROBE_RESOLUTIONS){
+
+				activityDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_STEP_TIMEOUT);
+
+				CameraMode mode = new CameraMode(resolution[0], resolution[1], PROBE_FPS, CameraMode.fourcc(format));
+				mode.applyTo(vc);
+				CameraMode actual = CameraMode.of(vc);
+
+				// If the camera didn't accept the resolution or format, it'll have picked something else
+				if(actual.getWidth() != resolution[0] || actual.getHeight() != resolution[1]
+						|| actual.getFourcc() != mode.getFourcc()) continue;
+
+				modes.add(actual);
+				for(double fps : STANDARD_FPS){
+					if(fps < actual.getFps()) modes.add(actual.withFps(fps));
+				}
+			}
+		}
+
+		activityDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_STEP_TIMEOUT);
+		original.applyTo(vc);
+
+		List<CameraMode> list = new ArrayList<>(modes);
+		list.sort(Comparator.comparingInt(CameraMode::getPixelCount).thenComparingDouble(CameraMode::getFps));
+		return list;
+	}
+
+	/** Starts a new capture thread for the current generation. */
+	private void startCaptureThread(@Nullable CompletableFuture<Boolean> opened){
+		int gen = generation.incrementAndGet();
+		activityDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPEN_TIMEOUT);
+		Thread thread = new Thread(() -> capture(gen, opened), "Camera capture");
+		thread.setDaemon(true); // Don't stop the app from closing
+		thread.start();
+	}
+
+	/**
+	 * Called regularly by the watchdog to check the capture thread is still doing something. If it isn't, it is
+	 * abandoned and a new one started in its place.
+	 */
+	private void checkCaptureThread(){
+		if(status != Status.STOPPED && System.nanoTime() - activityDeadline > 0){
+			System.err.println(String.format("%s, reopening", status == Status.RUNNING ? "Camera stalled" : "Camera not responding"));
+			status = Status.STALLED;
+			generation.incrementAndGet(); // Abandon the stuck thread first, so it can't reopen the camera after this
+			// Whatever it was doing will never finish, and anything waiting was asked of the camera as it was then
+			failTasks("Camera reopened");
+			// The stuck thread still has the camera open, and V4L2 won't let it be opened again until it's released
+			VideoCapture stuck = capture;
+			if(stuck != null) stuck.release();
+			startCaptureThread(null);
+		}
+	}
+
+	/**
+	 * The capture loop, run on the capture thread. Opens the camera (waiting beforehand if this is a reconnection),
+	 * then reads frames until it is told to stop or the reads keep failing, in which case it reopens the camera.
+	 * @param gen The generation this thread belongs to; when this no longer matches {@link Camera#generation}, the
+	 *            thread has been abandoned or the camera closed, so it should stop
+	 * @param opened Completed once the camera has been opened for the first time, or null if this is a reconnection
+	 */
+	private void capture(int gen, @Nullable CompletableFuture<Boolean> opened){
+
+		VideoCapture vc = new VideoCapture();
+		if(gen == generation.get()) capture = vc;
+		Mat frame = new Mat();
+		boolean reconnecting = opened == null;
+		long backoff = INITIAL_BACKOFF;
+		int failedReads = 0;
+
+		try{
+
+			while(gen == generation.get()){
+
+				if(!vc.isOpened()){
+
+					if(reconnecting){
+						setStatus(gen, Status.RECONNECTING);
+						reconnectAttempts++;
+						// The watchdog shouldn't think we're stuck while we're waiting
+						activityDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff + OPEN_TIMEOUT);
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff * 2, MAX_BACKOFF);
+						if(gen != generation.get()) break;
+					}
+
+					boolean connected = connect(vc, frame);
+
+					if(gen != generation.get()) break; // Abandoned while we were waiting for the camera to open
+
+					if(connected){
+						frame = publish(frame, new FrameTrace(vc.get(Videoio.CAP_PROP_POS_MSEC)));
+						reconnectAttempts = 0;
+						backoff = INITIAL_BACKOFF;
+						reconnecting = true; // From now on, any failure is a reconnection
+						setStatus(gen, Status.RUNNING);
+						if(opened != null) opened.complete(true);
+					}else{
+						vc.release();
+						// The first time round, let the app know straight away rather than trying again
+						if(opened != null && !opened.isDone()){
+							opened.complete(false);
+							break;
+						}
+					}
+
+					continue;
+				}
+
+				// Do any jobs that need the camera before reading the next frame
+				for(Task<?> task; gen == generation.get() && (task = tasks.poll()) != null; ){
+					currentTask = task;
+					task.run(vc);
+					if(gen == generation.get()) currentTask = null;
+				}
+
+				if(gen != generation.get()) break; // Abandoned while a task was running
+
+				boolean success = vc.read(frame);
+
+				if(gen != generation.get()) break; // Abandoned while we were waiting for the frame
+
+				if(success && !frame.empty()){
+					frame = publish(frame, new FrameTrace(vc.get(Videoio.CAP_PROP_POS_MSEC)));
+					failedReads = 0;
+				}else{
+					Metrics.CAMERA_READ_FAILURES.increment();
+					if(++failedReads >= MAX_FAILED_READS){
+						System.err.println("Camera reads keep failing, reopening");
+						vc.release();
+						failedReads = 0;
+					}
+				}
+			}
+
+		}catch(InterruptedException e){
+			// Just stop
+		}finally{
+			vc.release();
+		}
+	}
+
+	/** Sets the status, unless the given generation's capture thread has been abandoned (in which case it's not up to
+	 * that thread any more). */
+	private void setStatus(int gen, Status status){
+		if(gen == generation.get()) this.status = status;
+	}
+
+	/**
+	 * Opens the camera and reads a single frame into the given matrix.
+	 * @return True if the camera was opened and the frame was read successfully, false if not
+	 */
+	private boolean connect(VideoCapture vc, Mat frame){
+
+		try{
+			if(!vc.open(cameraNumber)) return false;
+		}catch(CvException e){
+			// Sometimes throws an exception if the camera is in use or otherwise inaccessible it seems
+			System.out.println("Failed to open video capture");
+			return false;
+		}
+
+		CameraMode requestedMode = this.requestedMode;
+		if(requestedMode != null) requestedMode.applyTo(vc);
+
+		// For some strange reason open can succeed when the camera is busy...
+		if(!vc.read(frame) || frame.empty()) return false;
+
+		mode = CameraMode.of(vc);
+		maxFps = vc.get(Videoio.CAP_PROP_FPS);
+		resolution = frame.size();
+		return true;
+	}
+
+	/**
+	 * Makes the given frame and its trace available to the video feed, and returns a spare matrix to read the next
+	 * frame into.
+	 */
+	private Mat publish(Mat frame, FrameTrace trace){
+		activityDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT);
+		Metrics.CAMERA_FRAMES_CAPTURED.increment();
+		synchronized(frameLock){
+			if(newFrame) Metrics.CAMERA_FRAMES_DROPPED.increment(); // The previous frame never got processed
+			Mat spare = latestFrame;
+			latestFrame = frame;
+			latestTrace = trace;
+			newFrame = true;
+			return spare;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package uob.flexiweld.app;
+
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.VideoWriter;
+import org.opencv.videoio.Videoio;
+
+import java.util.Objects;
+
+/**
+ * Describes a mode the camera can capture in: the resolution, framerate and pixel format. {@code CameraMode} objects
+ * are immutable.
+ * <p></p>
+ * The pixel format is given as a FOURCC code (e.g. {@code MJPG} for compressed frames, which allows higher framerates
+ * over USB, or {@code YUYV} for uncompressed frames, which don't need decoding). A FOURCC code of zero means whatever
+ * format the driver picks.
+ * @author Finin Quincey
+ */
+public final class CameraMode {
+
+	private final int width;
+	private final int height;
+	private final double fps;
+	private final int fourcc;
+
+	/**
+	 * Creates a new {@code CameraMode} with the given parameters.
+	 * @param width The width of the images, in pixels
+	 * @param height The height of the images, in pixels
+	 * @param fps The framerate, in frames per second, or zero for the driver's default
+	 * @param fourcc The FOURCC code of the pixel format, or zero for the driver's default
+	 */
+	public CameraMode(int width, int height, double fps, int fourcc){
+		this.width = width;
+		this.height = height;
+		this.fps = fps;
+		this.fourcc = fourcc;
+	}
+
+	/** Returns a new {@code CameraMode} describing the mode the given (open) video capture is currently in. */
+	static CameraMode of(VideoCapture vc){
+		return new CameraMode((int)vc.get(Videoio.CAP_PROP_FRAME_WIDTH), (int)vc.get(Videoio.CAP_PROP_FRAME_HEIGHT),
+				vc.get(Videoio.CAP_PROP_FPS), (int)vc.get(Videoio.CAP_PROP_FOURCC));
+	}
+
+	/** Asks the given (open) video capture to switch to this mode. The camera may not support it, in which case it will
+	 * pick whatever is nearest; use {@link CameraMode#of(VideoCapture)} afterwards to find out what it actually did. */
+	void applyTo(VideoCapture vc){
+		// Pixel format first, since it affects which resolutions and framerates are available
+		if(fourcc != 0) vc.set(Videoio.CAP_PROP_FOURCC, fourcc);
+		vc.set(Videoio.CAP_PROP_FRAME_WIDTH, width);
+		vc.set(Videoio.CAP_PROP_FRAME_HEIGHT, height);
+		if(fps > 0) vc.set(Videoio.CAP_PROP_FPS, fps);
+	}
+
+	/** Returns the FOURCC code for the given four-character string, e.g. {@code "MJPG"}. */
+	public static int fourcc(String code){
+		if(code.length() != 4) throw new IllegalArgumentException("FOURCC codes must be 4 characters long");
+		return VideoWriter.fourcc(code.charAt(0), code.charAt(1), code.charAt(2), code.charAt(3));
+	}
+
+	/** Returns the width of the images in this mode, in pixels. */
+	public int getWidth(){
+		return width;
+	}
+
+	/** Returns the height of the images in this mode, in pixels. */
+	public int getHeight(){
+		return height;
+	}
+
+	/** Returns the size of the images in this mode. */
+	public Size getResolution(){
+		return new Size(width, height);
+	}
+
+	/** Returns the number of pixels in each image in this mode. */
+	public int getPixelCount(){
+		return width * height;
+	}
+
+	/** Returns the framerate of this mode, in frames per second, or zero for the driver's default. */
+	public double getFps(){
+		return fps;
+	}
+
+	/** Returns the FOURCC code of the pixel format of this mode, or zero for the driver's default. */
+	public int getFourcc(){
+		return fourcc;
+	}
+
+	/** Returns the FOURCC code of the pixel format of this mode as a four-character string, or null if it is zero. */
+	public String getFourccName(){
+		if(fourcc == 0) return null;
+		return new String(new char[]{(char)(fourcc & 0xff), (char)(fourcc >> 8 & 0xff), (char)(fourcc >> 16 & 0xff),
+				(char)(fourcc >> 24 & 0xff)});
+	}
+
+	/** Returns a copy of this mode with the given framerate. */
+	public CameraMode withFps(double fps){
+		return new CameraMode(width, height, fps, fourcc);
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(this == o) return true;
+		if(!(o instanceof CameraMode)) return false;
+		CameraMode that = (CameraMode)o;
+		return width == that.width && height == that.height && Double.compare(that.fps, fps) == 0 && fourcc == that.fourcc;
+	}
+
+	@Override
+	public int hashCode(){
+		return Objects.hash(width, height, fps, fourcc);
+	}
+
+	@Override
+	public String toString(){
+		String s = width + "x" + height;
+		if(fps > 0) s += String.format(" @ %.0f fps", fps);
+		if(fourcc != 0) s += " (" + getFourccName() + ")";
+		return s;
+	}
+
+}
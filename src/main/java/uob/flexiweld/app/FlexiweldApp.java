@@ -1,9 +1,26 @@
 package uob.flexiweld.app;
 
+import com.sun.istack.internal.Nullable;
 import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import uob.flexiweld.app.export.CsvSink;
+import uob.flexiweld.app.export.MeasurementExporter;
+import uob.flexiweld.app.export.MeasurementLog;
+import uob.flexiweld.app.export.NdjsonSink;
+import uob.flexiweld.app.export.PreviewServer;
+import uob.flexiweld.app.export.SharedMemoryChannel;
+import uob.flexiweld.app.export.SnapshotQueue;
+import uob.flexiweld.app.export.TcpSink;
+import uob.flexiweld.app.metrics.Metrics;
+import uob.flexiweld.app.metrics.MetricsServer;
 import uob.flexiweld.app.mode.CaptureMode;
+import uob.flexiweld.app.mode.LiveMode;
 import uob.flexiweld.app.mode.MeasurementMode;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
 import uob.flexiweld.app.mode.StandbyMode;
+import uob.flexiweld.util.CalibrationProfile;
+import uob.flexiweld.util.CalibrationSettings;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -12,13 +29,21 @@ import java.awt.*;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Implements a simple user interface to control the prototype tube detection software, for demonstration and testing
@@ -33,6 +58,14 @@ public class FlexiweldApp {
 	 * the maximum framerate of the camera. */
 	public static final int FRAMERATE = 50;
 
+	/** The rate (in updates per second) at which the controls and status bar are updated from the capture mode's UI
+	 * state. This is much lower than the framerate since nobody can read a readout that changes 50 times a second. */
+	public static final int CONTROLS_UPDATE_RATE = 5;
+
+	/** The time (in milliseconds) the processing for each frame should take. If processing takes longer than this,
+	 * the {@link QualityGovernor} will reduce the processing quality to compensate. */
+	public static final double TARGET_FRAME_TIME = 60;
+
 	public static final Font BUTTON_FONT = 				new Font("Segoe UI Symbol", Font.PLAIN, 24);
 	public static final Font STATUS_BAR_FONT = 			new Font("Segoe UI Symbol", Font.PLAIN, 16);
 
@@ -48,6 +81,14 @@ public class FlexiweldApp {
 	public static final String WARNING_SYMBOL = 		"\u26a0 ";
 	public static final String CROSS_SYMBOL = 			"\u274c ";
 
+	/** The maximum number of measurement snapshots waiting to be exported. */
+	public static final int EXPORT_QUEUE_CAPACITY = 256;
+	/** The maximum number of measurement snapshots written to the export sinks at once. */
+	public static final int EXPORT_BATCH_SIZE = 32;
+
+	/** The default rate (in frames per second) at which frames are encoded for the remote preview. */
+	public static final double PREVIEW_FRAMERATE = 10;
+
 	public static final int STATUS_TEXT_SPACING = 30;
 	public static final int CONTROL_PANEL_WIDTH = 240;
 
@@ -56,8 +97,24 @@ public class FlexiweldApp {
 	/** The {@link JFileChooser} used to save and load files (images and calibration settings) from the app. */
 	public final JFileChooser fileChooser = new JFileChooser();
 
+	/** The {@link Session} object that remembers the state of the app between launches. */
+	private final Session session;
+
 	/** The {@link VideoFeed} object that controls the connection to the camera and the main processing sequence. */
 	private final VideoFeed videoFeed;
+	/** The server for viewing the video remotely, or null if there isn't one. */
+	@Nullable private PreviewServer previewServer;
+	/** Listeners for measurement results, which are moved onto each new {@link MeasurementMode} as it is set. */
+	private final List<Consumer<MeasurementSnapshot>> snapshotListeners = new ArrayList<>();
+	/** Whether the camera is currently being opened in the background. */
+	private boolean openingCamera;
+	/** The warm-up running in the background, or null if warm-up is disabled or the camera has been opened. */
+	@Nullable private CompletableFuture<WarmUp.Result> warmUp;
+	/** The result of the warm-up, to be shown in the status bar until the app has been in measurement mode. */
+	@Nullable private WarmUp.Result warmUpResult;
+	/** A warning about the session calibration not being used, to be shown in the status bar alongside the warm-up
+	 * result, or null if there isn't one. */
+	@Nullable private String calibrationWarning;
 
 	/** The capturing mode the application is currently in. */
 	private CaptureMode mode;
@@ -68,6 +125,8 @@ public class FlexiweldApp {
 	private final JFrame jFrame;
 	/** The {@link Timer} object used to update the UI at regular intervals. */
 	private final Timer timer;
+	/** The {@link Timer} object used to update the controls from the capture mode's UI state at regular intervals. */
+	private final Timer controlsTimer;
 
 	/** The {@link JPanel} object representing the control panel on the left of the app window. */
 	private JPanel controlPanel;
@@ -81,14 +140,20 @@ public class FlexiweldApp {
 	/** The {@link JPanel} object representing the space that can be filled by the video feed. The video will try to
 	 * fill as much of this space as possible. */
 	private JPanel videoPanel;
-	/** A {@link JLabel} that holds the video feed itself. This label's icon image is updated each frame to display the
-	 * video feed. */
-	private JLabel videoContainer;
+	/** A {@link VideoCanvas} that holds the video feed itself. This label's icon image is updated each frame to display
+	 * the video feed, and the annotations are drawn over the top. */
+	private VideoCanvas videoContainer;
 
 	// Initialisation
 
-	/** Creates a new instance of the Flexiweld demo app. */
-	public FlexiweldApp(){
+	/**
+	 * Creates a new instance of the Flexiweld demo app.
+	 * @param warmUp True to warm up the measurement pipeline on startup (see {@link WarmUp}), false to skip it
+	 * @param greyscale True to process frames in greyscale (see {@link VideoFeed#setGreyscale(boolean)})
+	 * @param headless True to run without showing the window, with the video feed headless (see
+	 *                 {@link VideoFeed#setHeadless(boolean)}), for when the results are only used elsewhere
+	 */
+	public FlexiweldApp(boolean warmUp, boolean greyscale, boolean headless){
 
 //		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
 
@@ -105,25 +170,49 @@ public class FlexiweldApp {
 			}
 		});
 
+		// Pick up where the last session left off
+		session = Session.load();
+
 		// Initialise the video feed object
-		videoFeed = new VideoFeed(0);
+		videoFeed = new VideoFeed(session.getCameraNumber(), TARGET_FRAME_TIME);
+		videoFeed.setRequestedMode(session.getCameraMode());
+		videoFeed.setAutoCameraMode(session.isAutoCameraMode());
+		videoFeed.setMirrored(session.getOption(LiveMode.MIRROR_OPTION, false));
+		videoFeed.setGreyscale(greyscale);
+		videoFeed.setHeadless(headless);
 
 		// Start in standby mode (allows the app to start even if the camera is in use)
 		mode = new StandbyMode();
 
+		// Get this going straight away so it's done by the time the camera opens
+		if(warmUp){
+			this.warmUp = WarmUp.start(videoFeed, session.getResolution());
+			this.warmUp.whenComplete((result, e) -> {
+				if(e != null) e.printStackTrace();
+				SwingUtilities.invokeLater(() -> onWarmedUp(result));
+			});
+		}
+
 		// Initialise the window contents
 		initPane(jFrame.getContentPane());
 
 		// Display the window
 		jFrame.pack();
 		jFrame.setSize(width, height);
-		jFrame.setVisible(true);
+		jFrame.setVisible(!headless);
 
 		// Set up and start the timer
 		timer = new Timer(1000/FRAMERATE, e -> this.update());
 		timer.setInitialDelay(50);
 		timer.start();
 
+		controlsTimer = new Timer(1000/CONTROLS_UPDATE_RATE, e -> mode.updateControls());
+		controlsTimer.start();
+
+		// If the camera worked last time, don't make the operator press start (it'll probably work this time too)
+		// Without the window there's no start button, so just try anyway
+		if(session.hasCamera() || headless) openCamera();
+
 	}
 
 	/** Populates the given pane with the contents of the app window. */
@@ -169,7 +258,7 @@ public class FlexiweldApp {
 
 		// Set up the button panel
 		buttonPanel = new JPanel();
-		buttonPanel.setLayout(new GridLayout(12, 1, 5, 5));
+		buttonPanel.setLayout(new GridLayout(13, 1, 5, 5)); // Enough rows for all the buttons in measurement mode
 		buttonPanel.setBackground(CONTROLS_BG_COLOUR);
 		buttonPanel.setPreferredSize(new Dimension(CONTROL_PANEL_WIDTH, 0)); // Height is irrelevant
 		buttonPanel.setBorder(BorderFactory.createLineBorder(CONTROLS_BG_COLOUR, 5));
@@ -186,7 +275,7 @@ public class FlexiweldApp {
 		videoPanel.setBackground(Color.DARK_GRAY);
 
 		// Set up the video container
-		videoContainer = new JLabel((ImageIcon)null); // Will be initialised later
+		videoContainer = new VideoCanvas(); // Icon will be initialised later
 		videoContainer.setVerticalTextPosition(SwingConstants.CENTER);
 		videoContainer.setFont(BUTTON_FONT);
 		videoContainer.setForeground(Color.WHITE);
@@ -207,6 +296,18 @@ public class FlexiweldApp {
 		// Use a list so modes can't modify the status bar itself
 		List<Component> components = new ArrayList<>();
 		mode.populateStatusBar(components);
+
+		if(warmUp != null){
+			addStatusText("Warming up...", components);
+		}else if(warmUpResult != null){
+			String text = String.format("%s (%.1f ms/frame after %d frames)", warmUpResult.isSteady() ? "Warmed up"
+					: "Warm-up incomplete", warmUpResult.getFrameTime(), warmUpResult.getFrames());
+			if(warmUpResult.isSteady()) addConfirmText(text, components);
+			else addWarningText(text, components);
+		}
+
+		if(calibrationWarning != null) addWarningText(calibrationWarning, components);
+
 		components.forEach(statusBar::add);
 	}
 
@@ -233,8 +334,51 @@ public class FlexiweldApp {
 		return videoFeed;
 	}
 
+	/** Returns the app's {@link Session} instance. */
+	public Session getSession(){
+		return session;
+	}
+
+	/**
+	 * Adds a listener to be notified of the results of every frame processed in measurement mode, however many times
+	 * the app goes in and out of it. Listeners are called on the processing thread, see
+	 * {@link MeasurementMode#addSnapshotListener(Consumer)}.
+	 */
+	public void addSnapshotListener(Consumer<MeasurementSnapshot> listener){
+		snapshotListeners.add(listener);
+		if(mode instanceof MeasurementMode) ((MeasurementMode)mode).addSnapshotListener(listener);
+	}
+
+	/**
+	 * Sets the server that the annotated video and results are sent to for remote viewing. Once this is set, closing
+	 * the window asks whether to exit or to keep running in the background so the video can still be viewed remotely.
+	 */
+	public void setPreviewServer(PreviewServer previewServer){
+		this.previewServer = previewServer;
+		addSnapshotListener(previewServer);
+		jFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+		jFrame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e){
+				onWindowClosing();
+			}
+		});
+	}
+
 	/** Sets the current capture mode for the application and updates the interface accordingly. */
 	public void setMode(CaptureMode mode){
+		if(mode instanceof MeasurementMode){
+			// Calibration and alignment always end up back in measurement mode, so this catches any changes to them
+			MeasurementMode measurementMode = (MeasurementMode)mode;
+			session.setCalibration(measurementMode.getCalibrationSettings(), measurementMode.getAlignmentMatrix(),
+					videoFeed.getCameraResolution());
+		}
+		// Only measurement mode produces results, but that might be a different instance each time
+		for(Consumer<MeasurementSnapshot> listener : snapshotListeners){
+			if(this.mode instanceof MeasurementMode) ((MeasurementMode)this.mode).removeSnapshotListener(listener);
+			if(mode instanceof MeasurementMode) ((MeasurementMode)mode).addSnapshotListener(listener);
+		}
+		this.mode.dispose();
 		this.mode = mode;
 		initStatusBar();
 		initButtonPanel();
@@ -242,25 +386,98 @@ public class FlexiweldApp {
 
 	/**
 	 * Starts or stops the video feed. If the video feed is running, stops the video feed, releases the camera and puts
-	 * the app into standby mode. If the video feed is not running, attempts to access the camera and puts the app into
-	 * measurement mode if successful, or displays an error message to the user if unsuccessful.
+	 * the app into standby mode. If the video feed is not running, starts opening the camera in the background (see
+	 * {@link FlexiweldApp#openCamera()}).
 	 */
 	public void toggleCamera(){
 		if(videoFeed.isRunning()){
 			videoFeed.stop();
 			setMode(new StandbyMode());
 		}else{
-			videoContainer.setText("Opening camera...");
-			if(videoFeed.start()){
-				videoFeed.fit(videoPanel.getSize().width, videoPanel.getSize().height);
-				setMode(new MeasurementMode());
-			}else{
-				initStatusBar();
-				List<Component> components = new ArrayList<>();
-				addErrorText("Unable to open camera", components);
-				components.forEach(statusBar::add);
+			openCamera();
+		}
+	}
+
+	/**
+	 * Attempts to access the camera and load the calibration settings from the session, both in the background and at
+	 * the same time, since each can take a while. When both are done (and the warm-up, if it's still running), puts the
+	 * app into measurement mode with the
+	 * calibration settings and alignment matrix from the session if the camera was opened successfully, or displays
+	 * an error message to the user if not.
+	 */
+	private void openCamera(){
+
+		if(openingCamera) return; // Already on it
+
+		openingCamera = true;
+		// Reading the alignment matrix is quick, so do that now while we're on the EDT
+		Mat alignmentMatrix = session.getAlignmentMatrix();
+
+		CompletableFuture<Boolean> camera = CompletableFuture.supplyAsync(videoFeed::start).exceptionally(e -> {
+			e.printStackTrace();
+			return false;
+		});
+		CompletableFuture<CalibrationProfile> calibration = CompletableFuture.supplyAsync(session::loadCalibrationProfile).exceptionally(e -> {
+			e.printStackTrace();
+			return null;
+		});
+		// Measurement mode shouldn't start processing frames while the warm-up is still using the CPU
+		CompletableFuture<?> warmedUp = warmUp == null ? CompletableFuture.completedFuture(null) : warmUp.exceptionally(e -> null);
+
+		CompletableFuture.allOf(camera, calibration, warmedUp).thenRun(() -> SwingUtilities.invokeLater(
+				() -> onCameraOpened(camera.join(), calibration.join(), alignmentMatrix)));
+	}
+
+	/** Called on the EDT once the warm-up has finished. */
+	private void onWarmedUp(@Nullable WarmUp.Result result){
+		if(warmUp == null) return; // Already dealt with
+		warmUp = null;
+		warmUpResult = result; // Shown in the status bar
+		initStatusBar();
+		statusBar.revalidate();
+	}
+
+	/** Called on the EDT once the camera has been opened (or failed to open) and the session calibration loaded. */
+	private void onCameraOpened(boolean opened, @Nullable CalibrationProfile profile, @Nullable Mat alignmentMatrix){
+
+		openingCamera = false;
+
+		// The warm-up has definitely finished by now, but its callback might not have been run yet
+		if(warmUp != null) onWarmedUp(warmUp.exceptionally(e -> null).join());
+
+		if(opened){
+
+			// The camera mode is only a request, so the camera may have opened at a different resolution to last time,
+			// in which case the calibration and alignment don't apply (this must be checked before the session is updated)
+			Size resolution = videoFeed.getCameraResolution();
+			Size sessionResolution = session.getResolution();
+			CalibrationSettings calibrationSettings = profile == null ? null : profile.getCalibrationSettings();
+
+			if((profile != null && !profile.isForResolution(resolution))
+					|| (alignmentMatrix != null && sessionResolution != null && !sessionResolution.equals(resolution))){
+				Size previous = profile != null ? profile.getResolution() : sessionResolution;
+				calibrationWarning = String.format("Calibration is for %dx%d, not %dx%d, please recalibrate",
+						(int)previous.width, (int)previous.height, (int)resolution.width, (int)resolution.height);
+				System.err.println(calibrationWarning);
+				calibrationSettings = null;
+				alignmentMatrix = null; // Setting measurement mode clears them from the session too
+			}
+
+			session.setCamera(videoFeed.getCameraNumber(), videoFeed.getCameraMode());
+			videoFeed.fit(videoPanel.getSize().width, videoPanel.getSize().height);
+			setMode(new MeasurementMode(calibrationSettings, alignmentMatrix));
+			warmUpResult = null; // It's been shown now
+			calibrationWarning = null;
+		}else{
+			initStatusBar();
+			List<Component> components = new ArrayList<>();
+			addErrorText("Unable to open camera", components);
+			components.forEach(statusBar::add);
+			if(jFrame.isVisible()){
 				JOptionPane.showMessageDialog(jFrame, "Cannot open camera, try closing other applications",
 						"Error", JOptionPane.ERROR_MESSAGE);
+			}else{
+				System.err.println("Cannot open camera, try closing other applications"); // Nobody to show it to
 			}
 		}
 	}
@@ -274,15 +491,83 @@ public class FlexiweldApp {
 		}
 	}
 
+	/** Called when the window is closed while the preview server is running, to ask whether to exit or to keep running
+	 * in the background. */
+	private void onWindowClosing(){
+
+		Object[] options = {"Keep running", "Exit"};
+		int choice = JOptionPane.showOptionDialog(jFrame, "Keep running in the background for the remote preview?",
+				"Close", JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+
+		if(choice == 1){
+			jFrame.dispose();
+			System.exit(0); // The shutdown hooks take care of the exporter and shared memory
+		}else if(choice == 0){
+			jFrame.setVisible(false);
+			if(!showTrayIcon()) System.out.println("Window hidden, stop the app with Ctrl+C or kill " + getProcessId());
+		}
+	}
+
+	/** Adds an icon to the system tray for bringing the window back or exiting, if the system supports it. Returns
+	 * false if it doesn't. */
+	private boolean showTrayIcon(){
+
+		URL logo = Thread.currentThread().getContextClassLoader().getResource("assets/images/logo.png");
+		if(!SystemTray.isSupported() || logo == null) return false;
+
+		SystemTray tray = SystemTray.getSystemTray();
+		TrayIcon trayIcon = new TrayIcon(Toolkit.getDefaultToolkit().getImage(logo), "Flexiweld Demo App");
+		trayIcon.setImageAutoSize(true);
+
+		PopupMenu menu = new PopupMenu();
+		MenuItem show = new MenuItem("Show window");
+		show.addActionListener(e -> SwingUtilities.invokeLater(() -> {
+			tray.remove(trayIcon);
+			jFrame.setVisible(true);
+		}));
+		menu.add(show);
+		MenuItem exit = new MenuItem("Exit");
+		exit.addActionListener(e -> System.exit(0));
+		menu.add(exit);
+		trayIcon.setPopupMenu(menu);
+
+		try{
+			tray.add(trayIcon);
+			return true;
+		}catch(AWTException e){
+			System.err.println("Unable to add system tray icon");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/** Returns this process's ID, for telling the operator how to stop the app. */
+	private static String getProcessId(){
+		String name = ManagementFactory.getRuntimeMXBean().getName(); // Java 8 has no direct way, but this is pid@host
+		return name.contains("@") ? name.substring(0, name.indexOf('@')) : name;
+	}
+
 	/** Called by the timer to update the window contents. */
 	private void update(){
 
+		// Only do the display stages if someone is going to see the result, either in the window or remotely
+		videoFeed.setHeadless(!jFrame.isVisible() && (previewServer == null || !previewServer.hasViewers()));
+
 		if(videoFeed.isRunning()){
-			videoContainer.setIcon(new ImageIcon(videoFeed.update(mode)));
-			videoContainer.setText(null);
+			Image image = videoFeed.update(mode);
+			if(image != null){
+				Overlay overlay = videoFeed.getOverlay(mode);
+				videoContainer.setIcon(new ImageIcon(image));
+				videoContainer.setOverlay(overlay);
+				videoContainer.setFrameTrace(videoFeed.getFrameTrace());
+				videoContainer.setText(null);
+				if(previewServer != null) previewServer.offerFrame(image, overlay);
+			}
 		}else{
 			videoContainer.setIcon(null);
-			videoContainer.setText("Press Start to start the live video feed");
+			videoContainer.setOverlay(null);
+			videoContainer.setFrameTrace(null);
+			videoContainer.setText(openingCamera ? "Opening camera..." : "Press Start to start the live video feed");
 		}
 
 		jFrame.repaint();
@@ -450,7 +735,230 @@ public class FlexiweldApp {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 		// Schedule a job for the event dispatch thread:
 		// creating and showing this application's GUI.
-		SwingUtilities.invokeLater(FlexiweldApp::new);
+		boolean warmUp = !Arrays.asList(args).contains("--no-warmup");
+		boolean greyscale = Arrays.asList(args).contains("--greyscale");
+		boolean headless = Arrays.asList(args).contains("--headless");
+		MeasurementExporter exporter = createExporter(args);
+		SharedMemoryChannel sharedMemory = createSharedMemoryChannel(args);
+		PreviewServer previewServer = createPreviewServer(args);
+		MetricsServer metricsServer = createMetricsServer(args);
+		SwingUtilities.invokeLater(() -> {
+			FlexiweldApp app = new FlexiweldApp(warmUp, greyscale, headless);
+			if(exporter != null) app.addSnapshotListener(exporter);
+			if(sharedMemory != null){
+				app.getVideoFeed().setSharedMemoryChannel(sharedMemory);
+				app.addSnapshotListener(sharedMemory);
+			}
+			if(previewServer != null) app.setPreviewServer(previewServer);
+			if(metricsServer != null) registerMetrics(app.getVideoFeed(), exporter, previewServer);
+		});
+	}
+
+	/** Adds gauges for the given objects' current state to {@link Metrics#REGISTRY}. The exporter and preview server
+	 * may be null, in which case their gauges are left out. */
+	private static void registerMetrics(VideoFeed videoFeed, @Nullable MeasurementExporter exporter,
+										@Nullable PreviewServer previewServer){
+
+		QualityGovernor governor = videoFeed.getQualityGovernor();
+
+		Metrics.REGISTRY.gauge(Metrics.PREFIX + "camera_fps", "Average rate at which new frames are processed.",
+				videoFeed::getFps);
+		Metrics.REGISTRY.gauge(Metrics.PREFIX + "quality_level", "Current processing quality level (0 is full quality).",
+				() -> governor.getLevel().ordinal());
+		Metrics.REGISTRY.gauge(Metrics.PREFIX + "average_frame_time_seconds",
+				"Moving average of the frame processing time used by the quality governor.",
+				() -> governor.getAverageFrameTime() / 1000);
+
+		if(exporter != null){
+			Metrics.REGISTRY.gauge(Metrics.PREFIX + "export_queue_depth",
+					"Number of snapshots waiting to be written to the export sinks.", exporter::getQueueDepth);
+			Metrics.REGISTRY.counter(Metrics.PREFIX + "export_dropped_total",
+					"Number of snapshots dropped because the export sinks couldn't keep up.", exporter::getDroppedCount);
+		}
+
+		if(previewServer != null){
+			Metrics.REGISTRY.gauge(Metrics.PREFIX + "preview_clients", "Number of clients watching the preview stream.",
+					previewServer::getStreamClientCount);
+		}
+	}
+
+	/**
+	 * Creates and starts a {@link MeasurementExporter} with the sinks given on the command line, or returns null if there
+	 * aren't any. The options are:
+	 * <ul>
+	 * <li>{@code --export-ndjson <file>} to append results to a newline-delimited JSON file</li>
+	 * <li>{@code --export-csv <file>} to append results to a CSV file</li>
+	 * <li>{@code --export-tcp <port>} to stream results to clients connecting to the given local port</li>
+	 * <li>{@code --log-dir <folder>} to keep a permanent binary log of results in the given folder (see
+	 * {@link MeasurementLog}); use {@code --export-backpressure block} as well so nothing is left out unless a sink stalls</li>
+	 * <li>{@code --export-backpressure <drop-oldest|block>} to choose what happens when the sinks can't keep up (the
+	 * default is {@code drop-oldest}, which never slows down the processing)</li>
+	 * </ul>
+	 * Sinks that can't be opened are reported and left out, rather than stopping the app from starting.
+	 */
+	@Nullable
+	private static MeasurementExporter createExporter(String[] args){
+
+		SnapshotQueue.Backpressure backpressure = SnapshotQueue.Backpressure.DROP_OLDEST;
+		String policy = getArgument(args, "--export-backpressure");
+		if(policy != null){
+			try{
+				backpressure = SnapshotQueue.Backpressure.parse(policy);
+			}catch(IllegalArgumentException e){
+				System.err.println("Unknown backpressure policy: " + policy + ", using " + backpressure);
+			}
+		}
+
+		MeasurementExporter exporter = new MeasurementExporter(EXPORT_QUEUE_CAPACITY, EXPORT_BATCH_SIZE, backpressure);
+
+		String ndjson = getArgument(args, "--export-ndjson");
+		String csv = getArgument(args, "--export-csv");
+		String tcp = getArgument(args, "--export-tcp");
+		String log = getArgument(args, "--log-dir");
+
+		if(ndjson != null){
+			try{
+				exporter.addSink(new NdjsonSink(Paths.get(ndjson)));
+			}catch(IOException e){
+				System.err.println("Unable to open NDJSON export file " + ndjson);
+				e.printStackTrace();
+			}
+		}
+
+		if(csv != null){
+			try{
+				exporter.addSink(new CsvSink(Paths.get(csv)));
+			}catch(IOException e){
+				System.err.println("Unable to open CSV export file " + csv);
+				e.printStackTrace();
+			}
+		}
+
+		if(tcp != null){
+			try{
+				exporter.addSink(new TcpSink(Integer.parseInt(tcp)));
+			}catch(IOException | NumberFormatException e){
+				System.err.println("Unable to open TCP export port " + tcp);
+				e.printStackTrace();
+			}
+		}
+
+		if(log != null){
+			try{
+				exporter.addSink(new MeasurementLog(Paths.get(log)));
+			}catch(IOException e){
+				System.err.println("Unable to open measurement log in " + log);
+				e.printStackTrace();
+			}
+		}
+
+		if(!exporter.hasSinks()) return null;
+
+		exporter.start();
+		// Write out whatever is still queued when the app is closed
+		Runtime.getRuntime().addShutdownHook(new Thread(exporter::close, "Measurement export shutdown"));
+		return exporter;
+	}
+
+	/**
+	 * Creates a {@link SharedMemoryChannel} in the file given by the {@code --shared-memory <file>} command line option,
+	 * or returns null if the option isn't there or the file can't be opened. The file should be on a RAM-backed file
+	 * system such as {@code /dev/shm}, otherwise every frame gets written to the storage device.
+	 */
+	@Nullable
+	private static SharedMemoryChannel createSharedMemoryChannel(String[] args){
+
+		String file = getArgument(args, "--shared-memory");
+		if(file == null) return null;
+
+		SharedMemoryChannel sharedMemory;
+
+		try{
+			sharedMemory = new SharedMemoryChannel(Paths.get(file), SharedMemoryChannel.DEFAULT_FRAME_CAPACITY);
+		}catch(IOException e){
+			System.err.println("Unable to open shared memory file " + file);
+			e.printStackTrace();
+			return null;
+		}
+
+		// Let readers know we've gone when the app is closed
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try{
+				sharedMemory.close();
+			}catch(IOException e){
+				System.err.println("Error closing shared memory file " + file);
+				e.printStackTrace();
+			}
+		}, "Shared memory shutdown"));
+
+		return sharedMemory;
+	}
+
+	/**
+	 * Creates and starts a {@link PreviewServer} on the port given by the {@code --preview-port <port>} command line
+	 * option, encoding frames at the rate given by {@code --preview-fps <fps>} (10 by default), or returns null if
+	 * there is no port option or the server can't be started. The server only listens on the loopback interface,
+	 * unless a different address is given with {@code --preview-bind <address>} (e.g. {@code 0.0.0.0} for all of them);
+	 * it has no authentication, so only do that on a trusted network.
+	 */
+	@Nullable
+	private static PreviewServer createPreviewServer(String[] args){
+
+		String port = getArgument(args, "--preview-port");
+		if(port == null) return null;
+
+		String fps = getArgument(args, "--preview-fps");
+		String bind = getArgument(args, "--preview-bind");
+
+		try{
+			InetAddress address = bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+			PreviewServer server = new PreviewServer(address, Integer.parseInt(port),
+					fps == null ? PREVIEW_FRAMERATE : Double.parseDouble(fps));
+			server.start();
+			System.out.println("Preview server running on " + address.getHostAddress() + " port " + port);
+			return server;
+		}catch(IOException | NumberFormatException e){
+			System.err.println("Unable to start preview server on port " + port);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Creates and starts a {@link MetricsServer} on the port given by the {@code --metrics-port <port>} command line
+	 * option, or returns null if there is no such option or the server can't be started. As with the preview server,
+	 * it only listens on the loopback interface unless a different address is given with
+	 * {@code --metrics-bind <address>} (e.g. {@code 0.0.0.0} so the metrics can be scraped from elsewhere).
+	 */
+	@Nullable
+	private static MetricsServer createMetricsServer(String[] args){
+
+		String port = getArgument(args, "--metrics-port");
+		if(port == null) return null;
+
+		String bind = getArgument(args, "--metrics-bind");
+
+		try{
+			InetAddress address = bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+			MetricsServer server = new MetricsServer(address, Integer.parseInt(port), Metrics.REGISTRY);
+			server.start();
+			System.out.println("Metrics available on " + address.getHostAddress() + " port " + port + " at /metrics");
+			return server;
+		}catch(IOException | NumberFormatException e){
+			System.err.println("Unable to start metrics server on port " + port);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** Returns the value following the given option in the given command line arguments, or null if the option isn't
+	 * there. */
+	@Nullable
+	private static String getArgument(String[] args, String option){
+		for(int i = 0; i < args.length - 1; i++){
+			if(args[i].equals(option)) return args[i + 1];
+		}
+		return null;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+package uob.flexiweld.app;
+
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import uob.flexiweld.geom.Line;
+import uob.flexiweld.util.Utils;
+
+import java.awt.*;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A display list of annotations to be drawn over the top of the video feed. Capture modes add lines, text and so on to
+ * an {@code Overlay} in {@link uob.flexiweld.app.mode.CaptureMode#drawOverlay(VideoFeed, Overlay)}, and the overlay
+ * is then rendered with Java2D on top of the video image when the window is painted.
+ * <p></p>
+ * Keeping the annotations separate from the video image means they don't need to be drawn into the image with OpenCV
+ * every frame: the overlay is only rebuilt when the annotations actually change, and the same overlay can be painted
+ * as many times as necessary in the meantime. It also means the video image itself is never drawn on.
+ * <p></p>
+ * All coordinates are in the output (screen) coordinate space, i.e. after {@link VideoFeed#transformForDisplay(Point)}.
+ * @author Finin Quincey
+ */
+public class Overlay {
+
+	/** The font used for text labels, roughly the same size as the OpenCV font the labels used to be drawn with. */
+	private static final Font LABEL_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 20);
+
+	/** The colours used for each row of a checkerboard, the same as {@code Calib3d.drawChessboardCorners} uses. */
+	private static final Color[] CHECKERBOARD_COLOURS = {
+			new Color(255, 0, 0), new Color(255, 128, 0), new Color(200, 200, 0), new Color(0, 255, 0),
+			new Color(0, 200, 200), new Color(0, 0, 255), new Color(255, 0, 255)
+	};
+	/** The radius of the circles drawn around each checkerboard corner, in pixels. */
+	private static final int CORNER_RADIUS = 4;
+
+	/** The elements of this overlay, in the order they are drawn. */
+	private final List<Consumer<Graphics2D>> elements = new ArrayList<>();
+
+	/** Returns true if nothing has been added to this overlay. */
+	public boolean isEmpty(){
+		return elements.isEmpty();
+	}
+
+	/**
+	 * Adds a straight line to this overlay.
+	 * @param start The start point of the line
+	 * @param end The end point of the line
+	 * @param colour The colour of the line, as a BGR {@link Scalar} (the same as for OpenCV drawing methods)
+	 * @param thickness The thickness of the line, in pixels
+	 */
+	public void line(Point start, Point end, Scalar colour, int thickness){
+		Color c = Utils.toColor(colour);
+		Stroke stroke = createStroke(thickness);
+		Line2D shape = new Line2D.Double(start.x, start.y, end.x, end.y);
+		elements.add(g -> draw(g, shape, c, stroke));
+	}
+
+	/**
+	 * Adds a straight line to this overlay.
+	 * @param line The line to add
+	 * @param colour The colour of the line, as a BGR {@link Scalar} (the same as for OpenCV drawing methods)
+	 * @param thickness The thickness of the line, in pixels
+	 */
+	public void line(Line line, Scalar colour, int thickness){
+		line(line.getStart(), line.getEnd(), colour, thickness);
+	}
+
+	/**
+	 * Adds a text label to this overlay.
+	 * @param text The text to display
+	 * @param position The position of the bottom-left corner of the text (on the baseline)
+	 * @param colour The colour of the text, as a BGR {@link Scalar} (the same as for OpenCV drawing methods)
+	 */
+	public void text(String text, Point position, Scalar colour){
+		Color c = Utils.toColor(colour);
+		float x = (float)position.x;
+		float y = (float)position.y;
+		elements.add(g -> {
+			g.setColor(c);
+			g.setFont(LABEL_FONT);
+			g.drawString(text, x, y);
+		});
+	}
+
+	/**
+	 * Adds a cross-shaped marker to this overlay.
+	 * @param position The centre of the marker
+	 * @param colour The colour of the marker, as a BGR {@link Scalar} (the same as for OpenCV drawing methods)
+	 * @param size The width and height of the marker, in pixels
+	 * @param thickness The thickness of the lines, in pixels
+	 */
+	public void marker(Point position, Scalar colour, int size, int thickness){
+		Color c = Utils.toColor(colour);
+		Stroke stroke = createStroke(thickness);
+		double r = size / 2d;
+		Path2D shape = new Path2D.Double();
+		shape.moveTo(position.x - r, position.y);
+		shape.lineTo(position.x + r, position.y);
+		shape.moveTo(position.x, position.y - r);
+		shape.lineTo(position.x, position.y + r);
+		elements.add(g -> draw(g, shape, c, stroke));
+	}
+
+	/**
+	 * Adds an elliptical arc to this overlay. Angles follow the OpenCV convention, i.e. they are measured clockwise
+	 * from the x-axis, since the y-axis points down.
+	 * @param centre The centre of the ellipse
+	 * @param axes The half-width and half-height of the ellipse
+	 * @param startAngle The start angle of the arc, in degrees
+	 * @param endAngle The end angle of the arc, in degrees
+	 * @param colour The colour of the arc, as a BGR {@link Scalar} (the same as for OpenCV drawing methods)
+	 * @param thickness The thickness of the arc, in pixels
+	 */
+	public void arc(Point centre, Size axes, double startAngle, double endAngle, Scalar colour, int thickness){
+		Color c = Utils.toColor(colour);
+		Stroke stroke = createStroke(thickness);
+		// Java2D measures angles anticlockwise on screen, so they need negating
+		Arc2D shape = new Arc2D.Double(centre.x - axes.width, centre.y - axes.height, axes.width * 2, axes.height * 2,
+				-startAngle, startAngle - endAngle, Arc2D.OPEN);
+		elements.add(g -> draw(g, shape, c, stroke));
+	}
+
+	/**
+	 * Adds a detected checkerboard to this overlay, drawn in the same style as {@code Calib3d.drawChessboardCorners}:
+	 * each corner is circled and joined to the next, with each row in a different colour.
+	 * @param corners The corners of the checkerboard, in the order returned by the checkerboard detector
+	 * @param patternSize The number of inner corners per row and column
+	 */
+	public void checkerboard(Point[] corners, Size patternSize){
+
+		int columns = (int)patternSize.width;
+		Stroke stroke = createStroke(1);
+
+		for(int i = 0; i < corners.length; i++){
+
+			Color c = CHECKERBOARD_COLOURS[(i / columns) % CHECKERBOARD_COLOURS.length];
+			Point p = corners[i];
+
+			Path2D shape = new Path2D.Double();
+			shape.append(new Ellipse2D.Double(p.x - CORNER_RADIUS, p.y - CORNER_RADIUS, CORNER_RADIUS * 2, CORNER_RADIUS * 2), false);
+			shape.moveTo(p.x - CORNER_RADIUS, p.y - CORNER_RADIUS);
+			shape.lineTo(p.x + CORNER_RADIUS, p.y + CORNER_RADIUS);
+			shape.moveTo(p.x - CORNER_RADIUS, p.y + CORNER_RADIUS);
+			shape.lineTo(p.x + CORNER_RADIUS, p.y - CORNER_RADIUS);
+			// Join each corner to the previous one, including from the end of one row to the start of the next
+			if(i > 0){
+				shape.moveTo(corners[i - 1].x, corners[i - 1].y);
+				shape.lineTo(p.x, p.y);
+			}
+
+			elements.add(g -> draw(g, shape, c, stroke));
+		}
+	}
+
+	/**
+	 * Draws this overlay using the given graphics object. The graphics object should already be translated so that
+	 * the origin is at the top-left corner of the video image.
+	 * @param g The graphics object to draw with
+	 */
+	public void render(Graphics2D g){
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		for(Consumer<Graphics2D> element : elements) element.accept(g);
+	}
+
+	private static Stroke createStroke(int thickness){
+		return new BasicStroke(thickness, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+	}
+
+	private static void draw(Graphics2D g, Shape shape, Color colour, Stroke stroke){
+		g.setColor(colour);
+		g.setStroke(stroke);
+		g.draw(shape);
+	}
+
+}
@@ -0,0 +1,177 @@
+package uob.flexiweld.app;
+
+import uob.flexiweld.geom.LineTracker;
+
+/**
+ * A {@code QualityGovernor} watches how long each frame takes to process and adjusts the quality of the processing to
+ * keep the frame time within a target budget. When frames take too long (for example if the Raspberry Pi starts to
+ * throttle because it's getting hot), the quality level is reduced, and when there is plenty of time to spare it is
+ * gradually increased again.
+ * <p></p>
+ * The governor itself doesn't change anything; capture modes read the current {@link Level} each frame and apply it
+ * to whatever they are doing, e.g. via {@link Level#apply(LineTracker)}.
+ * @author Finin Quincey
+ */
+public class QualityGovernor {
+
+	/**
+	 * The quality levels the governor can choose from, ordered from highest to lowest quality. Each level defines a
+	 * set of processing parameters for the line tracker.
+	 */
+	public enum Level {
+
+		//			Scale	Frames	Hough	Rescan
+		FULL(		1,		5,		40,		1),
+		HIGH(		0.75,	5,		40,		1),
+		MEDIUM(		0.5,	4,		45,		2),
+		LOW(		0.5,	3,		50,		4),
+		MINIMAL(	0.35,	2,		60,		8);
+
+		/** The factor by which frames are scaled before line detection. */
+		public final double processingScale;
+		/** The number of frames the line tracker averages over. */
+		public final int interpFrames;
+		/** The Hough transform threshold (at full resolution). */
+		public final int houghThreshold;
+		/** The number of frames between full-frame rescans for lines. */
+		public final int rescanInterval;
+
+		Level(double processingScale, int interpFrames, int houghThreshold, int rescanInterval){
+			this.processingScale = processingScale;
+			this.interpFrames = interpFrames;
+			this.houghThreshold = houghThreshold;
+			this.rescanInterval = rescanInterval;
+		}
+
+		/** Applies the parameters for this quality level to the given {@link LineTracker}. */
+		public void apply(LineTracker lineTracker){
+			lineTracker.processingScale(processingScale)
+					.interpFrames(interpFrames)
+					.houghThreshold(houghThreshold)
+					.rescanInterval(rescanInterval);
+		}
+
+		/** Returns a readable name for this quality level, for display in the status bar. */
+		public String getDisplayName(){
+			return name().charAt(0) + name().substring(1).toLowerCase();
+		}
+	}
+
+	/** The weighting given to each new frame time in the exponential moving average. */
+	private static final double SMOOTHING = 0.1;
+	/** The quality is reduced when the average frame time goes above this fraction of the target. */
+	private static final double DEGRADE_THRESHOLD = 1.1;
+	/** The quality is increased when the average frame time stays below this fraction of the target. */
+	private static final double IMPROVE_THRESHOLD = 0.6;
+	/** The number of frames to wait after changing the quality level before considering another change. This gives
+	 * the moving average time to settle at the new level. */
+	private static final int SETTLE_FRAMES = 15;
+	/** The number of consecutive frames the average frame time must stay under the improve threshold before the
+	 * quality is increased. Much longer than {@link QualityGovernor#SETTLE_FRAMES} so the level doesn't oscillate. */
+	private static final int IMPROVE_FRAMES = 100;
+
+	/** The target time to process each frame, in milliseconds. */
+	private final double targetFrameTime;
+
+	/** The current quality level. Volatile because it is also read by the metrics server. */
+	private volatile Level level = Level.FULL;
+	/** Whether the governor is allowed to change the quality level. */
+	private boolean enabled = true;
+
+	/** The exponential moving average of the frame time, in milliseconds. Volatile because it is also read by the
+	 * metrics server. */
+	private volatile double averageFrameTime;
+	/** The number of frames since the quality level was last changed. */
+	private int framesSinceChange;
+	/** The number of consecutive frames for which the average frame time has been under the improve threshold. */
+	private int framesUnderBudget;
+	/** Whether the quality is already at the lowest level and frames are still taking too long. */
+	private boolean exhausted;
+
+	/**
+	 * Creates a new {@code QualityGovernor} with the given target frame time.
+	 * @param targetFrameTime The time the governor will aim to process each frame within, in milliseconds
+	 */
+	public QualityGovernor(double targetFrameTime){
+		this.targetFrameTime = targetFrameTime;
+		this.averageFrameTime = targetFrameTime * IMPROVE_THRESHOLD; // Start off assuming everything is fine
+	}
+
+	/** Returns the current quality level. */
+	public Level getLevel(){
+		return level;
+	}
+
+	/** Returns the target frame time, in milliseconds. */
+	public double getTargetFrameTime(){
+		return targetFrameTime;
+	}
+
+	/** Returns the current moving average of the frame time, in milliseconds. */
+	public double getAverageFrameTime(){
+		return averageFrameTime;
+	}
+
+	/** Sets whether the governor is allowed to change the quality level. Disabling the governor resets the quality
+	 * level to {@link Level#FULL}. */
+	public void setEnabled(boolean enabled){
+		this.enabled = enabled;
+		if(!enabled) setLevel(Level.FULL);
+	}
+
+	/** Returns whether the governor is allowed to change the quality level. */
+	public boolean isEnabled(){
+		return enabled;
+	}
+
+	/** Returns true if the quality is already at the lowest level and frames are still taking too long, meaning the
+	 * only way to speed things up further is to give the processing less to do (e.g. a lower camera resolution). */
+	public boolean isExhausted(){
+		return exhausted;
+	}
+
+	/** Tells the governor that the amount of work per frame has changed for some other reason (e.g. the camera
+	 * resolution has changed), so it should wait for the frame time to settle before making any more changes. */
+	public void settle(){
+		framesSinceChange = 0;
+		framesUnderBudget = 0;
+		exhausted = false;
+	}
+
+	/**
+	 * Records the time taken to process a frame and updates the quality level if necessary. Should be called once
+	 * per frame, after all processing for that frame is complete.
+	 * @param milliseconds The time taken to process the frame, in milliseconds
+	 */
+	public void recordFrameTime(double milliseconds){
+
+		averageFrameTime += SMOOTHING * (milliseconds - averageFrameTime);
+
+		if(!enabled) return;
+
+		if(++framesSinceChange < SETTLE_FRAMES) return; // Give it time to settle
+
+		if(averageFrameTime > targetFrameTime * DEGRADE_THRESHOLD){
+			// Too slow, drop the quality straight away
+			if(level.ordinal() < Level.values().length - 1) setLevel(Level.values()[level.ordinal() + 1]);
+			else exhausted = true; // Nothing more we can do
+
+		}else if(averageFrameTime < targetFrameTime * IMPROVE_THRESHOLD){
+			// Plenty of time to spare, but only increase the quality once we're sure it's going to stay that way
+			if(++framesUnderBudget >= IMPROVE_FRAMES && level.ordinal() > 0){
+				setLevel(Level.values()[level.ordinal() - 1]);
+			}
+
+		}else{
+			framesUnderBudget = 0;
+			exhausted = false;
+		}
+	}
+
+	/** Sets the current quality level and resets the counters. */
+	private void setLevel(Level level){
+		this.level = level;
+		settle();
+	}
+
+}
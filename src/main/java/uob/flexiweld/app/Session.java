@@ -0,0 +1,275 @@
+package uob.flexiweld.app;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import uob.flexiweld.util.CalibrationProfile;
+import uob.flexiweld.util.CalibrationSettings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers the state of the app between launches, so that it can pick up where it left off after a restart: which
+ * camera was used and in what mode, the calibration settings and alignment matrix, and the display options.
+ * <p></p>
+ * The session is stored in the {@code .flexiweld} folder in the user's home directory. Simple values are kept in a
+ * properties file, and the calibration settings are kept in a {@link CalibrationProfile} (which includes the
+ * undistortion maps, so they don't need to be recalculated on startup). Changes are saved straight away on a
+ * background thread, since the app is normally stopped by switching the power off rather than by closing the window.
+ * Each file is written to a temporary file first and then moved into place, so a power cut while saving leaves the
+ * previous version intact.
+ * @author Finin Quincey
+ */
+public class Session {
+
+	/** The folder the session files are kept in. */
+	private static final Path DIRECTORY = Paths.get(System.getProperty("user.home"), ".flexiweld");
+	/** The file that simple session values are stored in. */
+	private static final Path PROPERTIES_FILE = DIRECTORY.resolve("session.properties");
+	/** The file that the calibration profile is stored in. */
+	private static final Path PROFILE_FILE = DIRECTORY.resolve("session.clb");
+
+	private static final String KEY_CAMERA_NUMBER = "camera.number";
+	private static final String KEY_CAMERA_WIDTH = "camera.width";
+	private static final String KEY_CAMERA_HEIGHT = "camera.height";
+	private static final String KEY_CAMERA_FPS = "camera.fps";
+	private static final String KEY_CAMERA_FOURCC = "camera.fourcc";
+	private static final String KEY_CAMERA_AUTO = "camera.auto";
+	private static final String KEY_CALIBRATED = "calibrated";
+	private static final String KEY_ALIGNMENT = "alignment";
+	/** Prefix for the keys of display options, see {@link Session#getOption(String, boolean)}. */
+	private static final String OPTION_PREFIX = "display.";
+
+	/** The session values. Only accessed from the EDT; a copy is handed to the save thread each time. */
+	private final Properties properties;
+
+	/** The calibration settings most recently saved, so the profile isn't saved again if they haven't changed. */
+	private CalibrationSettings savedSettings;
+
+	/** The single background thread that session files are saved on, which keeps saves in order. */
+	private final ExecutorService saveExecutor;
+
+	private Session(Properties properties){
+		this.properties = properties;
+		saveExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Session saving");
+			thread.setDaemon(true); // Don't stop the app from closing
+			return thread;
+		});
+	}
+
+	/**
+	 * Reads the session from the previous launch, or starts a new session if there isn't one (or it can't be read).
+	 * @return The resulting {@code Session} object
+	 */
+	public static Session load(){
+
+		Properties properties = new Properties();
+
+		if(Files.exists(PROPERTIES_FILE)){
+			// Try-with-resources block automatically closes the file when done or if an exception is thrown
+			try(InputStream stream = Files.newInputStream(PROPERTIES_FILE)){
+				properties.load(stream);
+			}catch(IOException | IllegalArgumentException e){
+				System.err.println(String.format("Unable to read session file %s, starting a new session", PROPERTIES_FILE));
+				properties.clear();
+			}
+		}
+
+		return new Session(properties);
+	}
+
+	/** Returns true if a camera has been opened successfully in a previous session, meaning it's worth trying to open
+	 * it again straight away on startup. */
+	public boolean hasCamera(){
+		return properties.containsKey(KEY_CAMERA_NUMBER);
+	}
+
+	/** Returns the number of the camera used in the previous session, or 0 if there wasn't one. */
+	public int getCameraNumber(){
+		return getInt(KEY_CAMERA_NUMBER, 0);
+	}
+
+	/** Returns the camera resolution used in the previous session, or null if there wasn't one. */
+	@Nullable
+	public Size getResolution(){
+		int width = getInt(KEY_CAMERA_WIDTH, 0);
+		int height = getInt(KEY_CAMERA_HEIGHT, 0);
+		return width > 0 && height > 0 ? new Size(width, height) : null;
+	}
+
+	/** Returns the camera mode used in the previous session, or null if there wasn't one. */
+	@Nullable
+	public CameraMode getCameraMode(){
+		Size resolution = getResolution();
+		if(resolution == null) return null;
+		double fps;
+		try{
+			fps = Double.parseDouble(properties.getProperty(KEY_CAMERA_FPS, "0"));
+		}catch(NumberFormatException e){
+			fps = 0;
+		}
+		return new CameraMode((int)resolution.width, (int)resolution.height, fps, getInt(KEY_CAMERA_FOURCC, 0));
+	}
+
+	/** Records the camera that was opened and the mode it is in, and saves the session. */
+	public void setCamera(int cameraNumber, CameraMode mode){
+		properties.setProperty(KEY_CAMERA_NUMBER, String.valueOf(cameraNumber));
+		properties.setProperty(KEY_CAMERA_WIDTH, String.valueOf(mode.getWidth()));
+		properties.setProperty(KEY_CAMERA_HEIGHT, String.valueOf(mode.getHeight()));
+		properties.setProperty(KEY_CAMERA_FPS, String.valueOf(mode.getFps()));
+		properties.setProperty(KEY_CAMERA_FOURCC, String.valueOf(mode.getFourcc()));
+		save();
+	}
+
+	/** Returns whether the camera mode may be changed automatically (see {@link VideoFeed#setAutoCameraMode(boolean)}).
+	 * This is true unless the user has chosen a camera mode themselves. */
+	public boolean isAutoCameraMode(){
+		return Boolean.parseBoolean(properties.getProperty(KEY_CAMERA_AUTO, "true"));
+	}
+
+	/** Sets whether the camera mode may be changed automatically, and saves the session. */
+	public void setAutoCameraMode(boolean auto){
+		properties.setProperty(KEY_CAMERA_AUTO, String.valueOf(auto));
+		save();
+	}
+
+	/**
+	 * Returns the value of the display option with the given name, or the given default if it hasn't been set.
+	 * @param name The name of the option (this is not shown to the user, it just identifies the option)
+	 * @param defaultValue The value to return if the option hasn't been set
+	 */
+	public boolean getOption(String name, boolean defaultValue){
+		String value = properties.getProperty(OPTION_PREFIX + name);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/** Sets the value of the display option with the given name and saves the session. */
+	public void setOption(String name, boolean value){
+		properties.setProperty(OPTION_PREFIX + name, String.valueOf(value));
+		save();
+	}
+
+	/** Returns the alignment matrix from the previous session, or null if there wasn't one. */
+	@Nullable
+	public Mat getAlignmentMatrix(){
+
+		String value = properties.getProperty(KEY_ALIGNMENT);
+		if(value == null) return null;
+
+		try{
+			double[] values = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+			if(values.length != 9) return null;
+			Mat alignmentMatrix = new Mat(3, 3, CvType.CV_64F);
+			alignmentMatrix.put(0, 0, values);
+			return alignmentMatrix;
+		}catch(NumberFormatException e){
+			System.err.println("Invalid alignment matrix in session file, ignoring it");
+			return null;
+		}
+	}
+
+	/**
+	 * Loads the calibration profile from the previous session. This reads the profile from disk, so it should not be
+	 * called from the EDT. The profile's calibration settings should only be used if it is for the resolution the
+	 * camera actually opened at (see {@link CalibrationProfile#isForResolution(Size)}).
+	 * @return The calibration profile, or null if the camera was not calibrated or the profile could not be read
+	 */
+	@Nullable
+	public CalibrationProfile loadCalibrationProfile(){
+
+		if(!Boolean.parseBoolean(properties.getProperty(KEY_CALIBRATED)) || !Files.exists(PROFILE_FILE)) return null;
+
+		Size resolution = getResolution();
+		CalibrationProfile profile = CalibrationProfile.load(PROFILE_FILE.toString(), resolution == null ? new Size() : resolution);
+		if(profile == null) return null;
+
+		savedSettings = profile.getCalibrationSettings(); // No point saving them again
+		return profile;
+	}
+
+	/**
+	 * Records the given calibration settings and alignment matrix and saves the session. The calibration profile is only
+	 * saved if the calibration settings have changed.
+	 * @param calibrationSettings The current calibration settings, or null if the camera is not calibrated
+	 * @param alignmentMatrix The current alignment matrix, or null if the camera is not aligned
+	 * @param resolution The current camera resolution
+	 */
+	public void setCalibration(@Nullable CalibrationSettings calibrationSettings, @Nullable Mat alignmentMatrix, Size resolution){
+
+		if(alignmentMatrix == null){
+			properties.remove(KEY_ALIGNMENT);
+		}else{
+			Mat m = new Mat();
+			alignmentMatrix.convertTo(m, CvType.CV_64F);
+			double[] values = new double[9];
+			m.get(0, 0, values);
+			properties.setProperty(KEY_ALIGNMENT, Arrays.stream(values).mapToObj(Double::toString).collect(Collectors.joining(",")));
+		}
+
+		properties.setProperty(KEY_CALIBRATED, String.valueOf(calibrationSettings != null));
+
+		// CalibrationSettings are immutable, so if it's the same object it hasn't changed
+		if(calibrationSettings != null && calibrationSettings != savedSettings){
+			savedSettings = calibrationSettings;
+			CalibrationProfile profile = new CalibrationProfile(calibrationSettings, alignmentMatrix, resolution);
+			saveExecutor.execute(() -> saveProfile(profile));
+		}
+
+		save();
+	}
+
+	/** Saves the session values on the save thread. */
+	private void save(){
+		Properties copy = new Properties();
+		copy.putAll(properties); // Copy because the EDT will carry on changing the original
+		saveExecutor.execute(() -> saveProperties(copy));
+	}
+
+	private static void saveProperties(Properties properties){
+		try{
+			Files.createDirectories(DIRECTORY);
+			Path temp = PROPERTIES_FILE.resolveSibling(PROPERTIES_FILE.getFileName() + ".tmp");
+			// Try-with-resources block automatically closes the file when done or if an exception is thrown
+			try(OutputStream stream = Files.newOutputStream(temp)){
+				properties.store(stream, "Flexiweld session");
+			}
+			Files.move(temp, PROPERTIES_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e){
+			System.err.println(String.format("Unable to save session file %s", PROPERTIES_FILE));
+		}
+	}
+
+	private static void saveProfile(CalibrationProfile profile){
+		try{
+			Files.createDirectories(DIRECTORY);
+			Path temp = PROFILE_FILE.resolveSibling(PROFILE_FILE.getFileName() + ".tmp");
+			if(profile.save(temp.toString())){
+				Files.move(temp, PROFILE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}catch(IOException e){
+			System.err.println(String.format("Unable to save calibration profile %s", PROFILE_FILE));
+		}
+	}
+
+	private int getInt(String key, int defaultValue){
+		try{
+			return Integer.parseInt(properties.getProperty(key, String.valueOf(defaultValue)));
+		}catch(NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package uob.flexiweld.app;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * An immutable snapshot of the values shown in the UI controls (status bar readouts, which buttons are enabled, etc.).
+ * The processing side of each capture mode builds one of these per frame, and the EDT applies the most recent one to
+ * the controls at a fixed rate (see {@link uob.flexiweld.app.mode.CaptureMode#updateControls()}), only touching
+ * controls whose values have changed. This stops the controls being updated every frame, which causes a lot of
+ * unnecessary revalidation and repainting, and means the processing side never touches Swing components directly.
+ * <p></p>
+ * Values are identified by string keys, which each capture mode defines for itself. Values should be immutable and
+ * implement {@code equals} properly (strings, booleans, colours, etc.), since that's how changes are detected.
+ * @author Finin Quincey
+ */
+public final class UiState {
+
+	/** A {@code UiState} with no values in it, used as the previous state when nothing has been applied yet. */
+	public static final UiState EMPTY = new UiState(Collections.emptyMap());
+
+	private final Map<String, Object> values;
+
+	private UiState(Map<String, Object> values){
+		this.values = values;
+	}
+
+	/** Returns the value with the given key, or null if there isn't one. */
+	@SuppressWarnings("unchecked")
+	public <T> T get(String key){
+		return (T)values.get(key);
+	}
+
+	/** Returns true if the value with the given key is different in this state to in the given previous state. */
+	public boolean changed(UiState previous, String key){
+		return values.containsKey(key) && (!previous.values.containsKey(key)
+				|| !Objects.equals(values.get(key), previous.values.get(key)));
+	}
+
+	/**
+	 * Passes the value with the given key to the given action, but only if it is different to the value in the given
+	 * previous state. Values that are not in this state are left alone.
+	 * @param previous The state that was applied last time
+	 * @param key The key of the value
+	 * @param action The action to apply the value to the UI, e.g. {@code label::setText}
+	 */
+	public <T> void ifChanged(UiState previous, String key, Consumer<T> action){
+		if(changed(previous, key)) action.accept(get(key));
+	}
+
+	/** Builds {@link UiState} objects. Builders are not thread-safe, they should only be used by one thread. */
+	public static class Builder {
+
+		private final Map<String, Object> values = new HashMap<>();
+
+		/** Sets the value with the given key. */
+		public Builder put(String key, Object value){
+			values.put(key, value);
+			return this;
+		}
+
+		/** Returns a new {@link UiState} with the values set so far. */
+		public UiState build(){
+			return new UiState(Collections.unmodifiableMap(new HashMap<>(values)));
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package uob.flexiweld.app;
+
+import com.sun.istack.internal.Nullable;
+import uob.flexiweld.app.metrics.FrameTrace;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * A {@link JLabel} that displays the video feed as its icon, with an {@link Overlay} of annotations drawn on top using
+ * Java2D. Apart from that it behaves exactly like a normal label, so it can also show a message when there is no video.
+ * @author Finin Quincey
+ */
+public class VideoCanvas extends JLabel {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The overlay drawn on top of the video, or null if there isn't one. */
+	@Nullable private Overlay overlay;
+	/** The trace for the frame being displayed, or null if there isn't one. */
+	@Nullable private FrameTrace frameTrace;
+
+	// Reused each time the component is painted
+	private final Rectangle viewRect = new Rectangle();
+	private final Rectangle iconRect = new Rectangle();
+	private final Rectangle textRect = new Rectangle();
+
+	/** Sets the overlay to be drawn on top of the video, or null to remove it. */
+	public void setOverlay(@Nullable Overlay overlay){
+		if(overlay != this.overlay){
+			this.overlay = overlay;
+			repaint();
+		}
+	}
+
+	/** Sets the trace for the frame being displayed, so the {@link FrameTrace.Stage#PAINT} stage can be marked when it
+	 * is painted. */
+	public void setFrameTrace(@Nullable FrameTrace frameTrace){
+		this.frameTrace = frameTrace;
+	}
+
+	@Override
+	protected void paintComponent(Graphics g){
+
+		super.paintComponent(g); // Draws the video itself
+
+		Icon icon = getIcon();
+		if(icon != null && frameTrace != null) frameTrace.mark(FrameTrace.Stage.PAINT);
+
+		if(overlay == null || overlay.isEmpty() || icon == null) return;
+
+		// Work out where the icon was drawn, in the same way the label's UI does it
+		Insets insets = getInsets();
+		viewRect.setBounds(insets.left, insets.top, getWidth() - insets.left - insets.right,
+				getHeight() - insets.top - insets.bottom);
+		iconRect.setBounds(0, 0, 0, 0);
+		textRect.setBounds(0, 0, 0, 0);
+		SwingUtilities.layoutCompoundLabel(this, getFontMetrics(getFont()), getText(), icon, getVerticalAlignment(),
+				getHorizontalAlignment(), getVerticalTextPosition(), getHorizontalTextPosition(), viewRect, iconRect,
+				textRect, getIconTextGap());
+
+		// Use a copy so the rendering settings don't leak into the rest of the painting
+		Graphics2D g2d = (Graphics2D)g.create();
+		try{
+			g2d.translate(iconRect.x, iconRect.y);
+			g2d.clipRect(0, 0, iconRect.width, iconRect.height);
+			overlay.render(g2d);
+		}finally{
+			g2d.dispose();
+		}
+	}
+
+}
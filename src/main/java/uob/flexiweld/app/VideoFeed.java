@@ -1,19 +1,24 @@
 package uob.flexiweld.app;
 
+import com.sun.istack.internal.Nullable;
 import org.opencv.core.Point;
 import org.opencv.core.*;
 import org.opencv.highgui.HighGui;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.videoio.VideoCapture;
-import org.opencv.videoio.Videoio;
+import uob.flexiweld.app.export.SharedMemoryChannel;
+import uob.flexiweld.app.metrics.FrameTrace;
+import uob.flexiweld.app.metrics.Metrics;
 import uob.flexiweld.app.mode.CaptureMode;
 import uob.flexiweld.geom.Line;
+import uob.flexiweld.profiling.FrameEvent;
+import uob.flexiweld.profiling.Profiling;
 import uob.flexiweld.util.Utils;
 
 import java.awt.*;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The main class that deals with the actual video feed. This class forms the boundary between the high-level Swing UI
@@ -21,7 +26,9 @@ import java.util.List;
  * everything inside the video frame.
  * <p></p>
  * The application maintains a single {@code VideoFeed} object which is responsible for reading frames from the camera
- * and delegating processing of that frame accordingly.
+ * and delegating processing of that frame accordingly. The camera itself is read on a separate thread (see
+ * {@link Camera}); each update processes the latest frame from the camera if there is a new one, and otherwise just
+ * returns the previous output.
  *
  * @author Finin Quincey
  */
@@ -33,18 +40,47 @@ public class VideoFeed {
 	/** The camera number this video feed accesses. */
 	private final int cameraNumber;
 
-	/** The {@link VideoCapture} object this video feed uses to read images from the camera. */
-	private VideoCapture vc;
-	/** The raw image from the camera, which gets overwritten each frame. */
+	/** The {@link Camera} object this video feed uses to read images from the camera, or null if it isn't running. */
+	private volatile Camera camera;
+	/** The raw image from the camera, which gets replaced each frame. */
 	private Mat raw;
 	/** The output image drawn on the screen, which gets overwritten each frame. */
 	private Mat out;
+	/** The output image as returned by the last update, which is returned again if there is no new frame. */
+	private Image outImage;
+	/** The annotations drawn on top of the output image, which are only redrawn when they change. */
+	private Overlay overlay;
+	/** The capture mode that drew the current overlay. */
+	private CaptureMode overlayMode;
+	/** Container for the darkened output image shown while the camera isn't running, see
+	 * {@link VideoFeed#drawCameraStatus()}. */
+	private final Mat statusFrame = new Mat();
+	/** The camera status image last drawn, which is reused until the text changes, or null if it needs redrawing. */
+	@Nullable private Image statusImage;
+	/** The text written on {@link VideoFeed#statusImage}. */
+	private String statusText;
 
 	// Camera properties
 	/** The dimensions of the raw image from the camera. This is set when {@link VideoFeed#start()} is called. */
 	private Size cameraResolution;
-	/** The maximum framerate of the camera, defined by the hardware itself. */
-	private double maxFps;
+	/** The camera mode to ask for when the camera is opened, or null to use the camera's default mode. */
+	@Nullable private volatile CameraMode requestedMode;
+	/** Whether the camera mode can be changed automatically when the quality governor runs out of options. */
+	private boolean autoCameraMode;
+	/** The camera modes the camera supports, which are only found out when first needed, or null if they haven't
+	 * been asked for yet (or the last attempt failed). */
+	@Nullable private volatile CompletableFuture<List<CameraMode>> availableModes;
+	/** The automatic camera mode change in progress, or null if there isn't one. */
+	@Nullable private CompletableFuture<?> autoModeChange;
+
+	/** Whether to convert each frame to greyscale before processing it. */
+	private boolean greyscale;
+	/** Container for the greyscale version of the current frame, which gets overwritten each frame. */
+	private final Mat greyscaleFrame = new Mat();
+	/** Whether to skip producing an output image altogether, when nothing is going to be displayed. */
+	private boolean headless;
+	/** The channel that processed frames are published to for other processes, or null if they aren't published. */
+	@Nullable private SharedMemoryChannel sharedMemory;
 
 	/** Whether to mirror the output image. */
 	private boolean mirror = false;
@@ -52,24 +88,116 @@ public class VideoFeed {
 	private double scaleFactor;
 	/** The dimensions of the output image drawn on the screen. This is set by {@link VideoFeed#fit(int, int)}. */
 	private Size outputSize;
-
-	/** Whether this video feed is running, i.e. actually capturing images. Sometimes {@link VideoCapture#isOpened()}
-	 * returns true when the camera can't actually be read, whereas this field is only ever true if it can be read. */
-	private boolean running;
+	/** The 2x3 affine matrix that mirrors (if enabled) and scales the raw image space to the output space in one go.
+	 * This is rebuilt whenever the output size or mirroring changes, see {@link VideoFeed#updateDisplayTransform()}. */
+	private final Mat displayTransform = new Mat(2, 3, CvType.CV_64F);
+	/** The elements of {@link VideoFeed#displayTransform}, kept separately for transforming individual points. */
+	private final double[] displayTransformValues = new double[6];
+	/** Container for the scaled output image, which gets overwritten each frame. */
+	private final Mat displayFrame = new Mat();
+	/** Whether the display transform has changed since the overlay was last drawn. */
+	private boolean displayTransformChanged;
+	/** The dimensions last passed to {@link VideoFeed#fit(int, int)}, so the output can be re-fitted if the camera
+	 * comes back at a different resolution after reconnecting. */
+	private int fitWidth, fitHeight;
+
+	/** Whether this video feed is running, i.e. the camera has been opened successfully and not stopped since. This
+	 * stays true while the camera is reconnecting. Volatile because the camera is opened on a background thread. */
+	private volatile boolean running;
 	/** Keeps track of whether the video feed is paused or not. Pausing the video feed does not release the camera, it
 	 * just stops overwriting {@link VideoFeed#raw} on update (and the processing still gets run). */
 	private boolean paused;
 	/** Keeps track of when the video feed should resume. This is zero if the feed is running or paused indefinitely. */
 	private long resumeTime;
+	/** The system time at which the last new frame was processed, for framerate calculation. */
+	private long lastFrameTime;
+	/** The number of frames processed since the video feed was created, including the current one. */
+	private long frameNumber;
+	/** The trace for the frame currently being processed, or the last frame processed if there isn't one. */
+	@Nullable private FrameTrace frameTrace;
+	/** The next track ID to be issued, see {@link VideoFeed#nextTrackId()}. */
+	private final AtomicInteger nextTrackId = new AtomicInteger(1);
 
 	/** Keeps track of the frames per second over the last n frames, for a moving average. */
 	private final List<Double> recentFps = new ArrayList<>(FPS_AVERAGE_WINDOW);
+	/** The average of {@link VideoFeed#recentFps}, kept separately so it can be read from other threads. */
+	private volatile double averageFps;
+
+	/** The {@link QualityGovernor} that adjusts the processing quality to keep the frame time within budget. */
+	private final QualityGovernor qualityGovernor;
 
-	/** Creates a new {@code VideoFeed} for the camera with the given camera number (if there is only one camera, it
-	 * probably has the camera number 0). */
-	public VideoFeed(int cameraNumber){
+	/**
+	 * Creates a new {@code VideoFeed} for the camera with the given camera number.
+	 * @param cameraNumber The number of the camera to access (if there is only one camera, it probably has the camera
+	 *                     number 0)
+	 * @param targetFrameTime The time to aim to process each frame within, in milliseconds
+	 */
+	public VideoFeed(int cameraNumber, double targetFrameTime){
 		this.cameraNumber = cameraNumber;
-		vc = new VideoCapture();
+		qualityGovernor = new QualityGovernor(targetFrameTime);
+	}
+
+	/** Returns the number of the camera this video feed accesses. */
+	public int getCameraNumber(){
+		return cameraNumber;
+	}
+
+	/** Sets the camera mode to ask for next time the camera is opened, or null to use the camera's default mode. The
+	 * camera may not support the requested mode, in which case it will pick the nearest one. */
+	public void setRequestedMode(@Nullable CameraMode mode){
+		this.requestedMode = mode;
+	}
+
+	/** Returns the mode the camera is currently in, or null if it isn't running. */
+	@Nullable
+	public CameraMode getCameraMode(){
+		Camera camera = this.camera;
+		return camera == null ? null : camera.getMode();
+	}
+
+	/**
+	 * Switches the camera to the given mode. The video will freeze briefly while the camera restarts.
+	 * @param mode The mode to switch to
+	 * @return A {@link CompletableFuture} that completes with the mode the camera actually switched to
+	 * @throws IllegalStateException if the camera is not currently opened
+	 */
+	public CompletableFuture<CameraMode> setCameraMode(CameraMode mode){
+		if(!isRunning()) throw new IllegalStateException("Video feed not running!");
+		requestedMode = mode;
+		return camera.setMode(mode);
+	}
+
+	/**
+	 * Returns the modes the camera supports. The first time this is called, the camera is probed to find out (see
+	 * {@link Camera#probeModes()}), which freezes the video for a few seconds; after that the same list is reused. If
+	 * probing fails, the camera is probed again next time.
+	 * @return A {@link CompletableFuture} that completes with the list of supported modes, from smallest to largest
+	 * @throws IllegalStateException if the camera is not currently opened
+	 */
+	public CompletableFuture<List<CameraMode>> getAvailableCameraModes(){
+		if(!isRunning()) throw new IllegalStateException("Video feed not running!");
+		CompletableFuture<List<CameraMode>> modes = availableModes;
+		if(modes == null){
+			modes = camera.probeModes();
+			availableModes = modes;
+			CompletableFuture<List<CameraMode>> attempt = modes;
+			// Don't keep handing out the failure, the camera might well cooperate next time
+			modes.whenComplete((m, e) -> {
+				if(e != null && availableModes == attempt) availableModes = null;
+			});
+		}
+		return modes;
+	}
+
+	/** Sets whether the camera can be switched to a lower resolution automatically if processing can't keep up even
+	 * at the lowest quality level. */
+	public void setAutoCameraMode(boolean autoCameraMode){
+		this.autoCameraMode = autoCameraMode;
+	}
+
+	/** Returns whether the camera can be switched to a lower resolution automatically. */
+	public boolean isAutoCameraMode(){
+		return autoCameraMode;
 	}
 
 	/** Returns the resolution of the camera this video feed has open. */
@@ -87,44 +215,76 @@ public class VideoFeed {
 
 	/** Returns the current framerate of the camera, capped to the camera's maximum framerate. */
 	public double getFps(){
-		return Math.min(recentFps.stream().mapToDouble(d -> d).average().orElse(0), maxFps);
+		Camera camera = this.camera;
+		double maxFps = camera == null || camera.getMaxFps() <= 0 ? Double.MAX_VALUE : camera.getMaxFps();
+		return Math.min(averageFps, maxFps);
+	}
+
+	/** Returns the sequence number of the frame currently being processed, or the last frame processed if there isn't
+	 * one. Frames are numbered from 1 in the order they were processed. */
+	public long getFrameNumber(){
+		return frameNumber;
+	}
+
+	/** Issues a new track ID for a measured feature. IDs are unique for as long as this video feed exists, so they
+	 * carry on from where they left off when measurement mode is restarted (e.g. after calibrating), rather than
+	 * being reused for different features. This may be called from any thread. */
+	public int nextTrackId(){
+		return nextTrackId.getAndIncrement();
+	}
+
+	/** Returns the {@link FrameTrace} for the frame currently being processed, or the last frame processed if there
+	 * isn't one. Returns null if no frames have been processed, or the frame didn't come from the camera. */
+	@Nullable
+	public FrameTrace getFrameTrace(){
+		return frameTrace;
+	}
+
+	/** Returns the {@link QualityGovernor} for this video feed. */
+	public QualityGovernor getQualityGovernor(){
+		return qualityGovernor;
 	}
 
 	/** Returns true if this video feed is running, false otherwise. */
 	public boolean isRunning(){
-		return vc.isOpened() && running;
+		return running;
+	}
+
+	/** Returns the status of the camera connection. */
+	public Camera.Status getCameraStatus(){
+		Camera camera = this.camera;
+		return camera == null ? Camera.Status.STOPPED : camera.getStatus();
 	}
 
-	/** Returns the current output frame, after processing and annotations. */
+	/** Returns the current output frame, after processing and scaling. This does not include the annotations, which are
+	 * drawn separately (see {@link VideoFeed#getOverlay(CaptureMode)}). */
 	public Mat getCurrentFrame(){
 		return out;
 	}
 
 	/**
-	 * Opens this video feed's camera, reads a single frame and records its resolution for internal use.
+	 * Opens this video feed's camera, reads a single frame and records its resolution for internal use. This can take
+	 * several seconds, so it may be called from a background thread; the video feed will not be considered running
+	 * until it returns.
 	 * @return True if the video capture was opened successfully, false if not (i.e. if the camera is in use or
-	 * otherwise inaccessible)
+	 * otherwise inaccessible, or took too long to respond)
 	 */
 	public boolean start(){
 
-		raw = new Mat();
-		out = new Mat();
-
-		try{
-			if(!vc.open(cameraNumber)) return false;
-		}catch(CvException e){
-			// Sometimes throws an exception if the camera is in use or otherwise inaccessible it seems
-			System.out.println("Failed to open video capture");
-			return false;
-		}
-
-//		vc.set(Videoio.CAP_PROP_FRAME_WIDTH, 1920);
-//		vc.set(Videoio.CAP_PROP_FRAME_HEIGHT, 1080);
-
-		if(!vc.read(raw)) return false; // For some strange reason open can succeed when the camera is busy...
-		cameraResolution = raw.size();
-		maxFps = vc.get(Videoio.CAP_PROP_FPS);
+		Camera camera = new Camera(cameraNumber, requestedMode);
+		if(!camera.open()) return false;
 
+		raw = new Mat(); // The first frame is left for update() to pick up
+		out = new Mat();
+		outImage = null;
+		paused = false; // There's no previous output to show any more
+		resumeTime = 0;
+		cameraResolution = camera.getResolution();
+		availableModes = null; // Might not be the same camera any more
+		autoModeChange = null;
+		lastFrameTime = System.currentTimeMillis();
+
+		this.camera = camera;
 		running = true;
 		return true;
 	}
@@ -132,8 +292,9 @@ public class VideoFeed {
 	/** Closes this video feed's camera, releasing it for other uses. */
 	public void stop(){
 		// TODO: There's an issue with this version of OpenCV, update to a newer one! https://github.com/opencv/opencv/issues/12301
-		vc.release();
 		running = false;
+		camera.close();
+		camera = null;
 	}
 
 	/** Toggles whether the video feed is paused. Pausing the video feed does not release the camera, it just freezes
@@ -163,15 +324,100 @@ public class VideoFeed {
 	 */
 	public void fit(int width, int height){
 		if(!isRunning()) throw new IllegalStateException("Video feed not running!");
+		fitWidth = width;
+		fitHeight = height;
 		scaleFactor = Math.min(width/cameraResolution.width, height/cameraResolution.height);
 		int newWidth = (int)(cameraResolution.width * scaleFactor);
 		int newHeight = (int)(cameraResolution.height * scaleFactor);
 		outputSize = new Size(newWidth, newHeight);
+		updateDisplayTransform();
+	}
+
+	/**
+	 * Rebuilds the display transform from the current camera resolution, output size and mirroring. Mirroring and
+	 * scaling are combined into a single affine transformation so the output image can be produced in one pass, and
+	 * so that annotations are transformed in exactly the same way as the image.
+	 */
+	private void updateDisplayTransform(){
+
+		if(outputSize == null) return; // Not fitted yet, fit() will call this
+
+		// Use the actual scale factors rather than scaleFactor, since the output size gets rounded down
+		double sx = outputSize.width / cameraResolution.width;
+		double sy = outputSize.height / cameraResolution.height;
+
+		// OpenCV puts the centre of each pixel at integer coordinates, so scaling by s also shifts by (s - 1)/2
+		// Mirroring maps x to (width - 1 - x), which is then scaled as normal
+		displayTransformValues[0] = mirror ? -sx : sx;
+		displayTransformValues[1] = 0;
+		displayTransformValues[2] = (mirror ? sx * (cameraResolution.width - 1) : 0) + (sx - 1) / 2;
+		displayTransformValues[3] = 0;
+		displayTransformValues[4] = sy;
+		displayTransformValues[5] = (sy - 1) / 2;
+
+		displayTransform.put(0, 0, displayTransformValues);
+		displayTransformChanged = true; // Everything on the overlay will have moved
+	}
+
+	/**
+	 * Returns a copy of the 2x3 affine matrix that transforms the raw image space to the output space, taking into
+	 * account both scaling and mirroring. This is the same transformation used by
+	 * {@link VideoFeed#transformForDisplay(Point)} and its overloads.
+	 */
+	public Mat getDisplayTransform(){
+		return displayTransform.clone();
+	}
+
+	/**
+	 * Sets whether frames are converted to greyscale before processing. When enabled, the luminance is extracted once
+	 * per frame and capture modes are given a single-channel image to work with, which means a third as much data for
+	 * every processing stage (undistortion, edge detection, checkerboard detection, etc.). The displayed image is
+	 * still in colour, since the capture mode is asked to prepare it from the colour frame separately (see
+	 * {@link CaptureMode#prepareDisplayFrame(VideoFeed, Mat)}), which is skipped if the video feed is headless.
+	 */
+	public void setGreyscale(boolean greyscale){
+		this.greyscale = greyscale;
+	}
+
+	/** Returns whether frames are converted to greyscale before processing. */
+	public boolean isGreyscale(){
+		return greyscale;
+	}
+
+	/**
+	 * Sets whether this video feed is headless. A headless video feed still processes every frame, but skips all the
+	 * display stages (mirroring, scaling, annotation and conversion to an {@link Image}), so
+	 * {@link VideoFeed#update(CaptureMode)} always returns null. This is for when the results are used elsewhere and
+	 * nothing is being displayed.
+	 */
+	public void setHeadless(boolean headless){
+		this.headless = headless;
+	}
+
+	/** Returns whether this video feed is headless. */
+	public boolean isHeadless(){
+		return headless;
+	}
+
+	/**
+	 * Sets the channel that processed frames are published to, so that other processes on the same machine can use
+	 * them, or null to stop publishing them. Frames are published straight after the capture mode has processed them,
+	 * before any display processing, so for measurement mode they are undistorted but otherwise untouched.
+	 */
+	public void setSharedMemoryChannel(@Nullable SharedMemoryChannel sharedMemory){
+		this.sharedMemory = sharedMemory;
 	}
 
 	/** Toggles whether the output image is mirrored. */
 	public void toggleMirror(){
 		mirror = !mirror;
+		updateDisplayTransform();
+	}
+
+	/** Sets whether the output image is mirrored. */
+	public void setMirrored(boolean mirror){
+		this.mirror = mirror;
+		updateDisplayTransform();
 	}
 
 	/** Returns whether the output image is currently mirrored. */
@@ -180,10 +426,13 @@ public class VideoFeed {
 	}
 
 	/**
-	 * Reads the next frame of this video feed, processes it according to the current mode, and returns the resulting
-	 * output image as an {@link Image} object, ready for rendering into a Swing UI or similar.
-	 * @return An {@link Image} containing the processed frame, scaled to fit the output resolution, and with any
-	 * annotations added.
+	 * Picks up the next frame of this video feed, processes it according to the current mode, and returns the resulting
+	 * output image as an {@link Image} object, ready for rendering into a Swing UI or similar. If no new frame has
+	 * arrived from the camera since the last update, the previous output image is returned instead (with the camera
+	 * status shown over the top if the camera has stopped responding).
+	 * @return An {@link Image} containing the processed frame, scaled to fit the output resolution, or null if no frames
+	 * have been processed yet (or the video feed is headless). Annotations are not included; they should be drawn on top
+	 * using the overlay returned by {@link VideoFeed#getOverlay(CaptureMode)}.
 	 * @throws IllegalStateException if the camera is not currently opened
 	 */
 	public Image update(CaptureMode mode){
@@ -198,28 +447,178 @@ public class VideoFeed {
 				paused = false;
 				resumeTime = 0;
 			}
-			// Return the previous output and do no further processing
-			return HighGui.toBufferedImage(out);
+			// Return the previous output (already converted) and do no further processing
+			return headless ? null : outImage;
+		}
+
+		Mat frame = camera.pollFrame(raw); // Pick up the latest frame from the camera, if there is one
+
+		if(frame == null){
+			// Nothing new, so there's no point processing the same frame again
+			if(outImage != null && camera.getStatus() != Camera.Status.RUNNING) return drawCameraStatus();
+			return outImage;
+		}
+
+		raw = frame;
+		statusImage = null; // The next status image will need to be drawn over this frame instead
+		frameTrace = camera.getPolledTrace();
+		if(frameTrace != null) frameTrace.mark(FrameTrace.Stage.DEQUEUE);
+
+		if(!raw.size().equals(cameraResolution)){
+			// The camera came back at a different resolution after reconnecting
+			cameraResolution = raw.size();
+			fit(fitWidth, fitHeight);
 		}
 
-		vc.read(raw); // Read the raw frame from the camera
+		// Don't include the time spent waiting for the camera, the governor is only interested in processing time
+		long processingStart = System.nanoTime();
+		frameNumber++;
+
+		FrameEvent event = Profiling.ENABLED ? new FrameEvent() : null;
+		if(event != null) event.begin();
+
+		Mat input = raw;
+
+		if(greyscale){
+			// Do this once here rather than letting each processing stage do it (or work on all 3 channels)
+			Imgproc.cvtColor(raw, greyscaleFrame, Imgproc.COLOR_BGR2GRAY);
+			input = greyscaleFrame;
+		}
 
 		// Processing
-		out = mode.processFrame(this, raw); // Allow the current capture mode to do whatever processing it does
+		out = mode.processFrame(this, input); // Allow the current capture mode to do whatever processing it does
+		long processingEnd = System.nanoTime();
+		if(frameTrace != null) frameTrace.mark(FrameTrace.Stage.PROCESS);
+
+		if(sharedMemory != null){
+			// Readers care about when the frame was captured, not when we got round to it
+			sharedMemory.publishFrame(out, frameTrace == null ? time : frameTrace.getCaptureTimeMillis());
+			if(frameTrace != null) frameTrace.mark(FrameTrace.Stage.SHARED_MEMORY);
+		}
+
+		long displayTime = 0;
+
+		if(!headless){
+
+			long displayStart = System.nanoTime();
+
+			// Processing was done in greyscale, but the operator still wants to see the video in colour
+			if(greyscale) out = mode.prepareDisplayFrame(this, raw);
+
+			// Mirror and scale to fit the window in a single pass, into the same matrix every time
+			// Replicate the border, otherwise the edge pixels get blended with black like they would with a rotation
+			Imgproc.warpAffine(out, displayFrame, displayTransform, outputSize, Imgproc.INTER_LINEAR,
+					Core.BORDER_REPLICATE, new Scalar(0));
+			out = displayFrame;
+
+			// Annotations are drawn separately on the overlay, so they don't get scaled or flipped (and the output stays
+			// greyscale if it started that way), but the mode still gets a chance to post-process the output
+			out = mode.annotateFrame(this, out);
 
-		if(mirror) out = Utils.process(out, (s, d) -> Core.flip(s, d, 1)); // Mirror in x
-		out = Utils.process(out, (s, d) -> Imgproc.resize(s, d, outputSize)); // Scale to fit the window
+			displayTime = Metrics.DISPLAY_SECONDS.time(displayStart) - displayStart;
+		}
+
+		long processingTime = System.nanoTime() - processingStart;
+		qualityGovernor.recordFrameTime(processingTime / 1e6);
+		Metrics.FRAME_SECONDS.observe(processingTime / 1e9);
+		Metrics.FRAMES_PROCESSED.increment();
+
+		if(event != null){
+			event.record(frameNumber, mode, qualityGovernor.getLevel(), processingEnd - processingStart, displayTime);
+		}
 
-		// Add the annotations afterwards so they don't get scaled or flipped
-		// This means the positions need to be transformed accordingly, see the methods below
-		out = mode.annotateFrame(this, out);
+		// The calibration and alignment only apply at the resolution they were done at, so leave it alone if there are any
+		if(autoCameraMode && qualityGovernor.isExhausted() && !mode.dependsOnResolution()) reduceCameraMode();
 
-		// Update the framerate tracker based on how long it took to process the frame
-		recentFps.add(1000d / (System.currentTimeMillis() - time));
+		// Update the framerate tracker based on the time since the last new frame
+		recentFps.add(1000d / Math.max(1, time - lastFrameTime));
 		if(recentFps.size() > FPS_AVERAGE_WINDOW) recentFps.remove(0);
+		averageFps = recentFps.stream().mapToDouble(d -> d).average().orElse(0);
+		lastFrameTime = time;
+
+		// Do this last so it includes the latest framerate; the EDT picks it up when it's ready
+		mode.publishState(this);
+
+		if(headless) return null;
+
+		outImage = HighGui.toBufferedImage(out); // Convert to a buffered image for the app to display
+		if(frameTrace != null) frameTrace.mark(FrameTrace.Stage.DISPLAY);
+		return outImage;
+
+	}
+
+	/**
+	 * Returns the overlay containing the given capture mode's annotations, to be drawn on top of the output image. The
+	 * overlay is only redrawn if the annotations have changed since last time (see
+	 * {@link CaptureMode#drawOverlay(VideoFeed, Overlay)}), the display transform has changed or the capture mode is
+	 * different; otherwise the same overlay is returned again.
+	 * @param mode The current capture mode
+	 * @return The overlay, in the output (screen) coordinate space
+	 */
+	public Overlay getOverlay(CaptureMode mode){
+
+		boolean changed = mode.checkOverlayChanged(); // Always check so the flag gets reset
+
+		if(overlay == null || changed || mode != overlayMode || displayTransformChanged){
+			overlay = new Overlay();
+			// Positions need to be transformed to the output space, see the transformForDisplay methods below
+			mode.drawOverlay(this, overlay);
+			overlayMode = mode;
+			displayTransformChanged = false;
+		}
+
+		return overlay;
+	}
+
+	/**
+	 * Switches the camera to the next mode down with fewer pixels, if there is one, to reduce the amount of processing
+	 * per frame. This only happens while the camera mode is automatic and the capture mode doesn't depend on the
+	 * resolution (see {@link CaptureMode#dependsOnResolution()}), and isn't remembered in the session, since the
+	 * processing may well be able to keep up next time.
+	 */
+	private void reduceCameraMode(){
+
+		if(autoModeChange != null && !autoModeChange.isDone()) return; // Already on it
+
+		qualityGovernor.settle(); // Don't keep asking while the change is happening
+
+		Camera camera = this.camera;
+		CameraMode current = camera.getMode();
+
+		autoModeChange = getAvailableCameraModes().thenCompose(modes -> {
+			// Modes are in order of size, so go backwards to find the largest mode that's smaller than this one
+			for(int i = modes.size() - 1; i >= 0; i--){
+				CameraMode mode = modes.get(i);
+				if(mode.getPixelCount() < current.getPixelCount() && mode.getFourcc() == current.getFourcc()){
+					System.err.println(String.format("Processing can't keep up, switching camera to %s", mode));
+					return camera.setMode(mode);
+				}
+			}
+			return CompletableFuture.completedFuture(current); // Already as small as it goes
+		});
+	}
+
+	/** Returns the previous output image, darkened, with the camera status written over the top. The image is only
+	 * redrawn when the status text changes, since this gets called every update while the camera is down. */
+	private Image drawCameraStatus(){
+
+		String text = getCameraStatus().getDisplayName();
+		if(camera.getReconnectAttempts() > 0) text += String.format(" (attempt %d)", camera.getReconnectAttempts());
+		text += "...";
+
+		if(statusImage != null && text.equals(statusText)) return statusImage;
+
+		Mat frame = statusFrame;
+		Core.multiply(out, new Scalar(0.4, 0.4, 0.4), frame); // Darken it so it's obvious it isn't live
 
-		return HighGui.toBufferedImage(out); // Convert to a buffered image for the app to display
+		int[] baseline = new int[1];
+		Size textSize = Imgproc.getTextSize(text, Core.FONT_HERSHEY_PLAIN, 2, 2, baseline);
+		Imgproc.putText(frame, text, new Point((frame.width() - textSize.width) / 2, (frame.height() + textSize.height) / 2),
+				Core.FONT_HERSHEY_PLAIN, 2, Utils.WHITE, 2);
 
+		statusText = text;
+		statusImage = HighGui.toBufferedImage(frame);
+		return statusImage;
 	}
 
 	/**
@@ -229,8 +628,8 @@ public class VideoFeed {
 	 * @return The resulting point, in the output (screen) coordinate space
 	 */
 	public Point transformForDisplay(Point point){
-		double x = mirror ? cameraResolution.width - point.x : point.x;
-		return new Point((int)(x * scaleFactor), (int)(point.y * scaleFactor));
+		double[] m = displayTransformValues;
+		return new Point(m[0] * point.x + m[1] * point.y + m[2], m[3] * point.x + m[4] * point.y + m[5]);
 	}
 
 	/**
@@ -250,8 +649,9 @@ public class VideoFeed {
 	 * @return A matrix of the resulting points, in the output (screen) coordinate space
 	 */
 	public MatOfPoint2f transformForDisplay(MatOfPoint2f points){
-		// Better to stream the array directly than convert to a list first
-		return new MatOfPoint2f(Arrays.stream(points.toArray()).map(this::transformForDisplay).toArray(Point[]::new));
+		MatOfPoint2f result = new MatOfPoint2f();
+		Core.transform(points, result, displayTransform); // Transforms all the points at once
+		return result;
 	}
 
 }
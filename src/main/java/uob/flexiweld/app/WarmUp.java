@@ -0,0 +1,182 @@
+package uob.flexiweld.app;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import uob.flexiweld.app.mode.MeasurementMode;
+import uob.flexiweld.util.Deadline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs the bundled test images through the measurement pipeline a number of times on startup, so that the JIT compiler
+ * has compiled the line tracking, centreline and intersection code before any real measurements are taken. Without
+ * this, the first few seconds of measurement are noticeably slower than normal, and the quality governor reacts by
+ * dropping the quality level.
+ * <p></p>
+ * The warm-up keeps going until the time taken per frame has levelled off (i.e. it hasn't varied much over the last
+ * few frames), or until it has run for {@link WarmUp#MAX_DURATION} milliseconds, whichever comes first. It is intended
+ * to be run in the background while the camera is being opened, which takes a few seconds anyway.
+ * @author Finin Quincey
+ */
+public class WarmUp {
+
+	/** The test images to run through the pipeline, relative to the resources folder. */
+	private static final String[] IMAGES = {"assets/test_images/1.png", "assets/test_images/2.png"};
+
+	/** The number of frames over which the frame time must be steady. */
+	private static final int WINDOW = 20;
+	/** The frame time is considered steady when its standard deviation over the last {@link WarmUp#WINDOW} frames is
+	 * less than this fraction of its mean. */
+	private static final double MAX_VARIATION = 0.1;
+	/** The minimum number of frames to process, so a few lucky frames early on don't end the warm-up too soon. */
+	private static final int MIN_FRAMES = 50;
+	/** The maximum time the warm-up is allowed to take, in milliseconds. */
+	private static final double MAX_DURATION = 5000;
+
+	/** The result of a warm-up run. {@code Result} objects are immutable. */
+	public static class Result {
+
+		private final int frames;
+		private final double duration;
+		private final double frameTime;
+		private final boolean steady;
+
+		private Result(int frames, double duration, double frameTime, boolean steady){
+			this.frames = frames;
+			this.duration = duration;
+			this.frameTime = frameTime;
+			this.steady = steady;
+		}
+
+		/** Returns the number of frames that were processed. */
+		public int getFrames(){
+			return frames;
+		}
+
+		/** Returns the total time the warm-up took, in milliseconds. */
+		public double getDuration(){
+			return duration;
+		}
+
+		/** Returns the average time per frame over the last few frames, in milliseconds. */
+		public double getFrameTime(){
+			return frameTime;
+		}
+
+		/** Returns true if the frame time levelled off, false if the warm-up ran out of time first. */
+		public boolean isSteady(){
+			return steady;
+		}
+	}
+
+	private WarmUp(){} // No instances!
+
+	/**
+	 * Starts warming up the measurement pipeline on a background thread.
+	 * @param videoFeed The app's video feed, which the measurement pipeline reads its quality settings from
+	 * @param resolution The resolution to scale the test images to (ideally the camera resolution), or null to use them
+	 *                   as they are
+	 * @return A {@link CompletableFuture} that completes with the {@link Result} once the warm-up has finished, or with
+	 * null if the test images could not be read
+	 */
+	public static CompletableFuture<Result> start(VideoFeed videoFeed, @Nullable Size resolution){
+		return CompletableFuture.supplyAsync(() -> run(videoFeed, resolution));
+	}
+
+	@Nullable
+	private static Result run(VideoFeed videoFeed, @Nullable Size resolution){
+
+		List<Mat> images = loadImages(resolution, videoFeed.isGreyscale());
+		if(images.isEmpty()) return null;
+
+		// A measurement mode of its own, so it doesn't matter what state it's left in
+		MeasurementMode mode = new MeasurementMode();
+		mode.setRecordMetrics(false); // These aren't real frames
+
+		double[] times = new double[WINDOW];
+		long start = System.nanoTime();
+		int frames = 0;
+		double elapsed = 0;
+
+		while(true){
+
+			// Processing modifies the frame, so use a copy
+			Mat frame = images.get(frames % images.size()).clone();
+
+			long frameStart = System.nanoTime();
+			// No deadline, otherwise parts of the pipeline might get skipped and not warmed up
+			mode.processFrame(videoFeed, frame, Deadline.NONE);
+			long now = System.nanoTime();
+
+			times[frames++ % WINDOW] = (now - frameStart) / 1e6;
+			elapsed = (now - start) / 1e6;
+
+			if(frames >= Math.max(MIN_FRAMES, WINDOW) && isSteady(times)){
+				return new Result(frames, elapsed, mean(times), true);
+			}
+
+			if(elapsed > MAX_DURATION){
+				return new Result(frames, elapsed, mean(times), false);
+			}
+		}
+	}
+
+	/** Reads the test images from the resources folder and scales them to the given resolution, if any. The images are
+	 * read in greyscale if the video feed is, so the warm-up goes through the same code as real frames. */
+	private static List<Mat> loadImages(@Nullable Size resolution, boolean greyscale){
+
+		List<Mat> images = new ArrayList<>();
+		// Not the context class loader, this runs on a pool thread where that could be anything (or null)
+		ClassLoader classloader = WarmUp.class.getClassLoader();
+
+		for(String path : IMAGES){
+
+			// Try-with-resources block automatically closes the stream when done or if an exception is thrown
+			try(InputStream inputStream = classloader.getResourceAsStream(path)){
+
+				if(inputStream == null) continue;
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int length;
+				while((length = inputStream.read(buffer)) > 0) bytes.write(buffer, 0, length);
+
+				Mat image = Imgcodecs.imdecode(new MatOfByte(bytes.toByteArray()),
+						greyscale ? Imgcodecs.IMREAD_GRAYSCALE : Imgcodecs.IMREAD_COLOR);
+				if(image.empty()) continue;
+
+				if(resolution != null) Imgproc.resize(image, image, resolution);
+				images.add(image);
+
+			}catch(IOException e){
+				e.printStackTrace();
+			}
+		}
+
+		return images;
+	}
+
+	/** Returns true if the given frame times vary by less than {@link WarmUp#MAX_VARIATION} of their mean. */
+	private static boolean isSteady(double[] times){
+		double mean = mean(times);
+		double variance = 0;
+		for(double t : times) variance += (t - mean) * (t - mean);
+		return Math.sqrt(variance / times.length) < mean * MAX_VARIATION;
+	}
+
+	private static double mean(double[] values){
+		double sum = 0;
+		for(double v : values) sum += v;
+		return sum / values.length;
+	}
+
+}
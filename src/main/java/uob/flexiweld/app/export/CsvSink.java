@@ -0,0 +1,99 @@
+package uob.flexiweld.app.export;
+
+import org.opencv.core.Point;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+import uob.flexiweld.geom.Line;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link MeasurementSink} that appends measurements to a CSV file, with one row per segment or intersection (frames
+ * with no measurements don't produce any rows). The columns are:
+ * <pre>
+ * frame, timestamp, type, id, value, image_x1, image_y1, image_x2, image_y2, world_x1, world_y1, world_x2, world_y2
+ * </pre>
+ * where {@code type} is {@code segment} or {@code intersection}, and {@code value} is the length of a segment or the
+ * angle of an intersection in degrees. Intersections only have one point, so the second pair of coordinates is left
+ * empty for them. The header row is written when the file is created.
+ * @author Finin Quincey
+ */
+public class CsvSink implements MeasurementSink {
+
+	private static final String HEADER = "frame,timestamp,type,id,value,image_x1,image_y1,image_x2,image_y2,"
+			+ "world_x1,world_y1,world_x2,world_y2";
+
+	private final Path file;
+	private final Writer writer;
+	/** Reused for each row. */
+	private final StringBuilder row = new StringBuilder();
+
+	/** Creates a new {@code CsvSink} that appends to the given file, creating it (with a header row) if it doesn't
+	 * exist. */
+	public CsvSink(Path file) throws IOException {
+		this.file = file;
+		boolean empty = !Files.exists(file) || Files.size(file) == 0;
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		if(empty) writer.append(HEADER).append('\n');
+	}
+
+	@Override
+	public void write(MeasurementSnapshot snapshot) throws IOException {
+
+		for(int i = 0; i < snapshot.getSegmentCount(); i++){
+			startRow(snapshot, "segment", snapshot.getSegmentId(i), snapshot.getSegmentLength(i));
+			line(snapshot.getSegment(i));
+			line(snapshot.getWorldSegment(i));
+			endRow();
+		}
+
+		for(int i = 0; i < snapshot.getIntersectionCount(); i++){
+			startRow(snapshot, "intersection", snapshot.getIntersectionId(i), Math.toDegrees(snapshot.getIntersectionAngle(i)));
+			point(snapshot.getIntersectionPoint(i));
+			point(snapshot.getWorldIntersectionPoint(i));
+			endRow();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	@Override
+	public String toString(){
+		return "CSV file " + file;
+	}
+
+	private void startRow(MeasurementSnapshot snapshot, String type, int id, double value){
+		row.setLength(0);
+		row.append(snapshot.getFrameNumber()).append(',').append(snapshot.getTimestamp()).append(',')
+				.append(type).append(',').append(id).append(',').append(value);
+	}
+
+	private void line(Line line){
+		Point start = line.getStart();
+		Point end = line.getEnd();
+		row.append(',').append(start.x).append(',').append(start.y).append(',').append(end.x).append(',').append(end.y);
+	}
+
+	private void point(Point point){
+		row.append(',').append(point.x).append(',').append(point.y).append(",,");
+	}
+
+	private void endRow() throws IOException {
+		row.append('\n');
+		writer.append(row);
+	}
+
+}
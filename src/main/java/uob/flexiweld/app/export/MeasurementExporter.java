@@ -0,0 +1,147 @@
+package uob.flexiweld.app.export;
+
+import uob.flexiweld.app.metrics.FrameTrace;
+import uob.flexiweld.app.mode.MeasurementMode;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Exports measurement results to any number of {@link MeasurementSink}s. Register the exporter as a snapshot listener
+ * (see {@link MeasurementMode#addSnapshotListener(Consumer)}) and each snapshot is put in a {@link SnapshotQueue}, which
+ * is drained by a dedicated I/O thread that writes the snapshots to the sinks in batches. This keeps all the I/O off
+ * the processing thread, so a slow file system or network connection can't hold up the video.
+ * <p></p>
+ * What happens when the sinks can't keep up is decided by the queue's {@link SnapshotQueue.Backpressure} policy.
+ * @author Finin Quincey
+ */
+public class MeasurementExporter implements Consumer<MeasurementSnapshot> {
+
+	/** The time the I/O thread waits for more snapshots when the queue is empty, in milliseconds. */
+	private static final long POLL_INTERVAL = 20;
+	/** The maximum time to wait for the I/O thread to write the remaining snapshots when closing, in milliseconds. */
+	private static final long CLOSE_TIMEOUT = 2000;
+
+	private final SnapshotQueue queue;
+	/** The maximum number of snapshots written to the sinks before they are flushed. */
+	private final int batchSize;
+
+	private final List<MeasurementSink> sinks = new CopyOnWriteArrayList<>();
+
+	private final Thread ioThread;
+
+	/**
+	 * Creates a new {@code MeasurementExporter}. The exporter does nothing until {@link MeasurementExporter#start()} is
+	 * called.
+	 * @param capacity The maximum number of snapshots waiting to be written
+	 * @param batchSize The maximum number of snapshots written to the sinks before they are flushed
+	 * @param backpressure What to do when the queue is full
+	 */
+	public MeasurementExporter(int capacity, int batchSize, SnapshotQueue.Backpressure backpressure){
+		this.queue = new SnapshotQueue(capacity, backpressure);
+		this.batchSize = batchSize;
+		this.ioThread = new Thread(this::run, "Measurement export");
+		ioThread.setDaemon(true); // Don't stop the app from closing
+	}
+
+	/** Adds the given sink to this exporter. Sinks may be added at any time, they will receive snapshots from the next
+	 * batch onwards. */
+	public MeasurementExporter addSink(MeasurementSink sink){
+		sinks.add(sink);
+		return this;
+	}
+
+	/** Returns true if this exporter has any sinks to write to. */
+	public boolean hasSinks(){
+		return !sinks.isEmpty();
+	}
+
+	/** Returns the total number of snapshots that were dropped because the sinks couldn't keep up. */
+	public long getDroppedCount(){
+		return queue.getDroppedCount();
+	}
+
+	/** Returns the number of snapshots currently waiting to be written. */
+	public int getQueueDepth(){
+		return queue.size();
+	}
+
+	/** Starts the I/O thread. */
+	public void start(){
+		ioThread.start();
+	}
+
+	/** Queues the given snapshot to be written to the sinks. Called on the processing thread. */
+	@Override
+	public void accept(MeasurementSnapshot snapshot){
+		queue.offer(snapshot);
+	}
+
+	/** Stops accepting snapshots, waits (for a limited time) for the ones already queued to be written, then closes all
+	 * the sinks. */
+	public void close(){
+		queue.close();
+		if(!ioThread.isAlive()) return;
+		LockSupport.unpark(ioThread);
+		try{
+			ioThread.join(CLOSE_TIMEOUT);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** The I/O thread's main loop. */
+	private void run(){
+
+		List<MeasurementSnapshot> batch = new ArrayList<>(batchSize);
+
+		while(true){
+
+			if(queue.drainTo(batch, batchSize) == 0){
+				if(queue.isClosed()) break; // Nothing left to write
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL));
+				continue;
+			}
+
+			for(MeasurementSink sink : sinks){
+				try{
+					for(MeasurementSnapshot snapshot : batch) sink.write(snapshot);
+					sink.flush();
+				}catch(IOException | RuntimeException e){
+					// A bug in one sink shouldn't take the I/O thread (and so all the other sinks) down with it
+					System.err.println("Measurement sink " + sink + " failed, no more results will be written to it");
+					e.printStackTrace();
+					sinks.remove(sink);
+					closeSink(sink);
+				}
+			}
+
+			// The results have left the app now, which is as far as their frames can be traced
+			for(MeasurementSnapshot snapshot : batch){
+				FrameTrace frameTrace = snapshot.getFrameTrace();
+				if(frameTrace != null) frameTrace.mark(FrameTrace.Stage.EXPORT);
+			}
+
+			batch.clear();
+		}
+
+		for(MeasurementSink sink : sinks) closeSink(sink);
+		sinks.clear();
+	}
+
+	private static void closeSink(MeasurementSink sink){
+		try{
+			sink.close();
+		}catch(IOException | RuntimeException e){
+			System.err.println("Error closing measurement sink " + sink);
+			e.printStackTrace();
+		}
+	}
+
+}
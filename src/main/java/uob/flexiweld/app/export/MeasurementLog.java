@@ -0,0 +1,411 @@
+package uob.flexiweld.app.export;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.Point;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+import uob.flexiweld.geom.Line;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link MeasurementSink} that keeps a permanent record of every measurement in a compact binary log, for
+ * traceability. The log is a folder of segment files, each a fixed size, which are memory-mapped and filled one after
+ * the other; when one is full, the next is started. Nothing is ever overwritten, so old segments can be archived or
+ * deleted by hand (or by a cron job) while the app is running. Use a {@link MeasurementLogReader} to read the log back.
+ * <p></p>
+ * Each segment file starts with an 8KB header, which holds the segment's details and a sparse index of frame
+ * timestamps (one entry every few hundred records) so readers can find a given time without scanning the whole file.
+ * The first frame in each segment always has an index entry. The clock can't be relied on to only go forwards (a
+ * Raspberry Pi has no real-time clock, so it may start with the wrong time and jump when it syncs), so each index entry
+ * holds the latest timestamp logged so far rather than that frame's own timestamp, which keeps the index in order.
+ * After that come the records, which are all {@link MeasurementLog#RECORD_SIZE} bytes long. Each frame is written as a
+ * frame record, holding the timestamp, frame number and number of records that follow, then one record per segment
+ * and one per intersection. All values are little-endian.
+ * <p></p>
+ * The type of a frame record is written last, after everything else in the frame (with a store fence in between, so
+ * neither the JIT compiler nor the CPU can reorder them), so a reader never sees a frame that is only partly written,
+ * even from another process, and if the app crashes part-way through writing a frame, that frame is simply left out when
+ * the log is read back (or reopened for writing). This does <em>not</em> hold after a power cut: the OS writes the
+ * mapped pages out to the storage device in whatever order it likes, so the page holding a frame record's type can get
+ * there before the page holding the rest of the frame. Frames written since changes were last forced out (see
+ * {@link MeasurementLog#FORCE_INTERVAL}) may then be missing or hold junk, which readers should be prepared for.
+ * @author Finin Quincey
+ */
+public class MeasurementLog implements MeasurementSink {
+
+	// File format
+
+	/** The file name extension for segment files. */
+	static final String EXTENSION = ".flog";
+	/** The first 4 bytes of every segment file ("FLOG"). */
+	static final int MAGIC = 0x474f4c46;
+	static final int VERSION = 1;
+
+	/** The size of the header at the start of each segment file, in bytes. */
+	static final int HEADER_SIZE = 8192;
+	/** The size of each record, in bytes. */
+	static final int RECORD_SIZE = 64;
+
+	// Header layout
+	static final int HEADER_MAGIC = 0;
+	static final int HEADER_VERSION = 4;
+	static final int HEADER_RECORD_SIZE = 8;
+	static final int HEADER_CAPACITY = 12; 		// Number of records the segment can hold
+	static final int HEADER_INDEX_STRIDE = 16; 	// Number of records between index entries
+	static final int HEADER_INDEX_COUNT = 20; 	// Number of index entries
+	static final int HEADER_SEGMENT_NUMBER = 24;
+	static final int INDEX_OFFSET = 64; 		// Index entries are a timestamp (long) and a record number (long)
+	static final int INDEX_ENTRY_SIZE = 16;
+	static final int MAX_INDEX_ENTRIES = (HEADER_SIZE - INDEX_OFFSET) / INDEX_ENTRY_SIZE;
+
+	// Record layout (offsets within each record)
+	static final int RECORD_TYPE = 0; 			// byte, one of the TYPE_ constants
+	static final int RECORD_FLAGS = 1; 			// byte, frame records only
+	static final int RECORD_ID = 4; 			// int, track ID (or number of records that follow, for frame records)
+	static final int RECORD_VALUE = 8; 			// double, segment length or intersection angle (radians)
+	static final int RECORD_PAYLOAD = 16; 		// Frame: timestamp (long), frame number (long)
+												// Segment: image x1, y1, x2, y2, world x1, y1, x2, y2 (floats)
+												// Intersection: image x, y, world x, y, image line A, line B (floats)
+
+	static final byte TYPE_FRAME = 1;
+	static final byte TYPE_SEGMENT = 2;
+	static final byte TYPE_INTERSECTION = 3;
+
+	static final byte FLAG_ALIGNED = 1;
+	static final byte FLAG_PARTIAL = 2;
+
+	/** The default number of records in each segment, which makes each segment file just over 8MB. */
+	public static final int DEFAULT_SEGMENT_RECORDS = 131072;
+
+	/** Orders stores to mapped memory, so other processes see them in the right order; see
+	 * {@link MeasurementLog#storeFence()}. */
+	@Nullable private static final MethodHandle STORE_FENCE = findFence("storeFence");
+	/** Orders loads from mapped memory, so a reader doesn't read data from before the value that says it's ready; see
+	 * {@link MeasurementLog#loadFence()}. */
+	@Nullable private static final MethodHandle LOAD_FENCE = findFence("loadFence");
+	/** Fallback for the fences; see {@link MeasurementLog#storeFence()}. */
+	private static volatile int fence;
+
+	/** The minimum time between forcing changes out to the storage device, in milliseconds. The OS writes them out by
+	 * itself anyway; this just puts a limit on how much could be lost in a power cut, without wearing out SD cards. */
+	private static final long FORCE_INTERVAL = 5000;
+
+	private final Path directory;
+	/** The number of records in each new segment. */
+	private final int segmentRecords;
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private long segmentNumber;
+	/** The number of records the current segment can hold. */
+	private int capacity;
+	/** The number of records between index entries in the current segment. */
+	private int indexStride;
+	private int indexCount;
+	/** The record number where the next frame will be written. */
+	private int position;
+	/** The value of {@link System#currentTimeMillis()} when changes were last forced out to the storage device. */
+	private long lastForced;
+	/** The latest timestamp logged so far, which is what the index entries hold. */
+	private long latestTimestamp = Long.MIN_VALUE;
+
+	/** Creates a new {@code MeasurementLog} in the given folder, with the default segment size. */
+	public MeasurementLog(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_RECORDS);
+	}
+
+	/**
+	 * Creates a new {@code MeasurementLog} in the given folder, creating the folder if it doesn't exist. If the folder
+	 * already has a log in it, the new frames are added to the end of the last segment.
+	 * @param directory The folder to keep the segment files in
+	 * @param segmentRecords The number of records in each new segment file
+	 * @throws IOException If the log could not be opened
+	 */
+	public MeasurementLog(Path directory, int segmentRecords) throws IOException {
+
+		if(segmentRecords < 2) throw new IllegalArgumentException("Segments must have room for at least 2 records");
+
+		this.directory = directory;
+		this.segmentRecords = segmentRecords;
+
+		Files.createDirectories(directory);
+
+		List<Path> segments = listSegments(directory);
+
+		if(segments.isEmpty()){
+			openSegment(0, true);
+		}else{
+			openSegment(segmentNumber(segments.get(segments.size() - 1)), false);
+		}
+	}
+
+	@Override
+	public void write(MeasurementSnapshot snapshot) throws IOException {
+
+		int records = 1 + snapshot.getSegmentCount() + snapshot.getIntersectionCount();
+
+		if(records > capacity){
+			// Would need a ridiculous number of lines for this to happen, but just in case
+			System.err.println("Frame " + snapshot.getFrameNumber() + " has too many measurements to log");
+			return;
+		}
+
+		// Frames never span more than one segment, so readers don't have to worry about joining them together
+		if(position + records > capacity) openSegment(segmentNumber + 1, true);
+
+		int start = position;
+		putFrame(buffer, offset(start), snapshot);
+		latestTimestamp = Math.max(latestTimestamp, snapshot.getTimestamp());
+
+		// Add an index entry if we've passed the next stride
+		if(start >= indexCount * indexStride && indexCount < MAX_INDEX_ENTRIES){
+			int entry = INDEX_OFFSET + indexCount * INDEX_ENTRY_SIZE;
+			buffer.putLong(entry, latestTimestamp);
+			buffer.putLong(entry + 8, start);
+			storeFence(); // Readers must see the entry before the count that includes it
+			buffer.putInt(HEADER_INDEX_COUNT, ++indexCount);
+		}
+
+		position = start + records;
+	}
+
+	@Override
+	public void flush(){
+		// The data is already in the mapped buffer, so all that's left is to make sure it gets to the storage device
+		long now = System.currentTimeMillis();
+		if(now - lastForced >= FORCE_INTERVAL){
+			buffer.force();
+			lastForced = now;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(buffer != null) buffer.force();
+		channel.close();
+	}
+
+	@Override
+	public String toString(){
+		return "Measurement log " + directory;
+	}
+
+	/**
+	 * Opens the segment with the given number for writing, closing the current one if there is one.
+	 * @param number The segment number
+	 * @param create True to create a new, empty segment, false to open an existing one and carry on from the end of it
+	 */
+	private void openSegment(long number, boolean create) throws IOException {
+
+		if(channel != null) close(); // Rolling over from the previous segment
+
+		Path file = segmentFile(directory, number);
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = null;
+
+		if(!create){
+			// Check the existing segment is one we can write to, otherwise start a new one
+			MappedByteBuffer existing = channel.size() < HEADER_SIZE ? null
+					: map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE);
+			if(existing != null && existing.getInt(HEADER_MAGIC) == MAGIC && existing.getInt(HEADER_VERSION) == VERSION
+					&& existing.getInt(HEADER_RECORD_SIZE) == RECORD_SIZE){
+				capacity = existing.getInt(HEADER_CAPACITY);
+				indexStride = existing.getInt(HEADER_INDEX_STRIDE);
+				indexCount = existing.getInt(HEADER_INDEX_COUNT);
+				buffer = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+				segmentNumber = number;
+				// Find the end of the last complete frame, starting from the last index entry to save time
+				int start = indexCount == 0 ? 0 : (int)buffer.getLong(INDEX_OFFSET + (indexCount - 1) * INDEX_ENTRY_SIZE + 8);
+				position = findEnd(buffer, start, capacity);
+				// Carry on the index times from where they left off
+				latestTimestamp = indexCount == 0 ? Long.MIN_VALUE : buffer.getLong(INDEX_OFFSET + (indexCount - 1) * INDEX_ENTRY_SIZE);
+				for(int record = start; record < position; record += 1 + buffer.getInt(offset(record) + RECORD_ID)){
+					latestTimestamp = Math.max(latestTimestamp, buffer.getLong(offset(record) + RECORD_PAYLOAD));
+				}
+				lastForced = System.currentTimeMillis();
+				return;
+			}
+			System.err.println("Unrecognised measurement log segment " + file + ", starting a new one");
+			channel.close();
+			channel = null;
+			openSegment(number + 1, true);
+			return;
+		}
+
+		capacity = segmentRecords;
+		indexStride = (capacity + MAX_INDEX_ENTRIES - 1) / MAX_INDEX_ENTRIES;
+		indexCount = 0;
+		buffer = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+		segmentNumber = number;
+		position = 0;
+
+		buffer.putInt(HEADER_MAGIC, MAGIC);
+		buffer.putInt(HEADER_VERSION, VERSION);
+		buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+		buffer.putInt(HEADER_CAPACITY, capacity);
+		buffer.putInt(HEADER_INDEX_STRIDE, indexStride);
+		buffer.putInt(HEADER_INDEX_COUNT, 0);
+		buffer.putLong(HEADER_SEGMENT_NUMBER, number);
+		buffer.force();
+		lastForced = System.currentTimeMillis();
+	}
+
+	// Shared with MeasurementLogReader and SharedMemoryChannel
+
+	/**
+	 * Writes the given snapshot to the given buffer as a frame record followed by its segment and intersection records,
+	 * starting at the given byte offset. The frame record's type is written last, which commits the frame.
+	 * @param buffer The buffer to write to, which must be little-endian
+	 * @param offset The byte offset of the frame record
+	 * @param snapshot The snapshot to write
+	 * @return The number of records written
+	 */
+	static int putFrame(ByteBuffer buffer, int offset, MeasurementSnapshot snapshot){
+
+		int segmentCount = snapshot.getSegmentCount();
+		int intersectionCount = snapshot.getIntersectionCount();
+		int record = offset + RECORD_SIZE;
+
+		for(int i = 0; i < segmentCount; i++){
+			buffer.put(record + RECORD_TYPE, TYPE_SEGMENT);
+			buffer.putInt(record + RECORD_ID, snapshot.getSegmentId(i));
+			buffer.putDouble(record + RECORD_VALUE, snapshot.getSegmentLength(i));
+			int payload = putLine(buffer, record + RECORD_PAYLOAD, snapshot.getSegment(i));
+			putLine(buffer, payload, snapshot.getWorldSegment(i));
+			record += RECORD_SIZE;
+		}
+
+		for(int i = 0; i < intersectionCount; i++){
+			buffer.put(record + RECORD_TYPE, TYPE_INTERSECTION);
+			buffer.putInt(record + RECORD_ID, snapshot.getIntersectionId(i));
+			buffer.putDouble(record + RECORD_VALUE, snapshot.getIntersectionAngle(i));
+			int payload = putPoint(buffer, record + RECORD_PAYLOAD, snapshot.getIntersectionPoint(i));
+			payload = putPoint(buffer, payload, snapshot.getWorldIntersectionPoint(i));
+			payload = putLine(buffer, payload, snapshot.getIntersectionLineA(i));
+			putLine(buffer, payload, snapshot.getIntersectionLineB(i));
+			record += RECORD_SIZE;
+		}
+
+		byte flags = 0;
+		if(snapshot.isAligned()) flags |= FLAG_ALIGNED;
+		if(snapshot.isPartial()) flags |= FLAG_PARTIAL;
+		buffer.put(offset + RECORD_FLAGS, flags);
+		buffer.putInt(offset + RECORD_ID, segmentCount + intersectionCount);
+		buffer.putDouble(offset + RECORD_VALUE, 0);
+		buffer.putLong(offset + RECORD_PAYLOAD, snapshot.getTimestamp());
+		buffer.putLong(offset + RECORD_PAYLOAD + 8, snapshot.getFrameNumber());
+		storeFence(); // Readers must see everything else before the type
+		buffer.put(offset + RECORD_TYPE, TYPE_FRAME); // Commits the frame, so this must be last
+
+		return 1 + segmentCount + intersectionCount;
+	}
+
+	private static int putLine(ByteBuffer buffer, int offset, Line line){
+		offset = putPoint(buffer, offset, line.getStart());
+		return putPoint(buffer, offset, line.getEnd());
+	}
+
+	private static int putPoint(ByteBuffer buffer, int offset, Point point){
+		buffer.putFloat(offset, (float)point.x);
+		buffer.putFloat(offset + 4, (float)point.y);
+		return offset + 8;
+	}
+
+
+	/** Stops stores before this call from being reordered with stores after it, by the compiler or the CPU. */
+	static void storeFence(){
+		invokeFence(STORE_FENCE);
+	}
+
+	/** Stops loads before this call from being reordered with loads after it, by the compiler or the CPU. */
+	static void loadFence(){
+		invokeFence(LOAD_FENCE);
+	}
+
+	private static void invokeFence(@Nullable MethodHandle handle){
+		if(handle != null){
+			try{
+				handle.invokeExact();
+				return;
+			}catch(Throwable e){
+				throw new RuntimeException(e);
+			}
+		}
+		fence++; // A volatile access has a full barrier on every JVM we're likely to run on
+	}
+
+	/** Finds the given fence method of {@code Unsafe}, which Java 8 has no public equivalent of, or returns null if it
+	 * isn't available. */
+	@Nullable
+	private static MethodHandle findFence(String name){
+		try{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup().findVirtual(unsafeClass, name, MethodType.methodType(void.class))
+					.bindTo(field.get(null));
+		}catch(ReflectiveOperationException | RuntimeException e){
+			System.err.println("Unable to find Unsafe." + name + "(), falling back to volatile writes");
+			return null;
+		}
+	}
+
+	/** Returns the byte offset of the given record number within a segment file. */
+	static int offset(int record){
+		return HEADER_SIZE + record * RECORD_SIZE;
+	}
+
+	/** Maps the given number of bytes of the given file channel into memory, in little-endian byte order. */
+	static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(mode, 0, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/** Returns the record number just after the last complete frame in the given segment, scanning from the frame at
+	 * the given record number. */
+	static int findEnd(MappedByteBuffer buffer, int start, int capacity){
+		int record = start;
+		while(record < capacity && buffer.get(offset(record) + RECORD_TYPE) == TYPE_FRAME){
+			record += 1 + buffer.getInt(offset(record) + RECORD_ID);
+		}
+		return Math.min(record, capacity);
+	}
+
+	/** Returns the segment files in the given folder, in order. */
+	static List<Path> listSegments(Path directory) throws IOException {
+		if(!Files.isDirectory(directory)) return new ArrayList<>();
+		try(Stream<Path> files = Files.list(directory)){
+			return files.filter(f -> f.getFileName().toString().matches("\\d+\\.flog"))
+					.sorted() // Names are zero-padded, so this sorts them by number
+					.collect(Collectors.toList());
+		}
+	}
+
+	/** Returns the path of the segment file with the given number in the given folder. */
+	static Path segmentFile(Path directory, long number){
+		return directory.resolve(String.format("%010d%s", number, EXTENSION));
+	}
+
+	/** Returns the number of the given segment file. */
+	static long segmentNumber(Path file){
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+	}
+
+}
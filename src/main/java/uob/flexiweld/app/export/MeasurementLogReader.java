@@ -0,0 +1,293 @@
+package uob.flexiweld.app.export;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.Point;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+import uob.flexiweld.geom.Intersection;
+import uob.flexiweld.geom.Line;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads back a log written by {@link MeasurementLog}, one frame at a time, as {@link MeasurementSnapshot}s. The
+ * snapshots have all the measurements in them, but no averaged lines or centrelines, since those aren't logged. Image
+ * and world coordinates are stored as floats, so they may differ very slightly from the original values.
+ * <p></p>
+ * The reader starts at the beginning of the log; use {@link MeasurementLogReader#seek(long)} to jump to a given time.
+ * The log can be read while it is still being written: once {@link MeasurementLogReader#next()} reaches the end it
+ * returns null, but calling it again later will return any frames written since. The reader keeps track of where it
+ * is by segment number rather than by position in the folder listing, so old segments can be deleted while it is
+ * reading (any it hasn't got to yet are simply skipped). Readers are not thread-safe.
+ * @author Finin Quincey
+ */
+public class MeasurementLogReader implements Closeable {
+
+	/** Stands in for the contents of segments that can't be read, so they can be skipped like empty ones. */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final Path directory;
+
+	/** The number of the segment currently being read, or if none is open, the lowest number to look for next. */
+	private long segmentNumber;
+
+	@Nullable private FileChannel channel;
+	@Nullable private ByteBuffer buffer;
+	/** The number of records the current segment can hold. */
+	private int capacity;
+	/** The record number of the next frame to be read in the current segment. */
+	private int position;
+
+	private final MeasurementSnapshot.Builder builder = new MeasurementSnapshot.Builder();
+	/** Reused for the world coordinates of each segment. */
+	private final float[] world = new float[4];
+
+	/** Creates a new {@code MeasurementLogReader} for the log in the given folder. */
+	public MeasurementLogReader(Path directory){
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the next frame in the log, or null if there are no more frames (yet).
+	 * @throws IOException If a segment file could not be read
+	 */
+	@Nullable
+	public MeasurementSnapshot next() throws IOException {
+
+		while(true){
+
+			if(buffer == null && !openSegment(segmentNumber)) return null;
+
+			if(position < capacity && type(position) == MeasurementLog.TYPE_FRAME){
+				MeasurementLog.loadFence(); // Don't read any of the frame from before its type was written
+				MeasurementSnapshot snapshot = readFrame(position);
+				position += 1 + buffer.getInt(MeasurementLog.offset(position) + MeasurementLog.RECORD_ID);
+				return snapshot;
+			}
+
+			// End of this segment, but if it's the last one, the writer might not have finished with it yet
+			if(!hasSegmentAfter(segmentNumber)) return null;
+
+			closeSegment();
+			segmentNumber++; // openSegment skips ahead to the next one that actually exists
+			position = 0;
+		}
+	}
+
+	/**
+	 * Moves this reader so that the next call to {@link MeasurementLogReader#next()} returns the first frame, in the
+	 * order they were logged, by which the clock had reached the given time. The segment headers and their sparse
+	 * indices are used to get close, so only a few frames need to be scanned.
+	 * <p></p>
+	 * The clock isn't assumed to only go forwards (a Raspberry Pi has no real-time clock, so it can start up with the
+	 * wrong time and then jump when it syncs), so this goes by the latest timestamp logged so far rather than each
+	 * frame's own timestamp (see {@link MeasurementLog}). If the clock is always right, that's the same thing as the
+	 * first frame with a timestamp at or after the given time.
+	 * @param timestamp The time to seek to, in milliseconds since the epoch
+	 * @throws IOException If a segment file could not be read
+	 */
+	public void seek(long timestamp) throws IOException {
+
+		List<Path> segments = MeasurementLog.listSegments(directory);
+		closeSegment();
+
+		// Find the last segment that starts at or before the given time (the index times only ever go up, so binary search)
+		int low = 0;
+		int high = segments.size() - 1;
+		int found = 0;
+
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			if(startsBefore(segments.get(mid), timestamp)){
+				found = mid;
+				low = mid + 1;
+			}else{
+				high = mid - 1;
+			}
+		}
+
+		segmentNumber = segments.isEmpty() ? 0 : MeasurementLog.segmentNumber(segments.get(found));
+		position = 0;
+		if(!openSegment(segmentNumber)) return;
+
+		// Jump to the last index entry at or before the given time
+		long latest = Long.MIN_VALUE;
+		int count = buffer.getInt(MeasurementLog.HEADER_INDEX_COUNT);
+		MeasurementLog.loadFence(); // Don't read any of the entries from before the count was written
+		for(int i = count - 1; i >= 0; i--){
+			int entry = MeasurementLog.INDEX_OFFSET + i * MeasurementLog.INDEX_ENTRY_SIZE;
+			if(buffer.getLong(entry) <= timestamp){
+				latest = buffer.getLong(entry);
+				position = (int)buffer.getLong(entry + 8);
+				break;
+			}
+		}
+
+		// Then scan forward to the exact frame
+		while(position < capacity && type(position) == MeasurementLog.TYPE_FRAME){
+			MeasurementLog.loadFence();
+			long frameTime = frameTimestamp(position);
+			if(Math.max(latest, frameTime) >= timestamp) break;
+			latest = Math.max(latest, frameTime);
+			position += 1 + buffer.getInt(MeasurementLog.offset(position) + MeasurementLog.RECORD_ID);
+		}
+		// If we've gone past the end of this segment, next() will move on to the next one
+	}
+
+	/** Returns true if the given segment's first index entry is at or before the given time. Segments that have been
+	 * deleted count as being before it, since it's always the oldest ones that get deleted. */
+	private boolean startsBefore(Path segment, long timestamp) throws IOException {
+
+		try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)){
+			if(channel.size() < MeasurementLog.HEADER_SIZE) return false;
+			MappedByteBuffer header = MeasurementLog.map(channel, FileChannel.MapMode.READ_ONLY, MeasurementLog.HEADER_SIZE);
+			if(!isValid(header) || header.getInt(MeasurementLog.HEADER_INDEX_COUNT) == 0) return false;
+			MeasurementLog.loadFence();
+			return header.getLong(MeasurementLog.INDEX_OFFSET) <= timestamp;
+		}catch(NoSuchFileException e){
+			return true;
+		}
+	}
+
+	/** Returns true if there are any segments with a higher number than the given one. */
+	private boolean hasSegmentAfter(long number) throws IOException {
+		for(Path segment : MeasurementLog.listSegments(directory)){
+			if(MeasurementLog.segmentNumber(segment) > number) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeSegment();
+	}
+
+	/**
+	 * Opens the segment with the lowest number that is at or above the given number, and sets
+	 * {@link MeasurementLogReader#segmentNumber} to its number. Segments that aren't valid are treated as empty.
+	 * @return False if there is no such segment
+	 */
+	private boolean openSegment(long number) throws IOException {
+
+		Path segment = null;
+
+		// Keep looking until one opens, in case any get deleted in the meantime
+		while(channel == null){
+			segment = null;
+			for(Path file : MeasurementLog.listSegments(directory)){
+				if(MeasurementLog.segmentNumber(file) >= number){
+					segment = file;
+					break;
+				}
+			}
+			if(segment == null) return false;
+			try{
+				channel = FileChannel.open(segment, StandardOpenOption.READ);
+			}catch(NoSuchFileException e){
+				number = MeasurementLog.segmentNumber(segment) + 1;
+			}
+		}
+
+		segmentNumber = MeasurementLog.segmentNumber(segment);
+
+		if(channel.size() >= MeasurementLog.HEADER_SIZE){
+			MappedByteBuffer header = MeasurementLog.map(channel, FileChannel.MapMode.READ_ONLY, MeasurementLog.HEADER_SIZE);
+			if(isValid(header)){
+				capacity = header.getInt(MeasurementLog.HEADER_CAPACITY);
+				long size = MeasurementLog.HEADER_SIZE + (long)capacity * MeasurementLog.RECORD_SIZE;
+				// The writer maps the whole segment straight away, so anything shorter was cut off somehow
+				capacity = (int)Math.min(capacity, (channel.size() - MeasurementLog.HEADER_SIZE) / MeasurementLog.RECORD_SIZE);
+				buffer = MeasurementLog.map(channel, FileChannel.MapMode.READ_ONLY, Math.min(size, channel.size()));
+				return true;
+			}
+		}
+
+		System.err.println("Skipping unrecognised measurement log segment " + segment);
+		channel.close();
+		channel = null;
+		buffer = EMPTY;
+		capacity = 0; // So next() moves straight past it
+		return true;
+	}
+
+	/** Returns true if the given segment header is one this reader understands. */
+	private static boolean isValid(ByteBuffer header){
+		return header.getInt(MeasurementLog.HEADER_MAGIC) == MeasurementLog.MAGIC
+				&& header.getInt(MeasurementLog.HEADER_VERSION) == MeasurementLog.VERSION
+				&& header.getInt(MeasurementLog.HEADER_RECORD_SIZE) == MeasurementLog.RECORD_SIZE;
+	}
+
+	private void closeSegment() throws IOException {
+		if(channel != null) channel.close();
+		channel = null;
+		buffer = null; // Mapped buffers are unmapped when they are garbage collected
+	}
+
+	private byte type(int record){
+		return buffer.get(MeasurementLog.offset(record) + MeasurementLog.RECORD_TYPE);
+	}
+
+	private long frameTimestamp(int record){
+		return buffer.getLong(MeasurementLog.offset(record) + MeasurementLog.RECORD_PAYLOAD);
+	}
+
+	/** Reads the frame starting at the given record number. */
+	private MeasurementSnapshot readFrame(int record){
+
+		int offset = MeasurementLog.offset(record);
+		byte flags = buffer.get(offset + MeasurementLog.RECORD_FLAGS);
+		int count = buffer.getInt(offset + MeasurementLog.RECORD_ID);
+		long timestamp = buffer.getLong(offset + MeasurementLog.RECORD_PAYLOAD);
+		long frameNumber = buffer.getLong(offset + MeasurementLog.RECORD_PAYLOAD + 8);
+
+		builder.clear();
+
+		for(int i = 1; i <= count && record + i < capacity; i++){
+
+			offset = MeasurementLog.offset(record + i);
+			int id = buffer.getInt(offset + MeasurementLog.RECORD_ID);
+			double value = buffer.getDouble(offset + MeasurementLog.RECORD_VALUE);
+			int payload = offset + MeasurementLog.RECORD_PAYLOAD;
+
+			switch(buffer.get(offset + MeasurementLog.RECORD_TYPE)){
+
+				case MeasurementLog.TYPE_SEGMENT:
+					for(int j = 0; j < 4; j++) world[j] = buffer.getFloat(payload + 16 + j * 4);
+					builder.addSegment(line(payload), world, 0, id);
+					break;
+
+				case MeasurementLog.TYPE_INTERSECTION:
+					Line lineA = line(payload + 16);
+					Line lineB = line(payload + 32);
+					Intersection intersection = Intersection.fromPoints(lineA.getStart(), lineA.getEnd(),
+							lineB.getStart(), lineB.getEnd(), point(payload));
+					builder.addIntersection(intersection, buffer.getFloat(payload + 8), buffer.getFloat(payload + 12),
+							value, id);
+					break;
+
+				default:
+					System.err.println("Unknown record type in measurement log frame " + frameNumber);
+			}
+		}
+
+		return builder.build(frameNumber, timestamp, Collections.emptyList(), Collections.emptyList(),
+				(flags & MeasurementLog.FLAG_PARTIAL) != 0, (flags & MeasurementLog.FLAG_ALIGNED) != 0);
+	}
+
+	private Point point(int offset){
+		return new Point(buffer.getFloat(offset), buffer.getFloat(offset + 4));
+	}
+
+	private Line line(int offset){
+		return new Line(point(offset), point(offset + 8));
+	}
+
+}
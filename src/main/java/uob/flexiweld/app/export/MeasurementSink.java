@@ -0,0 +1,24 @@
+package uob.flexiweld.app.export;
+
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A destination that measurement results are exported to, such as a file or a socket. Sinks are driven by a
+ * {@link MeasurementExporter}, which calls {@link MeasurementSink#write(MeasurementSnapshot)} for each snapshot in a
+ * batch and then {@link MeasurementSink#flush()} once at the end of the batch, all on the exporter's I/O thread, so
+ * sinks don't need to be thread-safe and can buffer their output until they are flushed.
+ * <p></p>
+ * If a sink throws an {@link IOException}, the exporter assumes it is broken, closes it and stops using it.
+ * @author Finin Quincey
+ */
+public interface MeasurementSink extends Closeable, Flushable {
+
+	/** Writes the given snapshot to this sink. The output may be buffered until {@link MeasurementSink#flush()} is
+	 * called. */
+	void write(MeasurementSnapshot snapshot) throws IOException;
+
+}
@@ -0,0 +1,115 @@
+package uob.flexiweld.app.export;
+
+import org.opencv.core.Point;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+import uob.flexiweld.geom.Line;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link MeasurementSink} that appends each snapshot to a file as a single line of JSON (newline-delimited JSON).
+ * Each line looks like this (without the line breaks):
+ * <pre>
+ * {"frame":12,"timestamp":1541000000000,"aligned":true,"partial":false,
+ *  "segments":[{"id":3,"length":152.4,"image":[x1,y1,x2,y2],"world":[x1,y1,x2,y2]}],
+ *  "intersections":[{"id":4,"angle":89.9,"image":[x,y],"world":[x,y]}]}
+ * </pre>
+ * Angles are in degrees; everything else is in the units described in {@link MeasurementSnapshot}.
+ * @author Finin Quincey
+ */
+public class NdjsonSink implements MeasurementSink {
+
+	private final Path file;
+	private final Writer writer;
+	/** Reused for each line. */
+	private final StringBuilder line = new StringBuilder();
+
+	/** Creates a new {@code NdjsonSink} that appends to the given file, creating it if it doesn't exist. */
+	public NdjsonSink(Path file) throws IOException {
+		this.file = file;
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public void write(MeasurementSnapshot snapshot) throws IOException {
+		line.setLength(0);
+		format(snapshot, line);
+		line.append('\n');
+		writer.append(line);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	@Override
+	public String toString(){
+		return "NDJSON file " + file;
+	}
+
+	/** Appends the given snapshot to the given string builder as a JSON object, with no line breaks. */
+	static void format(MeasurementSnapshot snapshot, StringBuilder json){
+
+		json.append("{\"frame\":").append(snapshot.getFrameNumber())
+				.append(",\"timestamp\":").append(snapshot.getTimestamp())
+				.append(",\"aligned\":").append(snapshot.isAligned())
+				.append(",\"partial\":").append(snapshot.isPartial());
+
+		json.append(",\"segments\":[");
+		for(int i = 0; i < snapshot.getSegmentCount(); i++){
+			if(i > 0) json.append(',');
+			json.append("{\"id\":").append(snapshot.getSegmentId(i));
+			json.append(",\"length\":"); number(snapshot.getSegmentLength(i), json);
+			json.append(",\"image\":"); line(snapshot.getSegment(i), json);
+			json.append(",\"world\":"); line(snapshot.getWorldSegment(i), json);
+			json.append('}');
+		}
+
+		json.append("],\"intersections\":[");
+		for(int i = 0; i < snapshot.getIntersectionCount(); i++){
+			if(i > 0) json.append(',');
+			json.append("{\"id\":").append(snapshot.getIntersectionId(i));
+			json.append(",\"angle\":"); number(Math.toDegrees(snapshot.getIntersectionAngle(i)), json);
+			json.append(",\"image\":"); point(snapshot.getIntersectionPoint(i), json);
+			json.append(",\"world\":"); point(snapshot.getWorldIntersectionPoint(i), json);
+			json.append('}');
+		}
+
+		json.append("]}");
+	}
+
+	private static void line(Line line, StringBuilder json){
+		Point start = line.getStart();
+		Point end = line.getEnd();
+		json.append('['); number(start.x, json);
+		json.append(','); number(start.y, json);
+		json.append(','); number(end.x, json);
+		json.append(','); number(end.y, json);
+		json.append(']');
+	}
+
+	private static void point(Point point, StringBuilder json){
+		json.append('['); number(point.x, json);
+		json.append(','); number(point.y, json);
+		json.append(']');
+	}
+
+	private static void number(double value, StringBuilder json){
+		// JSON has no representation for these
+		if(Double.isNaN(value) || Double.isInfinite(value)) json.append("null");
+		else json.append(value);
+	}
+
+}
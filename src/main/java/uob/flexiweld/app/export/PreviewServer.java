@@ -0,0 +1,330 @@
+package uob.flexiweld.app.export;
+
+import com.sun.istack.internal.Nullable;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import uob.flexiweld.app.Overlay;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A small embedded HTTP server that lets the video and measurements be viewed from a web browser on another machine,
+ * so nobody needs to be at the cell (and the app's own window can be closed). It serves:
+ * <ul>
+ * <li>{@code /} - a page showing the stream and the latest results</li>
+ * <li>{@code /stream} - the annotated video as an MJPEG stream</li>
+ * <li>{@code /frame.jpg} - the latest annotated frame as a single JPEG</li>
+ * <li>{@code /results} - the latest measurement results as JSON, in the same format as {@link NdjsonSink}</li>
+ * </ul>
+ * Frames are handed over with {@link PreviewServer#offerFrame(Image, Overlay)}, which just keeps a reference to the
+ * latest one. A separate thread draws the overlay onto the frame and encodes it as a JPEG at a fixed rate, but only
+ * while someone is watching (see {@link PreviewServer#hasViewers()}), so the server costs next to nothing when it isn't
+ * being used. Requests are only ever sent JPEGs that have already been encoded, never encoded on the request thread.
+ * <p></p>
+ * There is no authentication, so the server should normally only listen on the loopback interface (and be reached
+ * through an SSH tunnel or similar); it can be opened up to the network if the cell is on a trusted one.
+ * @author Finin Quincey
+ */
+public class PreviewServer implements Consumer<MeasurementSnapshot> {
+
+	private static final String BOUNDARY = "frame";
+
+	/** How long after a request for {@code /frame.jpg} the frames keep being encoded, in milliseconds, so that a
+	 * client polling it gets an up-to-date frame each time. */
+	private static final long VIEWER_TIMEOUT = 5000;
+	/** The longest a request for {@code /frame.jpg} waits for a fresh frame to be encoded, in milliseconds. */
+	private static final long FRAME_WAIT_TIMEOUT = 2000;
+
+	private static final String INDEX_PAGE = "<!DOCTYPE html><html><head><title>Flexiweld</title></head>"
+			+ "<body style=\"background:#404040;color:#fff;font-family:sans-serif\">"
+			+ "<img src=\"/stream\" style=\"max-width:100%\"><pre id=\"results\"></pre><script>"
+			+ "setInterval(function(){fetch('/results').then(function(r){return r.json();}).then(function(j){"
+			+ "document.getElementById('results').textContent=JSON.stringify(j,null,2);});},500);"
+			+ "</script></body></html>";
+
+	private final HttpServer server;
+	/** The time between encoded frames, in milliseconds. */
+	private final long frameInterval;
+
+	/** The latest frame and its overlay, waiting to be encoded. */
+	private final AtomicReference<Frame> latestFrame = new AtomicReference<>();
+	/** The latest measurement results. */
+	private final AtomicReference<MeasurementSnapshot> latestResults = new AtomicReference<>(MeasurementSnapshot.EMPTY);
+
+	/** The number of clients currently watching the stream. */
+	private final AtomicInteger streamClients = new AtomicInteger();
+	/** The time {@code /frame.jpg} was last requested, in milliseconds since the epoch. */
+	private volatile long lastFrameRequest;
+
+	/** Guards {@link PreviewServer#jpeg} and {@link PreviewServer#jpegNumber}; stream clients wait on it. */
+	private final Object jpegLock = new Object();
+	/** The most recently encoded frame, or null if none have been encoded yet. */
+	@Nullable private byte[] jpeg;
+	/** Incremented each time a frame is encoded, so stream clients can tell when there's a new one. */
+	private long jpegNumber;
+
+	/** The image the overlay is drawn onto before encoding, reused if the size stays the same. */
+	@Nullable private BufferedImage canvas;
+	private final ByteArrayOutputStream jpegBuffer = new ByteArrayOutputStream();
+
+	private final Thread encoderThread;
+	private volatile boolean running;
+
+	/**
+	 * Creates a new {@code PreviewServer} listening on the given address and port. The server does nothing until
+	 * {@link PreviewServer#start()} is called.
+	 * @param address The address of the network interface to listen on, normally
+	 *                {@link InetAddress#getLoopbackAddress()} (see above)
+	 * @param port The port number to listen on
+	 * @param frameRate The maximum number of frames per second to encode
+	 * @throws IOException If the port could not be opened
+	 */
+	public PreviewServer(InetAddress address, int port, double frameRate) throws IOException {
+
+		this.frameInterval = (long)(1000 / frameRate);
+
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/", this::handleIndex);
+		server.createContext("/stream", this::handleStream);
+		server.createContext("/frame.jpg", this::handleFrame);
+		server.createContext("/results", this::handleResults);
+
+		// Each stream client keeps a thread busy for as long as it's connected, so they can't share a fixed pool
+		ExecutorService executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "Preview client");
+			thread.setDaemon(true); // Don't stop the app from closing
+			return thread;
+		});
+		server.setExecutor(executor);
+
+		encoderThread = new Thread(this::runEncoder, "Preview encoding");
+		encoderThread.setDaemon(true); // Don't stop the app from closing
+	}
+
+	/** Starts the server and the encoding thread. */
+	public void start(){
+		running = true;
+		server.start();
+		encoderThread.start();
+	}
+
+	/** Stops the server, disconnecting any clients. */
+	public void stop(){
+		running = false;
+		server.stop(0);
+		synchronized(jpegLock){
+			jpegLock.notifyAll(); // Let the stream clients finish
+		}
+	}
+
+	/** Returns the number of clients currently watching the stream. */
+	public int getStreamClientCount(){
+		return streamClients.get();
+	}
+
+	/** Returns true if anyone is currently watching the stream or has recently asked for a single frame, i.e. if
+	 * frames need to be offered to this server. */
+	public boolean hasViewers(){
+		return streamClients.get() > 0 || System.currentTimeMillis() - lastFrameRequest < VIEWER_TIMEOUT;
+	}
+
+	/**
+	 * Hands the given frame to the server to be streamed. This returns straight away; the frame is only encoded if
+	 * someone is watching, and frames that arrive faster than the frame rate are skipped. Offering the same image and
+	 * overlay again (as happens when there's no new frame from the camera) does nothing, so they aren't encoded again.
+	 * @param image The frame, which must not be modified afterwards
+	 * @param overlay The annotations to draw on top of the frame, or null if there aren't any
+	 */
+	public void offerFrame(Image image, @Nullable Overlay overlay){
+		Frame previous = latestFrame.get();
+		if(previous != null && previous.image == image && previous.overlay == overlay) return; // Nothing's changed
+		latestFrame.set(new Frame(image, overlay));
+	}
+
+	/** Records the given measurement results, to be returned by {@code /results}. */
+	@Override
+	public void accept(MeasurementSnapshot snapshot){
+		latestResults.set(snapshot);
+	}
+
+	/** The encoding thread's main loop. */
+	private void runEncoder(){
+
+		Frame lastEncoded = null;
+
+		while(running){
+
+			try{
+				Thread.sleep(frameInterval);
+			}catch(InterruptedException e){
+				return;
+			}
+
+			if(!hasViewers()) continue; // Nobody's watching, so don't waste time encoding
+
+			Frame frame = latestFrame.get();
+			if(frame == null || frame == lastEncoded) continue; // Nothing new to send
+
+			try{
+				byte[] data = encode(frame);
+				synchronized(jpegLock){
+					jpeg = data;
+					jpegNumber++;
+					jpegLock.notifyAll();
+				}
+				lastEncoded = frame;
+			}catch(IOException e){
+				System.err.println("Error encoding preview frame");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Draws the given frame's overlay onto it and encodes the result as a JPEG. */
+	private byte[] encode(Frame frame) throws IOException {
+
+		int width = frame.image.getWidth(null);
+		int height = frame.image.getHeight(null);
+
+		if(canvas == null || canvas.getWidth() != width || canvas.getHeight() != height){
+			canvas = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		}
+
+		Graphics2D g2d = canvas.createGraphics();
+		try{
+			g2d.drawImage(frame.image, 0, 0, null);
+			if(frame.overlay != null) frame.overlay.render(g2d);
+		}finally{
+			g2d.dispose();
+		}
+
+		jpegBuffer.reset();
+		ImageIO.write(canvas, "jpg", jpegBuffer);
+		return jpegBuffer.toByteArray();
+	}
+
+	// Request handlers
+
+	private void handleIndex(HttpExchange exchange) throws IOException {
+		if(!exchange.getRequestURI().getPath().equals("/")){
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		send(exchange, "text/html; charset=utf-8", INDEX_PAGE.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void handleResults(HttpExchange exchange) throws IOException {
+		StringBuilder json = new StringBuilder();
+		NdjsonSink.format(latestResults.get(), json);
+		send(exchange, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void handleFrame(HttpExchange exchange) throws IOException {
+
+		// If nobody was watching, the last frame encoded could be from ages ago, so wait for the encoder to catch up
+		boolean stale = !hasViewers();
+		long requestTime = System.currentTimeMillis();
+		lastFrameRequest = requestTime;
+
+		byte[] data = null;
+
+		try{
+			synchronized(jpegLock){
+				long number = jpegNumber;
+				while(running && (jpeg == null || stale && jpegNumber == number)){
+					long remaining = requestTime + FRAME_WAIT_TIMEOUT - System.currentTimeMillis();
+					if(remaining <= 0) break;
+					jpegLock.wait(remaining);
+				}
+				if(jpeg != null && !(stale && jpegNumber == number)) data = jpeg;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		if(data == null){
+			exchange.sendResponseHeaders(503, -1); // No video (yet)
+			exchange.close();
+			return;
+		}
+
+		send(exchange, "image/jpeg", data);
+	}
+
+	private void handleStream(HttpExchange exchange) throws IOException {
+
+		exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0); // Chunked, since the stream goes on indefinitely
+
+		streamClients.incrementAndGet();
+
+		try(OutputStream out = exchange.getResponseBody()){
+
+			long sent = -1;
+
+			while(running){
+
+				byte[] data;
+
+				synchronized(jpegLock){
+					while(running && (jpeg == null || jpegNumber == sent)) jpegLock.wait();
+					if(!running) break;
+					data = jpeg;
+					sent = jpegNumber;
+				}
+
+				out.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + data.length
+						+ "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(data);
+				out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+			}
+
+		}catch(IOException e){
+			// Client disconnected, nothing to worry about
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			streamClients.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private static void send(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(body);
+		}
+	}
+
+	/** A frame along with the overlay to be drawn on it. */
+	private static final class Frame {
+
+		private final Image image;
+		@Nullable private final Overlay overlay;
+
+		private Frame(Image image, @Nullable Overlay overlay){
+			this.image = image;
+			this.overlay = overlay;
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+package uob.flexiweld.app.export;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import uob.flexiweld.app.VideoFeed;
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Publishes processed video frames and measurement results into a memory-mapped file, so that other processes on the
+ * same machine (e.g. the robot controller) can read them straight out of memory, without any sockets or copying. The
+ * file should be on a RAM-backed file system such as {@code /dev/shm}. Frames are published by the {@link VideoFeed}
+ * (see {@link VideoFeed#setSharedMemoryChannel(SharedMemoryChannel)}) and results by registering the channel as a
+ * snapshot listener.
+ * <p></p>
+ * The file has a header followed by a ring of {@link SharedMemoryChannel#SLOT_COUNT} frame slots and then a ring of
+ * the same number of result slots. Each new frame or result goes in the next slot round, so a reader working on the
+ * latest one is never disturbed unless it takes longer than two more frames to read it. Each slot is protected by a
+ * seqlock: the slot's version number is made odd before the slot is written and even again afterwards, so a reader
+ * can tell that what it read is consistent by checking the version was the same even number before and after.
+ * <p></p>
+ * All values are little-endian. The file header (4096 bytes) holds:
+ * <pre>
+ *  0  int   magic ("FSHM", written last, once everything else is ready)
+ *  4  int   version
+ *  8  int   number of slots in each ring
+ * 12  int   frame slot data capacity, in bytes
+ * 16  int   result slot capacity, in records
+ * 20  int   record size, in bytes
+ * 24  long  sequence number of the latest frame (0 if there hasn't been one yet)
+ * 32  long  sequence number of the latest result (0 if there hasn't been one yet)
+ * </pre>
+ * The frame with sequence number {@code n} is in frame slot {@code n % slots}, and likewise for results. Each slot has
+ * a 64-byte header, followed by the data:
+ * <pre>
+ *  0  long  version (seqlock)
+ *  8  long  sequence number (results have the sequence number of the frame they were measured from)
+ * 16  long  timestamp, in milliseconds since the epoch
+ * 24  int   frames: width, results: number of records
+ * 28  int   frames: height
+ * 32  int   frames: OpenCV type (CV_8UC1 for greyscale, CV_8UC3 for BGR)
+ * 36  int   frames: bytes per row
+ * 40  int   frames: data length, in bytes
+ * </pre>
+ * Frame data is the raw pixels, row by row, copied straight in from the frame's own memory. Every processed frame
+ * gets a sequence number and a slot, even if it can't be published (because it is too big or isn't 8-bit), so that
+ * the results always match up with a frame slot; such frames have a data length of 0. Result data is a frame record
+ * followed by segment and intersection records, in exactly the same format as {@link MeasurementLog}. Frame slots
+ * start on a 4096-byte boundary.
+ * <p></p>
+ * When the channel is closed, the magic number is cleared again, which tells readers that nothing more is coming.
+ * @author Finin Quincey
+ */
+public class SharedMemoryChannel implements Consumer<MeasurementSnapshot>, Closeable {
+
+	/** Enough data capacity for a 1080p colour frame. */
+	public static final int DEFAULT_FRAME_CAPACITY = 1920 * 1080 * 3;
+	/** The number of slots in each ring. */
+	public static final int SLOT_COUNT = 3;
+	/** The maximum number of records in each result. */
+	public static final int RESULT_CAPACITY = 1024;
+
+	static final int MAGIC = 0x4d485346;
+	static final int VERSION = 1;
+
+	private static final int PAGE_SIZE = 4096;
+	private static final int HEADER_SIZE = PAGE_SIZE;
+	private static final int SLOT_HEADER_SIZE = 64;
+
+	// Header layout
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_SLOT_COUNT = 8;
+	private static final int HEADER_FRAME_CAPACITY = 12;
+	private static final int HEADER_RESULT_CAPACITY = 16;
+	private static final int HEADER_RECORD_SIZE = 20;
+	private static final int HEADER_LATEST_FRAME = 24;
+	private static final int HEADER_LATEST_RESULT = 32;
+
+	// Slot header layout
+	private static final int SLOT_VERSION = 0;
+	private static final int SLOT_SEQUENCE = 8;
+	private static final int SLOT_TIMESTAMP = 16;
+	private static final int SLOT_WIDTH = 24;
+	private static final int SLOT_RECORDS = 24;
+	private static final int SLOT_HEIGHT = 28;
+	private static final int SLOT_TYPE = 32;
+	private static final int SLOT_STEP = 36;
+	private static final int SLOT_LENGTH = 40;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	/** Matrices backed by the pixel data of each frame slot, so frames can be copied straight into them, or null
+	 * until they are first needed. These are replaced if the frame size or type changes. */
+	private final Mat[] slotPixels = new Mat[SLOT_COUNT];
+
+	private final int frameCapacity;
+	private final int frameSlotSize;
+	private final int resultSlotSize;
+	private final int resultsOffset;
+
+	/** The sequence number of the latest frame published. */
+	private long frameSequence;
+	/** The sequence number of the latest result published. */
+	private long resultSequence;
+	/** Whether we've already complained about a frame that can't be published, so it doesn't happen every frame. */
+	private boolean warned;
+	/** Whether this channel has been closed. */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new {@code SharedMemoryChannel} in the given file, replacing anything that was in it before.
+	 * @param file The file to map, which should be on a RAM-backed file system
+	 * @param frameCapacity The maximum size of a frame, in bytes; larger frames are published without their data
+	 * @throws IOException If the file could not be created or mapped
+	 */
+	public SharedMemoryChannel(Path file, int frameCapacity) throws IOException {
+
+		this.file = file;
+		this.frameCapacity = frameCapacity;
+		this.frameSlotSize = roundToPage(SLOT_HEADER_SIZE + frameCapacity);
+		this.resultSlotSize = SLOT_HEADER_SIZE + RESULT_CAPACITY * MeasurementLog.RECORD_SIZE;
+		this.resultsOffset = HEADER_SIZE + SLOT_COUNT * frameSlotSize;
+
+		long size = resultsOffset + (long)SLOT_COUNT * resultSlotSize;
+
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.truncate(0); // Clear out any stale data from last time, so readers don't pick it up
+		buffer = MeasurementLog.map(channel, FileChannel.MapMode.READ_WRITE, size);
+
+		buffer.putInt(HEADER_VERSION, VERSION);
+		buffer.putInt(HEADER_SLOT_COUNT, SLOT_COUNT);
+		buffer.putInt(HEADER_FRAME_CAPACITY, frameCapacity);
+		buffer.putInt(HEADER_RESULT_CAPACITY, RESULT_CAPACITY);
+		buffer.putInt(HEADER_RECORD_SIZE, MeasurementLog.RECORD_SIZE);
+		buffer.putLong(HEADER_LATEST_FRAME, 0);
+		buffer.putLong(HEADER_LATEST_RESULT, 0);
+		MeasurementLog.storeFence();
+		buffer.putInt(HEADER_MAGIC, MAGIC); // Tells readers the layout is ready
+	}
+
+	/**
+	 * Publishes the given frame. This must be called for every frame processed, always from the same thread as
+	 * {@link SharedMemoryChannel#accept(MeasurementSnapshot)}. Frames that are too big or aren't 8-bit still take up a
+	 * slot, but without any data (see above).
+	 * @param frame The frame to publish (8-bit, 1 or 3 channels)
+	 * @param timestamp The time the frame was captured, in milliseconds since the epoch
+	 */
+	public void publishFrame(Mat frame, long timestamp){
+
+		int length = (int)(frame.total() * frame.elemSize());
+		boolean publishable = frame.depth() == CvType.CV_8U && length <= frameCapacity;
+
+		if(!publishable && !warned){
+			System.err.println("Frame can't be published to shared memory (type " + CvType.typeToString(frame.type())
+					+ ", " + length + " bytes), publishing empty frames instead");
+			warned = true;
+		}
+
+		long sequence = frameSequence + 1;
+		int index = (int)(sequence % SLOT_COUNT);
+		int slot = HEADER_SIZE + index * frameSlotSize;
+
+		long version = beginWrite(slot);
+
+		buffer.putLong(slot + SLOT_SEQUENCE, sequence);
+		buffer.putLong(slot + SLOT_TIMESTAMP, timestamp);
+		buffer.putInt(slot + SLOT_WIDTH, frame.cols());
+		buffer.putInt(slot + SLOT_HEIGHT, frame.rows());
+		buffer.putInt(slot + SLOT_TYPE, frame.type());
+		buffer.putInt(slot + SLOT_STEP, frame.cols() * (int)frame.elemSize());
+		buffer.putInt(slot + SLOT_LENGTH, publishable ? length : 0);
+		// Straight from the frame's memory to the mapped memory, with no Java array in between
+		if(publishable) frame.copyTo(getSlotPixels(index, slot, frame));
+
+		endWrite(slot, version);
+
+		buffer.putLong(HEADER_LATEST_FRAME, sequence);
+		frameSequence = sequence;
+	}
+
+	/** Publishes the given measurement results, tagged with the sequence number of the frame that will be published
+	 * next (since results are produced before the frame they were measured from is published). */
+	@Override
+	public void accept(MeasurementSnapshot snapshot){
+
+		if(1 + snapshot.getSegmentCount() + snapshot.getIntersectionCount() > RESULT_CAPACITY) return;
+
+		long sequence = resultSequence + 1;
+		int slot = resultsOffset + (int)(sequence % SLOT_COUNT) * resultSlotSize;
+
+		long version = beginWrite(slot);
+
+		buffer.putLong(slot + SLOT_SEQUENCE, frameSequence + 1);
+		buffer.putLong(slot + SLOT_TIMESTAMP, snapshot.getTimestamp());
+		int records = MeasurementLog.putFrame(buffer, slot + SLOT_HEADER_SIZE, snapshot);
+		buffer.putInt(slot + SLOT_RECORDS, records);
+
+		endWrite(slot, version);
+
+		buffer.putLong(HEADER_LATEST_RESULT, sequence);
+		resultSequence = sequence;
+	}
+
+	/** Clears the magic number, so readers know nothing more is coming, and closes the file. The mapping itself stays
+	 * valid until it is garbage collected, so a frame or result being published at the same time does no harm. */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		buffer.putInt(HEADER_MAGIC, 0);
+		buffer.force();
+		channel.close();
+	}
+
+	@Override
+	public String toString(){
+		return "Shared memory " + file;
+	}
+
+	/** Returns the matrix backed by the pixel data of the frame slot with the given index and offset, with the same size
+	 * and type as the given frame (which must fit in the slot). */
+	private Mat getSlotPixels(int index, int slot, Mat frame){
+		Mat pixels = slotPixels[index];
+		if(pixels == null || pixels.rows() != frame.rows() || pixels.cols() != frame.cols() || pixels.type() != frame.type()){
+			ByteBuffer data = buffer.duplicate();
+			data.position(slot + SLOT_HEADER_SIZE);
+			// Only the matrix header is allocated, the data stays in the mapped memory (copyTo won't reallocate it,
+			// since the size and type will always match)
+			pixels = new Mat(frame.rows(), frame.cols(), frame.type(), data.slice());
+			slotPixels[index] = pixels;
+		}
+		return pixels;
+	}
+
+	/** Marks the slot at the given offset as being written, and returns its new (odd) version number. */
+	private long beginWrite(int slot){
+		long version = buffer.getLong(slot + SLOT_VERSION) + 1;
+		buffer.putLong(slot + SLOT_VERSION, version);
+		MeasurementLog.storeFence(); // Readers must see the odd version before any of the new data
+		return version;
+	}
+
+	/** Marks the slot at the given offset as finished, given the version number returned by
+	 * {@link SharedMemoryChannel#beginWrite(int)}. */
+	private void endWrite(int slot, long version){
+		MeasurementLog.storeFence(); // Readers must see all the new data before the even version
+		buffer.putLong(slot + SLOT_VERSION, version + 1);
+		MeasurementLog.storeFence();
+	}
+
+	private static int roundToPage(int size){
+		return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+}
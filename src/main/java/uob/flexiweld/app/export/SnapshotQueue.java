@@ -0,0 +1,178 @@
+package uob.flexiweld.app.export;
+
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of {@link MeasurementSnapshot}s, which hands snapshots from the processing thread to the
+ * {@link MeasurementExporter}'s I/O thread. The queue is a ring of slots, each holding a snapshot along with its
+ * position in the sequence of snapshots offered, so the consumer can tell if a slot has been overwritten. Offering
+ * never takes a lock, and with {@link Backpressure#DROP_OLDEST} it never waits either, so the processing thread can't be
+ * held up however slow the sinks are.
+ * <p></p>
+ * Any number of threads may offer snapshots, but only one thread may drain them.
+ * @author Finin Quincey
+ */
+public class SnapshotQueue {
+
+	/** What to do when a snapshot is offered and the queue is full. */
+	public enum Backpressure {
+
+		/** Overwrite the oldest snapshot in the queue. The producer never waits, but snapshots are lost if the sinks
+		 * can't keep up. */
+		DROP_OLDEST,
+		/** Wait until the consumer has made space, for up to {@link SnapshotQueue#MAX_BLOCK_TIME}. No snapshots are
+		 * lost unless a sink stalls, but the producer is slowed down to the speed of the sinks. If the wait times out,
+		 * the new snapshot is dropped instead, since the producer is normally the EDT and mustn't be frozen. */
+		BLOCK;
+
+		/** Returns the backpressure policy with the given name (case-insensitive, with dashes in place of underscores,
+		 * e.g. {@code drop-oldest}). */
+		public static Backpressure parse(String name){
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/** The time to wait between checks for space when blocking, in nanoseconds. */
+	private static final long BLOCK_WAIT_TIME = 100_000;
+	/** The longest a producer waits for space when blocking, in nanoseconds. */
+	private static final long MAX_BLOCK_TIME = 100_000_000;
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int capacity;
+	private final Backpressure backpressure;
+
+	/** The sequence number of the next snapshot to be offered. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The sequence number of the next snapshot to be drained. Only written by the consumer. */
+	private final AtomicLong head = new AtomicLong();
+	/** The number of snapshots that were overwritten before they could be drained, or never added because the wait for
+	 * space timed out. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new {@code SnapshotQueue}.
+	 * @param capacity The maximum number of snapshots the queue can hold
+	 * @param backpressure What to do when the queue is full
+	 */
+	public SnapshotQueue(int capacity, Backpressure backpressure){
+		if(capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.capacity = capacity;
+		this.backpressure = backpressure;
+	}
+
+	/** Returns the backpressure policy for this queue. */
+	public Backpressure getBackpressure(){
+		return backpressure;
+	}
+
+	/** Returns the total number of snapshots that were dropped because the queue was full. */
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+
+	/** Returns the approximate number of snapshots currently in the queue. */
+	public int size(){
+		return (int)Math.min(Math.max(tail.get() - head.get(), 0), capacity);
+	}
+
+	/**
+	 * Adds the given snapshot to the queue. If the queue is full, this either overwrites the oldest snapshot or waits
+	 * for space, depending on the {@link Backpressure} policy.
+	 * @param snapshot The snapshot to add
+	 * @return True if the snapshot was added, false if the queue has been closed or there was no space in time (in
+	 * which case the snapshot is counted as dropped)
+	 */
+	public boolean offer(MeasurementSnapshot snapshot){
+
+		if(backpressure == Backpressure.BLOCK){
+			long deadline = System.nanoTime() + MAX_BLOCK_TIME;
+			while(tail.get() - head.get() >= capacity){
+				if(closed) return false;
+				if(System.nanoTime() - deadline >= 0){
+					dropped.incrementAndGet(); // A sink has probably stalled, don't freeze the app waiting for it
+					return false;
+				}
+				LockSupport.parkNanos(BLOCK_WAIT_TIME);
+			}
+		}
+
+		if(closed) return false;
+
+		long seq = tail.getAndIncrement();
+		slots.set(index(seq), new Entry(seq, snapshot));
+		return true;
+	}
+
+	/**
+	 * Removes up to the given number of snapshots from the queue, oldest first, and adds them to the given list.
+	 * Snapshots that were overwritten before they could be drained are skipped and counted as dropped.
+	 * @param batch The list to add the snapshots to
+	 * @param max The maximum number of snapshots to remove
+	 * @return The number of snapshots removed
+	 */
+	public int drainTo(List<MeasurementSnapshot> batch, int max){
+
+		long h = head.get();
+		long t = tail.get();
+
+		// If the producer has lapped us, skip straight to the oldest snapshot that can still be in the queue
+		if(t - h > capacity){
+			dropped.addAndGet(t - capacity - h);
+			h = t - capacity;
+		}
+
+		int n = 0;
+
+		while(h < t && n < max){
+			Entry entry = slots.get(index(h));
+			if(entry == null || entry.seq < h) break; // Offered but not stored yet, try again next time
+			if(entry.seq == h){
+				batch.add(entry.snapshot);
+				slots.compareAndSet(index(h), entry, null); // Don't keep the snapshot alive any longer than necessary
+				n++;
+			}else{
+				dropped.incrementAndGet(); // Overwritten by a newer snapshot, which we'll get to later
+			}
+			h++;
+		}
+
+		head.set(h);
+		return n;
+	}
+
+	/** Closes this queue, so no more snapshots can be offered and any producers that are waiting for space give up.
+	 * Snapshots already in the queue can still be drained. */
+	public void close(){
+		closed = true;
+	}
+
+	/** Returns true if this queue has been closed. */
+	public boolean isClosed(){
+		return closed;
+	}
+
+	private int index(long seq){
+		return (int)(seq % capacity);
+	}
+
+	/** A snapshot along with its sequence number. */
+	private static final class Entry {
+
+		private final long seq;
+		private final MeasurementSnapshot snapshot;
+
+		private Entry(long seq, MeasurementSnapshot snapshot){
+			this.seq = seq;
+			this.snapshot = snapshot;
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package uob.flexiweld.app.export;
+
+import uob.flexiweld.app.mode.MeasurementSnapshot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link MeasurementSink} that listens on a local TCP port and streams each snapshot to every connected client, in
+ * the same newline-delimited JSON format as {@link NdjsonSink}. Clients only receive snapshots from after they
+ * connected. New connections are accepted each time the sink is flushed, so no extra thread is needed. A client that
+ * disconnects (or can't be written to) is dropped without affecting the others.
+ * <p></p>
+ * Writes to clients never block, so a slow client can't hold up the exporter (or the other clients). Whatever a client
+ * won't take straight away is kept in a buffer of its own and sent on later flushes, and a client that falls more than
+ * {@link TcpSink#MAX_CLIENT_BACKLOG} bytes behind (e.g. because it has stopped reading) is disconnected.
+ * <p></p>
+ * The socket is bound to the loopback address only, so results can't be read from other machines on the network.
+ * @author Finin Quincey
+ */
+public class TcpSink implements MeasurementSink {
+
+	/** The most data that can be waiting to be sent to each client, in bytes. */
+	private static final int MAX_CLIENT_BACKLOG = 256 * 1024;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/** A connected client, along with the data that couldn't be sent to it yet. */
+	private static final class Client {
+
+		final SocketChannel channel;
+		/** The client's address, for messages. This is looked up once, since it can't be once the channel is closed. */
+		final String address;
+		/** Data waiting to be sent, ready to be added to (i.e. flip it to read from it). */
+		final ByteBuffer backlog = ByteBuffer.allocate(MAX_CLIENT_BACKLOG);
+
+		Client(SocketChannel channel, String address){
+			this.channel = channel;
+			this.address = address;
+		}
+
+		/**
+		 * Sends as much of the backlog followed by the given data as the client will take without blocking, and adds
+		 * the rest of the data to the backlog.
+		 * @return False if the rest of the data wouldn't fit in the backlog, true otherwise
+		 */
+		boolean send(ByteBuffer data) throws IOException {
+
+			if(backlog.position() > 0){
+				backlog.flip();
+				channel.write(backlog);
+				backlog.compact();
+			}
+
+			// The new data can only go straight out if there's nothing older still waiting
+			if(backlog.position() == 0) channel.write(data);
+
+			if(data.remaining() > backlog.remaining()) return false;
+			backlog.put(data);
+			return true;
+		}
+	}
+
+	private final ServerSocketChannel server;
+	private final List<Client> clients = new ArrayList<>();
+	/** The lines written since the last flush. */
+	private final StringBuilder pending = new StringBuilder();
+
+	/**
+	 * Creates a new {@code TcpSink} listening on the given port.
+	 * @param port The port number to listen on
+	 * @throws IOException If the port could not be opened (e.g. because it is in use)
+	 */
+	public TcpSink(int port) throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		server.configureBlocking(false); // So accept() returns straight away if nobody is waiting
+	}
+
+	@Override
+	public void write(MeasurementSnapshot snapshot){
+		NdjsonSink.format(snapshot, pending);
+		pending.append('\n');
+	}
+
+	@Override
+	public void flush() throws IOException {
+
+		SocketChannel channel;
+		while((channel = server.accept()) != null){
+			channel.configureBlocking(false);
+			clients.add(new Client(channel, String.valueOf(channel.socket().getRemoteSocketAddress())));
+		}
+
+		// Even with nothing new, there may be backlogs left over from last time
+		ByteBuffer buffer = pending.length() == 0 ? EMPTY : ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+		pending.setLength(0);
+
+		for(Iterator<Client> iterator = clients.iterator(); iterator.hasNext();){
+			Client client = iterator.next();
+			try{
+				if(!client.send(buffer.duplicate())){ // Duplicate so each client gets the data from the start
+					System.err.println("Measurement client " + client.address + " has stopped reading, disconnecting");
+					iterator.remove();
+					disconnect(client);
+				}
+			}catch(IOException e){
+				System.err.println("Measurement client " + client.address + " disconnected");
+				iterator.remove();
+				disconnect(client);
+			}
+		}
+	}
+
+	/** Closes the given client's connection. Any error is ignored, since the client is being dropped anyway and it
+	 * mustn't stop the other clients being served. */
+	private static void disconnect(Client client){
+		try{
+			client.channel.close();
+		}catch(IOException e){
+			// Nothing more we can do
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(Client client : clients) client.channel.close();
+		clients.clear();
+		server.close();
+	}
+
+	@Override
+	public String toString(){
+		try{
+			return "TCP socket " + server.getLocalAddress();
+		}catch(IOException e){
+			return "TCP socket";
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package uob.flexiweld.app.metrics;
+
+import com.sun.istack.internal.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link Metric} that only ever goes up, e.g. the number of frames processed. Counters can either be incremented
+ * directly, which is safe (and cheap) from any thread, or read their value from somewhere else that is already
+ * counting, such as the number of snapshots dropped by a queue.
+ * @author Finin Quincey
+ */
+public class Counter extends Metric {
+
+	private final LongAdder count = new LongAdder();
+	/** Where the value comes from, or null if the counter is incremented directly. */
+	@Nullable private final LongSupplier source;
+
+	Counter(String name, String help, String labels, @Nullable LongSupplier source){
+		super(name, help, labels);
+		this.source = source;
+	}
+
+	/** Adds one to this counter. */
+	public void increment(){
+		count.increment();
+	}
+
+	/** Adds the given amount to this counter, which must not be negative. */
+	public void add(long amount){
+		count.add(amount);
+	}
+
+	/** Returns the current value of this counter. */
+	public long get(){
+		return source == null ? count.sum() : source.getAsLong();
+	}
+
+	@Override
+	public String getType(){
+		return "counter";
+	}
+
+	@Override
+	protected void write(StringBuilder out){
+		writeSample(out, "", "", get());
+	}
+
+}
@@ -0,0 +1,112 @@
+package uob.flexiweld.app.metrics;
+
+/**
+ * Follows a single camera frame through the pipeline, from the moment it was captured to the moment it was painted on
+ * screen or its results were written out, so the end-to-end latency can be measured. For correcting the robot's path
+ * on the fly, how old the measurements are matters more than how many of them there are.
+ * <p></p>
+ * A trace is created by the {@link uob.flexiweld.app.Camera} for each frame it reads and passed along with the frame
+ * and its results. Each time the frame reaches a {@link Stage}, the time since capture is recorded in that stage's
+ * latency histogram. Each stage is only counted the first time it is reached, so repainting the same frame (e.g. when
+ * the window is resized) doesn't count as extra latency. All times are from {@link System#nanoTime()}.
+ * <p></p>
+ * Different stages may be marked by different threads, but each stage must only be marked by one thread.
+ * @author Finin Quincey
+ */
+public final class FrameTrace {
+
+	/** The points in the pipeline at which latency is measured, in the order frames normally reach them. */
+	public enum Stage {
+
+		/** The frame has been read from the camera driver. */
+		READ(Metrics.READ_LATENCY),
+		/** The frame has been picked up from the camera by the video feed. */
+		DEQUEUE(Metrics.DEQUEUE_LATENCY),
+		/** The capture mode has finished processing the frame. */
+		PROCESS(Metrics.PROCESS_LATENCY),
+		/** The frame has been published to the shared memory channel. */
+		SHARED_MEMORY(Metrics.SHARED_MEMORY_LATENCY),
+		/** The frame has been scaled and converted for display. */
+		DISPLAY(Metrics.DISPLAY_LATENCY),
+		/** The frame has been painted in the app window. */
+		PAINT(Metrics.PAINT_LATENCY),
+		/** The frame's results have been written to the export sinks. */
+		EXPORT(Metrics.EXPORT_LATENCY);
+
+		private final Histogram latency;
+
+		Stage(Histogram latency){
+			this.latency = latency;
+		}
+	}
+
+	/** Driver timestamps more than this far behind the time the frame was read are assumed to be on a different
+	 * clock, in nanoseconds. */
+	private static final long MAX_DRIVER_LATENCY = 1_000_000_000;
+
+	private static final Stage[] STAGES = Stage.values();
+
+	/** The time the frame was captured. */
+	private final long captureTime;
+	/** The time the frame was captured, in milliseconds since the epoch. */
+	private final long captureTimeMillis;
+	/** Whether the capture time came from the camera driver, rather than the time the frame was read. */
+	private final boolean driverTimestamp;
+	/** The time each stage was reached, or 0 if it hasn't been (yet). */
+	private final long[] marks = new long[STAGES.length];
+
+	/**
+	 * Creates a new {@code FrameTrace} for a frame that has just been read from the camera, and marks the
+	 * {@link Stage#READ} stage.
+	 * @param driverTimestamp The capture time reported by the camera driver, in milliseconds (OpenCV's
+	 *                        {@code CAP_PROP_POS_MSEC}), or 0 if there isn't one. This is only used if it looks like it
+	 *                        is on the same clock as {@link System#nanoTime()} - true of V4L2 on Linux, where both use
+	 *                        the monotonic clock - otherwise the time the frame was read is used instead, which misses
+	 *                        out the exposure and transfer time.
+	 */
+	public FrameTrace(double driverTimestamp){
+
+		long now = System.nanoTime();
+		long driverTime = (long)(driverTimestamp * 1e6);
+
+		this.driverTimestamp = driverTime > 0 && now - driverTime >= 0 && now - driverTime < MAX_DRIVER_LATENCY;
+		this.captureTime = this.driverTimestamp ? driverTime : now;
+		this.captureTimeMillis = System.currentTimeMillis() - (now - captureTime) / 1_000_000;
+
+		mark(Stage.READ, now);
+	}
+
+	/** Returns the {@link System#nanoTime()} at which the frame was captured. */
+	public long getCaptureTime(){
+		return captureTime;
+	}
+
+	/** Returns the time at which the frame was captured, in milliseconds since the epoch. */
+	public long getCaptureTimeMillis(){
+		return captureTimeMillis;
+	}
+
+	/** Returns true if the capture time came from the camera driver, false if it is the time the frame was read. */
+	public boolean isDriverTimestamp(){
+		return driverTimestamp;
+	}
+
+	/** Returns the time between capture and the given stage in nanoseconds, or -1 if the stage hasn't been reached. */
+	public long getLatency(Stage stage){
+		long mark = marks[stage.ordinal()];
+		return mark == 0 ? -1 : mark - captureTime;
+	}
+
+	/** Records that the frame has reached the given stage now, if it hasn't already. */
+	public void mark(Stage stage){
+		mark(stage, System.nanoTime());
+	}
+
+	private void mark(Stage stage, long time){
+		int i = stage.ordinal();
+		if(marks[i] != 0) return;
+		marks[i] = time;
+		stage.latency.observe((time - captureTime) / 1e9);
+	}
+
+}
@@ -0,0 +1,34 @@
+package uob.flexiweld.app.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A {@link Metric} that can go up and down, e.g. the camera framerate. The value is read from the given supplier each
+ * time the metrics are collected, so gauges cost nothing between collections.
+ * @author Finin Quincey
+ */
+public class Gauge extends Metric {
+
+	private final DoubleSupplier source;
+
+	Gauge(String name, String help, String labels, DoubleSupplier source){
+		super(name, help, labels);
+		this.source = source;
+	}
+
+	/** Returns the current value of this gauge. */
+	public double get(){
+		return source.getAsDouble();
+	}
+
+	@Override
+	public String getType(){
+		return "gauge";
+	}
+
+	@Override
+	protected void write(StringBuilder out){
+		writeSample(out, "", "", get());
+	}
+
+}
@@ -0,0 +1,73 @@
+package uob.flexiweld.app.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A {@link Metric} that counts observations in a fixed set of buckets, e.g. how long each frame takes to process.
+ * Observing a value is lock-free and safe from any thread, so histograms can be used in the processing loop.
+ * @author Finin Quincey
+ */
+public class Histogram extends Metric {
+
+	/** Buckets for timings in seconds, from 1ms to 1s. */
+	public static final double[] TIMING_BUCKETS = {0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1};
+	/** Buckets for small counts, such as the number of lines in a frame. */
+	public static final double[] COUNT_BUCKETS = {0, 1, 2, 4, 8, 16, 32, 64};
+
+	/** The upper bounds of the buckets, in ascending order (the +Inf bucket is implied). */
+	private final double[] bounds;
+	/** The number of observations in each bucket (not cumulative), with the +Inf bucket on the end. */
+	private final AtomicLongArray counts;
+	private final DoubleAdder sum = new DoubleAdder();
+
+	Histogram(String name, String help, String labels, double[] bounds){
+		super(name, help, labels);
+		this.bounds = bounds.clone();
+		this.counts = new AtomicLongArray(bounds.length + 1);
+	}
+
+	/** Records the given value. */
+	public void observe(double value){
+		int i = 0;
+		while(i < bounds.length && value > bounds[i]) i++;
+		counts.incrementAndGet(i);
+		sum.add(value);
+	}
+
+	/**
+	 * Records the time since the given value of {@link System#nanoTime()}, in seconds, and returns the current value
+	 * of {@link System#nanoTime()}. This makes it easy to time consecutive stages:
+	 * <pre>
+	 * long time = System.nanoTime();
+	 * doFirstStage();
+	 * time = FIRST_STAGE.time(time);
+	 * doSecondStage();
+	 * SECOND_STAGE.time(time);
+	 * </pre>
+	 */
+	public long time(long start){
+		long now = System.nanoTime();
+		observe((now - start) / 1e9);
+		return now;
+	}
+
+	@Override
+	public String getType(){
+		return "histogram";
+	}
+
+	@Override
+	protected void write(StringBuilder out){
+		long cumulative = 0;
+		for(int i = 0; i < bounds.length; i++){
+			cumulative += counts.get(i);
+			writeSample(out, "_bucket", "le=\"" + formatValue(bounds[i]) + "\"", cumulative);
+		}
+		cumulative += counts.get(bounds.length);
+		writeSample(out, "_bucket", "le=\"+Inf\"", cumulative);
+		writeSample(out, "_sum", "", sum.sum());
+		writeSample(out, "_count", "", cumulative);
+	}
+
+}
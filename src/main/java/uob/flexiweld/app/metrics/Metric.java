@@ -0,0 +1,64 @@
+package uob.flexiweld.app.metrics;
+
+/**
+ * Base class for the metrics in a {@link MetricsRegistry}. Each metric has a name and help text, which it may share
+ * with other metrics that have different labels (e.g. one timing histogram per processing stage), and knows how to
+ * write its current value(s) in the Prometheus text exposition format.
+ * @author Finin Quincey
+ */
+public abstract class Metric {
+
+	private final String name;
+	private final String help;
+	/** The labels for this metric, already formatted (e.g. {@code stage="undistort"}), or an empty string. */
+	private final String labels;
+
+	protected Metric(String name, String help, String labels){
+		this.name = name;
+		this.help = help;
+		this.labels = labels;
+	}
+
+	/** Returns the name of this metric. */
+	public String getName(){
+		return name;
+	}
+
+	/** Returns the help text for this metric. */
+	public String getHelp(){
+		return help;
+	}
+
+	/** Returns the labels for this metric, formatted as they appear between the braces, or an empty string. */
+	public String getLabels(){
+		return labels;
+	}
+
+	/** Returns the Prometheus type of this metric ({@code counter}, {@code gauge} or {@code histogram}). */
+	public abstract String getType();
+
+	/** Appends the sample lines for this metric to the given string builder (not including the HELP and TYPE lines,
+	 * which are shared between all the metrics with the same name). */
+	protected abstract void write(StringBuilder out);
+
+	/** Appends a single sample line with the given name suffix, extra label and value. */
+	protected void writeSample(StringBuilder out, String suffix, String extraLabel, double value){
+		out.append(name).append(suffix);
+		if(!labels.isEmpty() || !extraLabel.isEmpty()){
+			out.append('{').append(labels);
+			if(!labels.isEmpty() && !extraLabel.isEmpty()) out.append(',');
+			out.append(extraLabel).append('}');
+		}
+		out.append(' ').append(formatValue(value)).append('\n');
+	}
+
+	/** Formats the given value the way Prometheus expects. */
+	static String formatValue(double value){
+		if(Double.isNaN(value)) return "NaN";
+		if(value == Double.POSITIVE_INFINITY) return "+Inf";
+		if(value == Double.NEGATIVE_INFINITY) return "-Inf";
+		if(value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long)value);
+		return Double.toString(value);
+	}
+
+}
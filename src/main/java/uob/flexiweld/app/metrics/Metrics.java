@@ -0,0 +1,118 @@
+package uob.flexiweld.app.metrics;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The metrics for the vision pipeline, in a single default {@link MetricsRegistry}. The metrics that are recorded from
+ * inside the pipeline (timings, frame counts, etc.) are defined here so they can be used from anywhere without passing
+ * a registry around; recording them is cheap enough to do whether or not anything is collecting them. Metrics that
+ * read from a particular object (e.g. the video feed's framerate) are added to {@link Metrics#REGISTRY} by whoever
+ * creates that object.
+ * @author Finin Quincey
+ */
+public final class Metrics {
+
+	/** The registry all the pipeline metrics are in. */
+	public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+	/** The prefix for all the metric names. */
+	public static final String PREFIX = "flexiweld_";
+
+	// Frames
+
+	public static final Counter FRAMES_PROCESSED = REGISTRY.counter(PREFIX + "frames_processed_total",
+			"Number of camera frames processed.");
+	public static final Counter CAMERA_FRAMES_CAPTURED = REGISTRY.counter(PREFIX + "camera_frames_captured_total",
+			"Number of frames read from the camera.");
+	public static final Counter CAMERA_FRAMES_DROPPED = REGISTRY.counter(PREFIX + "camera_frames_dropped_total",
+			"Number of camera frames replaced by a newer frame before they could be processed.");
+	public static final Counter CAMERA_READ_FAILURES = REGISTRY.counter(PREFIX + "camera_read_failures_total",
+			"Number of failed attempts to read a frame from the camera.");
+
+	// Stage timings
+
+	private static final String STAGE_SECONDS = PREFIX + "stage_seconds";
+	private static final String STAGE_HELP = "Time taken by each stage of the pipeline, per frame.";
+
+	public static final Histogram FRAME_SECONDS = REGISTRY.histogram(PREFIX + "frame_processing_seconds",
+			"Total processing time per frame, as seen by the quality governor.", "", Histogram.TIMING_BUCKETS);
+	public static final Histogram UNDISTORT_SECONDS = stage("undistort");
+	public static final Histogram LINE_TRACKING_SECONDS = stage("line_tracking");
+	public static final Histogram CENTRELINES_SECONDS = stage("centrelines");
+	public static final Histogram INTERSECTIONS_SECONDS = stage("intersections");
+	public static final Histogram WORLD_TRANSFORM_SECONDS = stage("world_transform");
+	public static final Histogram DISPLAY_SECONDS = stage("display");
+
+	// Measurements
+
+	public static final Histogram LINES_DETECTED = REGISTRY.histogram(PREFIX + "lines_detected",
+			"Number of averaged lines output by the line tracker, per frame.", "", Histogram.COUNT_BUCKETS);
+	public static final Counter SEGMENTS_MEASURED = REGISTRY.counter(PREFIX + "segments_measured_total",
+			"Number of segment lengths measured.");
+	public static final Counter INTERSECTIONS_MEASURED = REGISTRY.counter(PREFIX + "intersections_measured_total",
+			"Number of intersection angles measured.");
+	public static final Counter PARTIAL_FRAMES = REGISTRY.counter(PREFIX + "partial_frames_total",
+			"Number of frames whose processing ran out of time before all the measurements were found.");
+
+	// Latency
+
+	private static final String LATENCY_SECONDS = PREFIX + "latency_seconds";
+	private static final String LATENCY_HELP = "Time from a frame being captured to it reaching each point in the "
+			+ "pipeline (paint is glass-to-glass, apart from the monitor itself).";
+
+	public static final Histogram READ_LATENCY = latency("read");
+	public static final Histogram DEQUEUE_LATENCY = latency("dequeue");
+	public static final Histogram PROCESS_LATENCY = latency("process");
+	public static final Histogram SHARED_MEMORY_LATENCY = latency("shared_memory");
+	public static final Histogram DISPLAY_LATENCY = latency("display");
+	public static final Histogram PAINT_LATENCY = latency("paint");
+	public static final Histogram EXPORT_LATENCY = latency("export");
+
+	// Memory
+
+	/** The size of a memory page, used to convert the resident set size from pages. This is right for the Pi and x86
+	 * Linux; other systems don't have /proc anyway. */
+	private static final long PAGE_SIZE = 4096;
+	private static final Path PROC_STATM = Paths.get("/proc/self/statm");
+
+	static {
+		// Direct and mapped buffers live outside the heap, and aren't included in the heap figures
+		for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+			REGISTRY.gauge(PREFIX + "buffer_pool_used_bytes", "Memory used by direct and memory-mapped buffers.",
+					"pool=\"" + pool.getName() + "\"", pool::getMemoryUsed);
+		}
+		REGISTRY.gauge(PREFIX + "heap_used_bytes", "Java heap memory in use.",
+				() -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		// OpenCV's matrices are allocated natively, so the only way to see them is the size of the whole process
+		REGISTRY.gauge(PREFIX + "process_resident_memory_bytes", "Resident set size of the process, including "
+				+ "native memory used by OpenCV (NaN if not available).", Metrics::residentMemory);
+	}
+
+	private Metrics(){} // No instances!
+
+	private static Histogram stage(String stage){
+		return REGISTRY.histogram(STAGE_SECONDS, STAGE_HELP, "stage=\"" + stage + "\"", Histogram.TIMING_BUCKETS);
+	}
+
+	private static Histogram latency(String stage){
+		return REGISTRY.histogram(LATENCY_SECONDS, LATENCY_HELP, "stage=\"" + stage + "\"", Histogram.TIMING_BUCKETS);
+	}
+
+	/** Returns the resident set size of this process in bytes, or NaN if it can't be found. */
+	private static double residentMemory(){
+		if(!Files.isReadable(PROC_STATM)) return Double.NaN;
+		try{
+			String[] fields = new String(Files.readAllBytes(PROC_STATM), StandardCharsets.US_ASCII).trim().split(" ");
+			return Long.parseLong(fields[1]) * PAGE_SIZE;
+		}catch(IOException | RuntimeException e){
+			return Double.NaN;
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package uob.flexiweld.app.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * A collection of {@link Metric}s that can be written out together in the Prometheus text exposition format (see
+ * {@link MetricsRegistry#scrape()}). Metrics are created through the registry, so they are registered automatically.
+ * Metrics may be registered and scraped from any thread.
+ * @author Finin Quincey
+ */
+public class MetricsRegistry {
+
+	/** The content type of the output of {@link MetricsRegistry#scrape()}. */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+	/** Creates and registers a new counter that is incremented directly. */
+	public Counter counter(String name, String help){
+		return counter(name, help, "");
+	}
+
+	/** Creates and registers a new counter with the given labels (e.g. {@code stage="undistort"}) that is incremented
+	 * directly. */
+	public Counter counter(String name, String help, String labels){
+		return register(new Counter(name, help, labels, null));
+	}
+
+	/** Creates and registers a new counter that reads its value from the given source. */
+	public Counter counter(String name, String help, LongSupplier source){
+		return register(new Counter(name, help, "", source));
+	}
+
+	/** Creates and registers a new gauge that reads its value from the given source. */
+	public Gauge gauge(String name, String help, DoubleSupplier source){
+		return gauge(name, help, "", source);
+	}
+
+	/** Creates and registers a new gauge with the given labels that reads its value from the given source. */
+	public Gauge gauge(String name, String help, String labels, DoubleSupplier source){
+		return register(new Gauge(name, help, labels, source));
+	}
+
+	/** Creates and registers a new histogram with the given labels and bucket upper bounds. */
+	public Histogram histogram(String name, String help, String labels, double[] bounds){
+		return register(new Histogram(name, help, labels, bounds));
+	}
+
+	/** Removes the given metric from this registry. */
+	public void unregister(Metric metric){
+		metrics.remove(metric);
+	}
+
+	private <T extends Metric> T register(T metric){
+		metrics.add(metric);
+		return metric;
+	}
+
+	/** Returns the current values of all the metrics in the Prometheus text exposition format. Metrics with the same
+	 * name are grouped together under a single HELP and TYPE line. */
+	public String scrape(){
+
+		Map<String, List<Metric>> families = new LinkedHashMap<>();
+		for(Metric metric : metrics) families.computeIfAbsent(metric.getName(), k -> new ArrayList<>()).add(metric);
+
+		StringBuilder out = new StringBuilder();
+
+		for(List<Metric> family : families.values()){
+			Metric first = family.get(0);
+			out.append("# HELP ").append(first.getName()).append(' ').append(first.getHelp()).append('\n');
+			out.append("# TYPE ").append(first.getName()).append(' ').append(first.getType()).append('\n');
+			for(Metric metric : family) metric.write(out);
+		}
+
+		return out.toString();
+	}
+
+}
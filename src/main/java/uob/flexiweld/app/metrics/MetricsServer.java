@@ -0,0 +1,65 @@
+package uob.flexiweld.app.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * A tiny HTTP server that serves the metrics in a {@link MetricsRegistry} at {@code /metrics}, for Prometheus to
+ * scrape. Scrapes are handled one at a time on a single background thread.
+ * <p></p>
+ * There is no authentication, so the server should normally only listen on the loopback interface; it can be opened
+ * up to the network so the metrics can be collected remotely, if the cell is on a trusted one.
+ * @author Finin Quincey
+ */
+public class MetricsServer {
+
+	private final HttpServer server;
+	private final MetricsRegistry registry;
+
+	/**
+	 * Creates a new {@code MetricsServer} listening on the given address and port. The server does nothing until
+	 * {@link MetricsServer#start()} is called.
+	 * @param address The address of the network interface to listen on, normally
+	 *                {@link InetAddress#getLoopbackAddress()} (see above)
+	 * @param port The port number to listen on
+	 * @param registry The registry whose metrics are to be served
+	 * @throws IOException If the port could not be opened
+	 */
+	public MetricsServer(InetAddress address, int port, MetricsRegistry registry) throws IOException {
+		this.registry = registry;
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/metrics", this::handleMetrics);
+		server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Metrics server");
+			thread.setDaemon(true); // Don't stop the app from closing
+			return thread;
+		}));
+	}
+
+	/** Starts the server. */
+	public void start(){
+		server.start();
+	}
+
+	/** Stops the server. */
+	public void stop(){
+		server.stop(0);
+	}
+
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", MetricsRegistry.CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(body);
+		}
+	}
+
+}
@@ -6,6 +6,8 @@ import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.utils.Converters;
 import uob.flexiweld.app.FlexiweldApp;
+import uob.flexiweld.app.Overlay;
+import uob.flexiweld.app.UiState;
 import uob.flexiweld.app.VideoFeed;
 import uob.flexiweld.geom.Line;
 import uob.flexiweld.util.CalibrationSettings;
@@ -99,18 +101,26 @@ public class AlignmentMode extends CheckerboardDetectionMode {
 	}
 
 	@Override
-	public Mat annotateFrame(VideoFeed videoFeed, Mat frame){
+	public Mat prepareDisplayFrame(VideoFeed videoFeed, Mat frame){
+		return isCalibrated() ? calibrationSettings.undistort(frame) : frame; // Same lens correction as processFrame
+	}
+
+	@Override
+	protected void applyState(UiState state, UiState previous){
+		super.applyState(state, previous);
+		state.ifChanged(previous, FOUND_CHECKERBOARD, alignButton::setEnabled);
+	}
+
+	@Override
+	public void drawOverlay(VideoFeed videoFeed, Overlay overlay){
+
+		super.drawOverlay(videoFeed, overlay);
 
 		if(transformedGrid != null){
 			for(Line line : transformedGrid){
-				Imgproc.line(frame, videoFeed.transformForDisplay(line.getStart()),
-						videoFeed.transformForDisplay(line.getEnd()), GRID_COLOUR, 2);
+				overlay.line(videoFeed.transformForDisplay(line), GRID_COLOUR, 2);
 			}
 		}
-
-		alignButton.setEnabled(foundCheckerboard());
-
-		return super.annotateFrame(videoFeed, frame);
 	}
 
 	/**
@@ -121,7 +131,9 @@ public class AlignmentMode extends CheckerboardDetectionMode {
 		// Because we're using the raw checkerboard points this time (rather than rvecs and tvecs) we can calculate the
 		// transform directly without having to reproject four arbitrary points (like we did in Calibrator)
 		// All we need to do is select four corners (the further apart the better) and their corresponding object points
-		List<Point> corners = getCorners().toList();
+		MatOfPoint2f found = getCorners();
+		if(found == null) return; // The checkerboard moved out of view just as the button was pressed
+		List<Point> corners = found.toList();
 
 		// Retrieve the outermost corners from the image points and add them to a list
 		List<Point> imagePts = new ArrayList<>();
@@ -157,6 +169,7 @@ public class AlignmentMode extends CheckerboardDetectionMode {
 		// Invert the alignment matrix because here, we're transforming the other way (world -> image)
 		Core.perspectiveTransform(Line.pack(grid), lmat, alignmentMatrix.inv()); // Pack into matrix and transform
 		transformedGrid = Line.unpack(lmat); // Unpack back to list of lines
+		markOverlayChanged();
 	}
 
 	/** Exits alignment mode and returns to measurement mode with the current alignment matrix. */
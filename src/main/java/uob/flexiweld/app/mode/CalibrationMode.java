@@ -1,14 +1,15 @@
 package uob.flexiweld.app.mode;
 
 import com.sun.istack.internal.Nullable;
-import org.opencv.calib3d.Calib3d;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Size;
 import uob.flexiweld.app.FlexiweldApp;
+import uob.flexiweld.app.UiState;
 import uob.flexiweld.app.VideoFeed;
+import uob.flexiweld.util.CalibrationProfile;
 import uob.flexiweld.util.CalibrationSettings;
+import uob.flexiweld.util.IncrementalCalibrator;
 import uob.flexiweld.util.Utils;
 
 import javax.swing.*;
@@ -16,12 +17,18 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Capture mode responsible for performing calibration and saving/loading calibration files. This class handles the
  * capturing of calibration images and the calculation, saving and loading of calibration parameters.
+ * <p></p>
+ * The calibration is recalculated each time an image is captured (once there are enough images), using an
+ * {@link IncrementalCalibrator}. This is done on a background thread using a {@link SwingWorker}, so the video feed
+ * keeps running in the meantime. The reprojection error is displayed after each calculation, so the user can see when
+ * capturing more images stops making any difference and finish the calibration there.
  * @author Finin Quincey
  */
 public class CalibrationMode extends CheckerboardDetectionMode {
@@ -30,8 +37,24 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 	// I literally just made up this file extension, it's not a recognised thing!
 	private static final FileNameExtensionFilter CLB_FILTER = Utils.createExtensionFilter("Calibration files", "clb");
 
-	/** The minimum number of calibration images required to perform the calibration. */
+	/** The minimum number of calibration images before the calibration is calculated for the first time. */
+	private static final int MIN_SOLVE_IMAGES = 4;
+	/** The number of calibration images after which the calibration can be finished even if the error hasn't
+	 * converged yet. */
 	private static final int MIN_CALIBRATION_IMAGES = 10;
+	/** The maximum number of calibration images used for each calculation, so it doesn't get slower and slower. */
+	private static final int MAX_SOLVE_IMAGES = 20;
+	/** The error is considered to have converged once it changes by less than this between calculations, in pixels. */
+	private static final double CONVERGENCE_THRESHOLD = 0.02;
+	/** The number of calculations in a row that the error must stay within the threshold to be considered converged. */
+	private static final int CONVERGENCE_SOLVES = 2;
+
+	/** UI state key for whether there are calibration settings to save. */
+	private static final String CALIBRATED = "calibrated";
+	/** UI state key for whether the calibration can be finished. */
+	private static final String CAN_FINISH = "can_finish";
+	/** UI state key for whether the calibration is being calculated in the background. */
+	private static final String SOLVING = "solving";
 
 	/** Stores the corner coordinates (in image pixels) of the detected calibration pattern for each frame. */
 	private final List<Mat> imagePoints;
@@ -41,8 +64,21 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 	/** The current alignment matrix used to calculate the real-world positions of image points. */
 	@Nullable private Mat alignmentMatrix; // N.B. This isn't final in this class
 
+	/** The calibrator used to calculate the calibration, created when the first image is captured. */
+	@Nullable private IncrementalCalibrator calibrator;
+	/** The background task calculating the calibration parameters, or null if there isn't one running. */
+	@Nullable private SwingWorker<IncrementalCalibrator.Result, Void> solver;
+	/** True if more images have been captured since the running calculation started, so it needs doing again. */
+	private boolean solvePending;
+	/** The result of the most recent calculation, or null if there hasn't been one yet. */
+	@Nullable private IncrementalCalibrator.Result latestResult;
+	/** The number of calculations in a row for which the error has stayed within the convergence threshold. */
+	private int stableSolves;
+
 	// UI components
 	private JLabel progressReadout;
+	private JProgressBar progressBar;
+	private JButton cancelButton;
 	private JButton captureButton;
 	private JButton finishButton;
 	private JButton exitButton;
@@ -70,7 +106,7 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 		super.populateControls(app, components);
 
 		components.add(captureButton = FlexiweldApp.createButton("\u2795 Capture", e -> captureCalibrationPoints(app)));
-		components.add(finishButton = FlexiweldApp.createButton(FlexiweldApp.CHECK_MARK + "Finish", e -> finishCalibration(app)));
+		components.add(finishButton = FlexiweldApp.createButton(FlexiweldApp.CHECK_MARK + "Finish", e -> finishCalibration()));
 		components.add(saveButton = FlexiweldApp.createButton("\ud83d\udcbe Save Settings", e -> saveToFile(app)));
 		components.add(loadButton = FlexiweldApp.createButton("\ud83d\udcc2 Load Settings", e -> loadFromFile(app)));
 		components.add(exitButton = FlexiweldApp.createButton("\u21a9 Exit", e -> exit(app)));
@@ -84,6 +120,27 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 	public void populateStatusBar(List<Component> components){
 		super.populateStatusBar(components);
 		progressReadout = FlexiweldApp.addStatusText(getImageCountStatus(0), components);
+		progressBar = new JProgressBar();
+		progressBar.setIndeterminate(true); // OpenCV doesn't tell us how far through the calibration it is
+		progressBar.setMaximumSize(new Dimension(150, 20));
+		progressBar.setVisible(false);
+		components.add(progressBar);
+		cancelButton = new JButton(FlexiweldApp.CROSS_SYMBOL);
+		cancelButton.setFont(FlexiweldApp.STATUS_BAR_FONT);
+		cancelButton.setToolTipText("Cancel calculation");
+		cancelButton.addActionListener(e -> cancelCalibration());
+		cancelButton.setVisible(false);
+		components.add(cancelButton);
+	}
+
+	/** Returns true if the calibration parameters are currently being calculated in the background. */
+	public boolean isSolving(){
+		return solver != null;
+	}
+
+	/** Returns true if the calibration error has stopped changing as more images are captured. */
+	public boolean isConverged(){
+		return stableSolves >= CONVERGENCE_SOLVES;
 	}
 
 	@Override
@@ -93,10 +150,22 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 	}
 
 	@Override
-	public Mat annotateFrame(VideoFeed videoFeed, Mat frame){
-		captureButton.setEnabled(!finishButton.isEnabled() && foundCheckerboard());
-		saveButton.setEnabled(calibrationSettings != null);
-		return super.annotateFrame(videoFeed, frame);
+	protected void reportState(VideoFeed videoFeed, UiState.Builder state){
+		super.reportState(videoFeed, state);
+		state.put(CALIBRATED, calibrationSettings != null);
+		state.put(CAN_FINISH, latestResult != null && (imagePoints.size() >= MIN_CALIBRATION_IMAGES || isConverged()));
+		state.put(SOLVING, isSolving());
+	}
+
+	@Override
+	protected void applyState(UiState state, UiState previous){
+		super.applyState(state, previous);
+		state.ifChanged(previous, FOUND_CHECKERBOARD, captureButton::setEnabled);
+		state.ifChanged(previous, CALIBRATED, saveButton::setEnabled);
+		state.ifChanged(previous, CAN_FINISH, finishButton::setEnabled);
+		state.ifChanged(previous, SOLVING, progressBar::setVisible);
+		state.ifChanged(previous, SOLVING, cancelButton::setVisible);
+		state.ifChanged(previous, SOLVING, (Boolean solving) -> loadButton.setEnabled(!solving));
 	}
 
 	/** Returns a readable string for the progress readout based on the given number of images captured. */
@@ -104,44 +173,121 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 		return String.format("Capturing calibration images (%s/%s)", captured, MIN_CALIBRATION_IMAGES);
 	}
 
-	/** Captures a set of calibration points from the current frame. */
+	/** Captures a set of calibration points from the current frame, and recalculates the calibration if there are
+	 * enough images to do so. */
 	private void captureCalibrationPoints(FlexiweldApp app){
 
-		if(!foundCheckerboard()) return; // Should never happen but just in case
+		MatOfPoint2f corners = getCorners();
+		if(corners == null) return; // Should never happen but just in case
 
 		app.getVideoFeed().pauseFor(1000); // Pause the video so the user can briefly see what they captured
 
-		imagePoints.add(getCorners());
+		if(calibrator == null){
+			calibrator = new IncrementalCalibrator(checkerboardSize, squareSize, app.getVideoFeed().getCameraResolution(), MAX_SOLVE_IMAGES);
+		}
+
+		imagePoints.add(corners);
 		progressReadout.setText(getImageCountStatus(imagePoints.size()));
 
-		if(imagePoints.size() >= MIN_CALIBRATION_IMAGES){
-			finishButton.setEnabled(true);
+		if(imagePoints.size() >= MIN_SOLVE_IMAGES) startSolve();
+	}
+
+	/**
+	 * Starts recalculating the calibration parameters in the background using the captured images. If a calculation is
+	 * already running, another one will be started as soon as it finishes.
+	 */
+	private void startSolve(){
+
+		if(isSolving()){
+			solvePending = true; // No point running them at the same time, the first one will be out of date anyway
+			return;
 		}
+
+		// The worker gets its own copy of the list so capturing can't change it halfway through
+		List<Mat> views = new ArrayList<>(imagePoints);
+		IncrementalCalibrator calibrator = this.calibrator;
+
+		solver = new SwingWorker<IncrementalCalibrator.Result, Void>(){
+
+			@Override
+			protected IncrementalCalibrator.Result doInBackground(){
+				return calibrator.solve(views); // This is the slow bit
+			}
+
+			@Override
+			protected void done(){
+				// This runs on the EDT, so everything gets updated in one go between frames
+				if(solver != this) return; // Cancelled, and possibly another one started since
+				solver = null;
+				try{
+					onSolved(get());
+				}catch(InterruptedException | ExecutionException | CancellationException e){
+					e.printStackTrace();
+					progressReadout.setText("Calibration failed, try capturing more images");
+				}
+				if(solvePending){
+					solvePending = false;
+					startSolve();
+				}
+			}
+		};
+
+		solver.execute();
 	}
 
-	/** Performs the calibration using the captured images and updates the calibration settings with the result. */
-	private void finishCalibration(FlexiweldApp app){
+	/** Called on the EDT when a calculation has finished, to store the result and update the readouts. */
+	private void onSolved(IncrementalCalibrator.Result result){
+
+		// Track how much the error is changing, once it settles down there's no point capturing more images
+		if(latestResult != null && Math.abs(result.getError() - latestResult.getError()) < CONVERGENCE_THRESHOLD){
+			stableSolves++;
+		}else{
+			stableSolves = 0;
+		}
+
+		latestResult = result;
+		imagePoints.removeAll(result.getRejectedViews()); // Bad images will only make things worse next time
+
+		progressReadout.setText(String.format("%s images (%s rejected), error %.3f px%s", imagePoints.size(),
+				result.getRejectedViews().size(), result.getError(), isConverged() ? " - converged" : ""));
+		progressReadout.setForeground(isConverged() ? FlexiweldApp.CONFIRM_TEXT_COLOUR : FlexiweldApp.STATUS_TEXT_COLOUR);
 
-		if(imagePoints.size() < MIN_CALIBRATION_IMAGES) return; // Should never happen but just in case
+		// The per-image errors are too long for the status bar, so put them in a tooltip instead
+		StringBuilder errors = new StringBuilder("<html>Error for each image used:");
+		for(int i = 0; i < result.getViews().size(); i++){
+			errors.append(String.format("<br>Image %s: %.3f px", imagePoints.indexOf(result.getViews().get(i)) + 1, result.getError(i)));
+		}
+		progressReadout.setToolTipText(errors.append("</html>").toString());
+	}
 
-		// Generate the appropriate number of object point matrices
-		List<Mat> objectPoints = Collections.nCopies(imagePoints.size(), Utils.generateCheckerboardPoints(checkerboardSize, squareSize));
+	/** Finishes the calibration, replacing the calibration settings with the result of the most recent calculation. */
+	private void finishCalibration(){
 
-		// Output matrices
-		Mat cameraMatrix = new Mat(3, 3, CvType.CV_32F);
-		MatOfDouble distCoeffs = new MatOfDouble(new Mat(1, 4, CvType.CV_64F));
-		List<Mat> rvecs = new ArrayList<>(); // Currently not using these last two for anything
-		List<Mat> tvecs = new ArrayList<>();
+		if(latestResult == null) return; // Should never happen but just in case
 
-		Calib3d.calibrateCamera(objectPoints, imagePoints, app.getVideoFeed().getCameraResolution(), cameraMatrix, distCoeffs, rvecs, tvecs);
+		cancelCalibration(); // Any calculation still running is for images captured since, and we're done with them
 
-		calibrationSettings = new CalibrationSettings(cameraMatrix, distCoeffs);
+		calibrationSettings = latestResult.getSettings();
 		alignmentMatrix = null; // Calibration always discards the alignment matrix (because it's no longer valid!)
 		imagePoints.clear(); // Wipe the images now, we're done with them
-		finishButton.setEnabled(false);
-		captureButton.setEnabled(false);
+		latestResult = null;
+		stableSolves = 0;
 		progressReadout.setText("Calibration successful");
+		progressReadout.setForeground(FlexiweldApp.CONFIRM_TEXT_COLOUR);
+		progressReadout.setToolTipText(null);
+	}
+
+	/** Cancels the calibration calculation currently running in the background, discarding the result. The captured
+	 * images are kept, and the calculation will be started again when the next image is captured. */
+	private void cancelCalibration(){
 
+		if(!isSolving()) return;
+
+		// OpenCV can't actually be interrupted, so the calculation will carry on in the background until it's done,
+		// but the result will be thrown away
+		solver.cancel(true);
+		solver = null;
+		solvePending = false;
 	}
 
 	/**
@@ -150,7 +296,7 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 	 */
 	private void exit(FlexiweldApp app){
 
-		if(imagePoints.size() > 0){ // If no images were captured or calibration is done, don't warn the user
+		if(imagePoints.size() > 0 || isSolving()){ // If no images were captured or calibration is done, don't warn the user
 
 			int choice = JOptionPane.showOptionDialog(app.getFrame(), "Exit calibration and revert to previous settings?",
 					"Confirm exit", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null,
@@ -162,6 +308,12 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 		app.setMode(new MeasurementMode(calibrationSettings, alignmentMatrix)); // Revert to the previous settings
 	}
 
+	@Override
+	public void dispose(){
+		cancelCalibration();
+		super.dispose();
+	}
+
 	/**
 	 * Displays a dialog prompting the user to select a save location and filename, and saves the current calibration
 	 * settings to that file, displaying an error message if the save was unsuccessful.
@@ -172,7 +324,10 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 
 		if(path != null){
 
-			if(!calibrationSettings.save(path)){
+			CalibrationProfile profile = new CalibrationProfile(calibrationSettings, alignmentMatrix,
+					app.getVideoFeed().getCameraResolution());
+
+			if(!profile.save(path)){
 				JOptionPane.showMessageDialog(app.getFrame(), "Unable to save calibration settings",
 						"Error", JOptionPane.ERROR_MESSAGE);
 				progressReadout.setText("Unable to save calibration settings");
@@ -197,11 +352,20 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 			File file = app.fileChooser.getSelectedFile();
 			String path = file.getPath();
 
-			CalibrationSettings newSettings = CalibrationSettings.load(path);
+			Size resolution = app.getVideoFeed().getCameraResolution();
+			CalibrationProfile profile = CalibrationProfile.load(path, resolution);
 
 			String shortPath = Utils.ellipsise(path, 50, true);
 
-			if(newSettings != null){
+			if(profile != null && !profile.isForResolution(resolution)){
+
+				String message = String.format("Calibration settings in %s are for %dx%d, but the camera is at %dx%d",
+						shortPath, (int)profile.getResolution().width, (int)profile.getResolution().height,
+						(int)resolution.width, (int)resolution.height);
+				JOptionPane.showMessageDialog(app.getFrame(), message, "Error", JOptionPane.ERROR_MESSAGE);
+				progressReadout.setText(message);
+
+			}else if(profile != null){
 
 				if(imagePoints.size() > 0){ // If no images were captured or calibration is done, don't warn the user
 					int choice = JOptionPane.showOptionDialog(app.getFrame(), "Discard current calibration progress?",
@@ -210,10 +374,12 @@ public class CalibrationMode extends CheckerboardDetectionMode {
 					if(choice != JOptionPane.OK_OPTION) return;
 				}
 
-				calibrationSettings = newSettings;
+				calibrationSettings = profile.getCalibrationSettings();
+				alignmentMatrix = profile.getAlignmentMatrix(); // Null if the file didn't have one, same as calibrating
+				cancelCalibration();
 				imagePoints.clear(); // Wipe the images now, we don't need them any more
-				finishButton.setEnabled(false);
-				captureButton.setEnabled(false);
+				latestResult = null;
+				stableSolves = 0;
 				progressReadout.setText("Calibration settings loaded from " + shortPath);
 
 			}else{
@@ -2,10 +2,13 @@ package uob.flexiweld.app.mode;
 
 import org.opencv.core.Mat;
 import uob.flexiweld.app.FlexiweldApp;
+import uob.flexiweld.app.Overlay;
+import uob.flexiweld.app.UiState;
 import uob.flexiweld.app.VideoFeed;
 
 import java.awt.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Abstract base class for all capture modes. One instance of this class is active at any one time; this instance is
@@ -15,8 +18,15 @@ import java.util.List;
  * - Defining the buttons displayed on the control panel, via {@link CaptureMode#populateStatusBar(List)}<br>
  * - Performing the necessary processing steps on each raw frame of the video feed, via
  * {@link CaptureMode#processFrame(VideoFeed, Mat)}<br>
- * - Adding any required annotations or post-processing to each processed, scaled frame of the video feed, via
+ * - Adding any required post-processing to each processed, scaled frame of the video feed, via
  * {@link CaptureMode#annotateFrame(VideoFeed, Mat)}<br>
+ * - Adding any required annotations to the overlay drawn on top of the video feed, via
+ * {@link CaptureMode#drawOverlay(VideoFeed, Overlay)}<br>
+ * - Reporting the values shown in the controls and status bar after each frame, via
+ * {@link CaptureMode#reportState(VideoFeed, UiState.Builder)}, and applying them to the controls, via
+ * {@link CaptureMode#applyState(UiState, UiState)}<br>
+ * - Releasing any resources they hold (e.g. background threads) when they stop being the active mode, via
+ * {@link CaptureMode#dispose()}<br>
  * @author Finin Quincey
  */
 // N.B. If we're getting technical, this is the *state interface* part of a *state pattern*.
@@ -26,6 +36,14 @@ public abstract class CaptureMode {
 	/** The display name of this capture mode, shown on the left of the status bar. */
 	public final String name;
 
+	/** Whether the annotations have changed since the overlay was last drawn. */
+	private boolean overlayChanged = true;
+
+	/** The most recent UI state reported by the processing side, or null if it has already been applied. */
+	private final AtomicReference<UiState> latestState = new AtomicReference<>();
+	/** The UI state that was last applied to the controls. Only accessed from the EDT. */
+	private UiState appliedState = UiState.EMPTY;
+
 	/** Creates a new {@code CaptureMode} with the given display name. */
 	public CaptureMode(String name){
 		this.name = name;
@@ -50,13 +68,15 @@ public abstract class CaptureMode {
 	 */
 	public void populateStatusBar(List<Component> components){
 		FlexiweldApp.addStatusText(name, components);
+		appliedState = UiState.EMPTY; // The controls are new, so everything needs applying to them
 	}
 
 	/**
 	 * Processes the given raw video frame and returns the result.
 	 * @param videoFeed The video feed object calling this method, for reference.
 	 * @param frame The raw video frame, as captured by the camera, with no distortion correction, scaling or other
-	 *            modifications. Since some OpenCV methods modify images directly and others require a destination
+	 *            modifications. This is a single-channel greyscale image if {@link VideoFeed#isGreyscale()} is true,
+	 *            or a BGR colour image otherwise. Since some OpenCV methods modify images directly and others require a destination
 	 *            matrix, implementors are free to decide whether to modify this parameter. The {@link Mat} object
 	 *            itself will be overwritten next frame, so if it is to be stored, a copy should be made first.
 	 * @return The resulting frame, after processing
@@ -64,9 +84,25 @@ public abstract class CaptureMode {
 	public abstract Mat processFrame(VideoFeed videoFeed, Mat frame);
 
 	/**
-	 * Adds annotations to the given processed video frame and returns the result. Updating of controls and other GUI
-	 * elements should also be done in this method (not {@link CaptureMode#processFrame(VideoFeed, Mat)}) to ensure
-	 * everything is processed before updating the controls.
+	 * Prepares the colour version of the frame for display, when processing is being done in greyscale (see
+	 * {@link VideoFeed#isGreyscale()}). This is called after {@link CaptureMode#processFrame(VideoFeed, Mat)}, and
+	 * only if the output is going to be displayed. Subclasses whose processing moves the pixels around (e.g.
+	 * undistortion) must do the same to the colour frame here, so the annotations still line up; by default the colour
+	 * frame is returned as it is.
+	 * @param videoFeed The video feed object calling this method, for reference.
+	 * @param frame The raw colour video frame, as captured by the camera. As with
+	 *            {@link CaptureMode#processFrame(VideoFeed, Mat)}, this may be modified, but will be overwritten next frame.
+	 * @return The colour frame to display
+	 */
+	public Mat prepareDisplayFrame(VideoFeed videoFeed, Mat frame){
+		return frame;
+	}
+
+	/**
+	 * Adds any post-processing to the given processed video frame and returns the result. Annotations should not be
+	 * drawn onto the frame here; add them to the overlay in {@link CaptureMode#drawOverlay(VideoFeed, Overlay)} instead.
+	 * Controls should not be updated here either; report their values in
+	 * {@link CaptureMode#reportState(VideoFeed, UiState.Builder)} instead.
 	 * @param videoFeed The video feed object calling this method, for reference.
 	 * @param frame The processed video frame, after scaling, flipping, distortion correction and other
 	 *            modifications. Since some OpenCV methods modify images directly and others require a destination
@@ -76,4 +112,88 @@ public abstract class CaptureMode {
 	 */
 	public abstract Mat annotateFrame(VideoFeed videoFeed, Mat frame);
 
+	/**
+	 * Adds this mode's annotations to the given overlay, which is drawn on top of the video feed. This is only called
+	 * when the overlay needs redrawing, i.e. after {@link CaptureMode#markOverlayChanged()} has been called or the
+	 * display transform has changed, so subclasses must call that whenever their annotations change. By convention,
+	 * subclasses should call super before adding any of their own annotations.
+	 * @param videoFeed The video feed object calling this method, for reference (mainly for
+	 *                  {@link VideoFeed#transformForDisplay(org.opencv.core.Point)}).
+	 * @param overlay The overlay to add annotations to, which is empty to start with
+	 */
+	public void drawOverlay(VideoFeed videoFeed, Overlay overlay){
+		// Nothing here because there are no annotations common to all modes!
+	}
+
+	/**
+	 * Reports the values to be shown in this mode's controls and status bar after processing a frame. This is called
+	 * on the processing side once per frame, after {@link CaptureMode#annotateFrame(VideoFeed, Mat)}, and must not
+	 * touch any Swing components. By convention, subclasses should call super before adding any of their own values.
+	 * @param videoFeed The video feed object calling this method, for reference.
+	 * @param state The builder to add the values to
+	 */
+	protected void reportState(VideoFeed videoFeed, UiState.Builder state){
+		// Nothing here because there are no controls common to all modes!
+	}
+
+	/**
+	 * Applies the given UI state to this mode's controls and status bar. This is called on the EDT at a fixed rate,
+	 * with the most recent state reported by {@link CaptureMode#reportState(VideoFeed, UiState.Builder)}. Only the
+	 * values that have changed since the previous state should be applied, using
+	 * {@link UiState#ifChanged(UiState, String, java.util.function.Consumer)}. By convention, subclasses should call
+	 * super before applying any of their own values.
+	 * @param state The UI state to apply
+	 * @param previous The UI state that was applied last time, or {@link UiState#EMPTY} if the controls are new
+	 */
+	protected void applyState(UiState state, UiState previous){
+		// Nothing here because there are no controls common to all modes!
+	}
+
+	/** Collects this mode's UI state for the current frame and publishes it for the EDT to pick up. This may be called
+	 * from any thread. */
+	public final void publishState(VideoFeed videoFeed){
+		UiState.Builder builder = new UiState.Builder();
+		reportState(videoFeed, builder);
+		latestState.set(builder.build()); // Any state the EDT hasn't got round to yet is simply replaced
+	}
+
+	/** Applies the most recently published UI state to this mode's controls, if there is a new one. This must be called
+	 * from the EDT. */
+	public final void updateControls(){
+		UiState state = latestState.getAndSet(null);
+		if(state == null) return; // Nothing new
+		applyState(state, appliedState);
+		appliedState = state;
+	}
+
+	/**
+	 * Returns whether this mode holds anything that only applies at the current camera resolution, such as a
+	 * calibration, and would therefore be invalidated by switching the camera to a different resolution. The camera
+	 * mode is never reduced automatically while this returns true, and the user is warned before changing it.
+	 */
+	public boolean dependsOnResolution(){
+		return false;
+	}
+
+	/** Marks this mode's annotations as changed, so the overlay gets redrawn before the window is next painted. */
+	protected void markOverlayChanged(){
+		overlayChanged = true;
+	}
+
+	/** Returns whether this mode's annotations have changed since this method was last called. */
+	public boolean checkOverlayChanged(){
+		boolean changed = overlayChanged;
+		overlayChanged = false;
+		return changed;
+	}
+
+	/**
+	 * Called when the app switches to a different capture mode, after which this mode will never be used again.
+	 * Subclasses that start background threads or hold other resources should release them here. By convention,
+	 * subclasses should call super after releasing their own resources.
+	 */
+	public void dispose(){
+		// Nothing here because there are no resources common to all modes!
+	}
+
 }
@@ -1,21 +1,36 @@
 package uob.flexiweld.app.mode;
 
+import com.sun.istack.internal.Nullable;
 import org.opencv.calib3d.Calib3d;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Size;
+import org.opencv.core.Point;
+import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
 import uob.flexiweld.app.FlexiweldApp;
+import uob.flexiweld.app.Overlay;
+import uob.flexiweld.app.UiState;
 import uob.flexiweld.app.VideoFeed;
 
 import javax.swing.*;
 import java.awt.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Base class for capture modes that perform checkerboard detection. This class handles detection of the checkerboard
- * using {@link Calib3d#findChessboardCorners(Mat, Size, MatOfPoint2f, int)}, drawing of the detected points to the
- * screen, and displaying a found / not found readout in the status bar.
+ * using {@link Calib3d#findChessboardCorners(Mat, Size, MatOfPoint2f, int)}, drawing of the detected points on the
+ * overlay, and displaying a found / not found readout in the status bar.
+ * <p></p>
+ * Detection is slow (especially when there is no checkerboard in view), so it runs on a background thread using a
+ * scaled-down copy of the frame, with the corners refined at full resolution afterwards. Only one detection runs at a
+ * time; in the meantime the video feed carries on as normal, and the most recently detected corners are used.
+ * <p></p>
+ * Once the checkerboard has been found, the corners are tracked from frame to frame using optical flow, which is much
+ * quicker than detecting them from scratch. The tracked corners are checked to make sure they still form a flat grid,
+ * and if they don't (or some of them couldn't be tracked), tracking is abandoned and detection starts again.
  * @author Finin Quincey
  */
 public abstract class CheckerboardDetectionMode extends LiveMode {
@@ -25,12 +40,82 @@ public abstract class CheckerboardDetectionMode extends LiveMode {
 	/** The size of each square of the checkerboard, in millimetres. */
 	protected final double squareSize;
 
+	/** Frames wider than this are scaled down to this width before looking for the checkerboard. */
+	private static final double DETECTION_WIDTH = 640;
+	/** Half the side length of the search window used to refine the corner positions, in pixels. */
+	private static final Size SUBPIX_WINDOW = new Size(5, 5);
+	/** Tells {@link Imgproc#cornerSubPix(Mat, Mat, Size, Size, TermCriteria)} when to stop refining the corners. */
+	private static final TermCriteria SUBPIX_CRITERIA = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.01);
+	/** The size of the search window used by the optical flow tracking at each pyramid level, in pixels. */
+	private static final Size FLOW_WINDOW = new Size(21, 21);
+	/** The number of pyramid levels used by the optical flow tracking (more levels allow faster movement). */
+	private static final int FLOW_LEVELS = 3;
+	/** If any tracked corner is further than this from where the rest of the grid says it should be, tracking is
+	 * considered to have failed. In pixels; this is only the minimum, see
+	 * {@link CheckerboardDetectionMode#MAX_TRACKING_ERROR_FRACTION}. */
+	private static final double MAX_TRACKING_ERROR = 4;
+	/** The maximum tracking error as a fraction of the size of one checkerboard square in the image. Lens distortion
+	 * bends the grid (a lot, on wide-angle lenses before they are calibrated), so a flat grid never fits exactly, and
+	 * the bigger the board appears, the more pixels it is out by. A corner that slips onto its neighbour is out by a
+	 * whole square, so this still catches it. */
+	private static final double MAX_TRACKING_ERROR_FRACTION = 0.25;
+	/** While tracking, a full detection is still run every this many frames to stop the corners drifting. */
+	private static final int REDETECT_INTERVAL = 30;
+
+	/** UI state key for whether the checkerboard has been found, which subclasses may also use to enable buttons. */
+	protected static final String FOUND_CHECKERBOARD = "found_checkerboard";
+
+	/** The result of a checkerboard detection: the image that was searched and the corners that were found in it. */
+	private static class Detection {
+
+		/** The greyscale image that was searched. */
+		final Mat image;
+		/** The corners found in the image, or null if the checkerboard wasn't found. */
+		@Nullable final MatOfPoint2f corners;
+
+		Detection(Mat image, @Nullable MatOfPoint2f corners){
+			this.image = image;
+			this.corners = corners;
+		}
+	}
+
+	/** The corners of the checkerboard as seen by everything outside the frame thread. The corners and whether they
+	 * were found are published together, so nothing can see one without the other. */
+	private static final class Checkerboard {
+
+		static final Checkerboard NOT_FOUND = new Checkerboard(null);
+
+		/** The corners that were detected or tracked, or null if the checkerboard wasn't found. Never modified. */
+		@Nullable final MatOfPoint2f corners;
+
+		Checkerboard(@Nullable MatOfPoint2f corners){
+			this.corners = corners;
+		}
+	}
+
+	/** The positions of the checkerboard corners on the board itself, used to check the tracked corners. */
+	private final MatOfPoint2f boardPoints;
+
 	/** A container for the greyscale version of the most recent video frame, used for checkerboard detection. */
 	private Mat greyscaleFrame;
-	/** The matrix of checkerboard corners detected in the most recent frame. */
+	/** The greyscale image the current corners were found in, which is where they will be tracked from next frame. */
+	private Mat previousFrame;
+	/** The matrix of the most recently detected or tracked checkerboard corners. Only used by the frame thread; other
+	 * threads use {@link CheckerboardDetectionMode#checkerboard}. */
 	private MatOfPoint2f corners;
-	/** Keeps track of whether a checkerboard was found or not. */
-	private boolean foundCheckerboard;
+	/** The latest checkerboard corners, if the checkerboard was found in the current frame. */
+	private final AtomicReference<Checkerboard> checkerboard = new AtomicReference<>(Checkerboard.NOT_FOUND);
+	/** Whether the corners are currently being tracked from frame to frame. */
+	private boolean tracking;
+	/** The number of frames since the last full detection was started. */
+	private int framesSinceDetection;
+
+	/** The single background thread that checkerboard detection runs on. */
+	private final ExecutorService detectionExecutor;
+	/** The detection currently in progress, or null if detection hasn't started yet. */
+	private Future<?> detection;
+	/** The result of the most recently completed detection, if it hasn't been used yet. */
+	private final AtomicReference<Detection> completedDetection = new AtomicReference<>();
 
 	/** Status bar label for the checkerboard found / not found readout. */
 	private JLabel patternDetectedReadout;
@@ -47,20 +132,41 @@ public abstract class CheckerboardDetectionMode extends LiveMode {
 		this.squareSize = squareSize;
 		corners = new MatOfPoint2f();
 		greyscaleFrame = new Mat();
+		previousFrame = new Mat();
+		boardPoints = new MatOfPoint2f();
+		for(int y = 0; y < checkerboardSize.height; y++){
+			for(int x = 0; x < checkerboardSize.width; x++){
+				// Same order as findChessboardCorners, row by row
+				boardPoints.push_back(new MatOfPoint2f(new Point(x * squareSize, y * squareSize)));
+			}
+		}
+		detectionExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Checkerboard detection");
+			thread.setDaemon(true); // Don't stop the app from closing
+			return thread;
+		});
+	}
+
+	@Override
+	public boolean dependsOnResolution(){
+		return true; // The corners, and anything worked out from them, are in terms of the camera's pixels
 	}
 
-	/** Returns true if a checkerboard was detected in the current frame, false if not. */
+	/** Returns true if a checkerboard was detected or tracked in the current frame, false if not. */
 	public boolean foundCheckerboard(){
-		return foundCheckerboard;
+		return checkerboard.get().corners != null;
 	}
 
 	/**
-	 * Returns a copy of the matrix of checkerboard corners detected in the most recent frame (see
-	 * {@link Calib3d#findChessboardCorners(Mat, Size, MatOfPoint2f, int)}). Since the returned matrix is a copy, it
-	 * is local to this method and may be modified externally.
+	 * Returns a copy of the matrix of checkerboard corners found in the current frame by detection or tracking (see
+	 * {@link Calib3d#findChessboardCorners(Mat, Size, MatOfPoint2f, int)}), or null if the checkerboard wasn't found.
+	 * Since the returned matrix is a copy, it is local to this method and may be modified externally.
 	 */
+	@Nullable
 	public MatOfPoint2f getCorners(){
-		return new MatOfPoint2f(corners.clone()); // This MUST be cloned or it will get overwritten next frame!
+		MatOfPoint2f corners = checkerboard.get().corners;
+		// This MUST be cloned or it could be modified externally!
+		return corners == null ? null : new MatOfPoint2f(corners.clone());
 	}
 
 	@Override
@@ -72,32 +178,200 @@ public abstract class CheckerboardDetectionMode extends LiveMode {
 	@Override
 	public Mat processFrame(VideoFeed videoFeed, Mat frame){
 
-		// findChessboardCorners works best with a greyscale image
-		Imgproc.cvtColor(frame, greyscaleFrame, Imgproc.COLOR_BGR2GRAY);
+		// Both detection and tracking work with a greyscale image
+		if(frame.channels() == 1){
+			frame.copyTo(greyscaleFrame); // Already greyscale, but this gets kept for tracking so it needs copying
+		}else{
+			Imgproc.cvtColor(frame, greyscaleFrame, Imgproc.COLOR_BGR2GRAY);
+		}
+
+		// Pick up the result of the last detection, if it's finished
+		Detection result = completedDetection.getAndSet(null);
+
+		// The existing track, in case the detection can't be tracked from
+		Mat fallbackFrame = null;
+		MatOfPoint2f fallbackCorners = null;
+
+		if(result != null){
+			if(result.corners != null){
+				if(tracking){
+					fallbackFrame = previousFrame;
+					fallbackCorners = corners;
+				}
+				// Track from the image the detection was done on, that way it doesn't matter how long it took
+				previousFrame = result.image;
+				corners = result.corners;
+				tracking = true;
+			}else if(!tracking && foundCheckerboard()){
+				publishCheckerboard(false);
+			}
+		}
+
+		if(tracking){
+
+			MatOfPoint2f trackedCorners = trackCorners(previousFrame, greyscaleFrame, corners);
+
+			if(trackedCorners == null && fallbackCorners != null){
+				// The board moved too far while the detection was running, but it was still being tracked fine, so just
+				// carry on with that and correct any drift next time
+				previousFrame = fallbackFrame;
+				trackedCorners = trackCorners(previousFrame, greyscaleFrame, fallbackCorners);
+			}
+
+			if(trackedCorners != null){
+				corners = trackedCorners;
+				publishCheckerboard(true);
+				// Swap rather than copy, greyscaleFrame gets overwritten next frame anyway
+				Mat temp = previousFrame;
+				previousFrame = greyscaleFrame;
+				greyscaleFrame = temp;
+			}else{
+				tracking = false; // Lost it, go back to detecting from scratch
+				publishCheckerboard(false);
+			}
+		}
+
+		// Only start a new detection once the last one has finished, otherwise they'd just pile up
+		if((!tracking || ++framesSinceDetection >= REDETECT_INTERVAL) && (detection == null || detection.isDone())){
+			// The detection thread gets its own copy because the frame thread will keep using its images
+			Mat image = (tracking ? previousFrame : greyscaleFrame).clone();
+			detection = detectionExecutor.submit(() -> detectCheckerboard(image));
+			framesSinceDetection = 0;
+		}
+
+		return frame; // Return the unmodified frame for further processing
+
+	}
+
+	/** Makes the current corners (or the fact that there aren't any) visible to other threads. */
+	private void publishCheckerboard(boolean found){
+		checkerboard.set(found ? new Checkerboard(corners) : Checkerboard.NOT_FOUND);
+		markOverlayChanged();
+	}
+
+	/**
+	 * Tracks the given corners from one frame to the next using optical flow, and checks that they still form a flat
+	 * grid afterwards.
+	 * @param from The greyscale image the corners are currently in
+	 * @param to The greyscale image to track the corners into
+	 * @param fromCorners The current positions of the corners
+	 * @return The positions of the corners in the new image, or null if tracking failed
+	 */
+	private MatOfPoint2f trackCorners(Mat from, Mat to, MatOfPoint2f fromCorners){
+
+		MatOfPoint2f toCorners = new MatOfPoint2f();
+		MatOfByte status = new MatOfByte();
+
+		Video.calcOpticalFlowPyrLK(from, to, fromCorners, toCorners, status, new MatOfFloat(), FLOW_WINDOW, FLOW_LEVELS);
+
+		// Every corner has to be tracked successfully, otherwise the corners won't line up with the board any more
+		for(byte b : status.toArray()){
+			if(b == 0) return null;
+		}
+
+		// The corners all lie on a flat board, so if they were tracked properly there will be a homography that maps
+		// the board points onto them almost exactly - if any corners slipped, they won't fit
+		Mat homography = Calib3d.findHomography(boardPoints, toCorners);
+		if(homography.empty()) return null;
+
+		MatOfPoint2f expected = new MatOfPoint2f();
+		Core.perspectiveTransform(boardPoints, expected, homography);
+
+		Point[] expectedPoints = expected.toArray();
+		Point[] actualPoints = toCorners.toArray();
+
+		// Size of a square in the image, from the diagonal of the board
+		Point first = expectedPoints[0];
+		Point last = expectedPoints[expectedPoints.length - 1];
+		double squarePixels = Math.hypot(last.x - first.x, last.y - first.y)
+				/ Math.hypot(checkerboardSize.width - 1, checkerboardSize.height - 1);
+		double tolerance = Math.max(MAX_TRACKING_ERROR, squarePixels * MAX_TRACKING_ERROR_FRACTION);
+
+		for(int i = 0; i < actualPoints.length; i++){
+			if(Math.hypot(actualPoints[i].x - expectedPoints[i].x, actualPoints[i].y - expectedPoints[i].y)
+					> tolerance) return null;
+		}
+
+		return toCorners;
+	}
+
+	/**
+	 * Looks for the checkerboard in the given greyscale image and stores the result, ready for the frame thread to pick
+	 * up next frame. This is run on the detection thread.
+	 * @param image A greyscale image at full resolution, which is owned by this method
+	 */
+	private void detectCheckerboard(Mat image){
+		try{
+			completedDetection.set(new Detection(image, findCorners(image)));
+		}catch(RuntimeException e){
+			// Otherwise the future would swallow it, and nobody would ever know why the checkerboard wasn't found
+			System.err.println("Error detecting checkerboard");
+			e.printStackTrace();
+			completedDetection.set(new Detection(image, null));
+		}
+	}
+
+	/** Looks for the checkerboard in the given greyscale image and returns its corners, or null if it wasn't found. */
+	@Nullable
+	private MatOfPoint2f findCorners(Mat image){
+
+		// Detection is much quicker on a smaller image, and finding roughly where the corners are is all it's for
+		double scale = Math.min(1, DETECTION_WIDTH / image.width());
+		Mat small = scale < 1 ? new Mat() : image;
+		if(scale < 1) Imgproc.resize(image, small, new Size(), scale, scale, Imgproc.INTER_AREA);
 
-		// No need to wipe (or worse, re-create) the corners matrix every frame since it is more efficient just to let
-		// findChessboardCorners overwrite it every frame - however, this means it MUST be fully encapsulated, see the
-		// comment in getCorners() above
-		foundCheckerboard = Calib3d.findChessboardCorners(greyscaleFrame, checkerboardSize, corners,
+		MatOfPoint2f newCorners = new MatOfPoint2f();
+
+		boolean found = Calib3d.findChessboardCorners(small, checkerboardSize, newCorners,
 				// Not sure what the flags do, just using the recommended ones for now
 				Calib3d.CALIB_CB_ADAPTIVE_THRESH + Calib3d.CALIB_CB_NORMALIZE_IMAGE + Calib3d.CALIB_CB_FAST_CHECK);
 
-		return frame; // Return the unmodified frame for further processing
+		if(found){
+			// Scale the corners back up and refine them using the full resolution image, so we don't lose any accuracy
+			if(scale < 1) Core.multiply(newCorners, new Scalar(1 / scale, 1 / scale), newCorners);
+			Imgproc.cornerSubPix(image, newCorners, SUBPIX_WINDOW, new Size(-1, -1), SUBPIX_CRITERIA);
+		}
 
+		return found ? newCorners : null;
 	}
 
 	@Override
-	public Mat annotateFrame(VideoFeed videoFeed, Mat frame){
+	protected void reportState(VideoFeed videoFeed, UiState.Builder state){
+		super.reportState(videoFeed, state);
+		state.put(FOUND_CHECKERBOARD, foundCheckerboard());
+	}
 
-		if(foundCheckerboard){
-			Calib3d.drawChessboardCorners(frame, checkerboardSize, videoFeed.transformForDisplay(corners), true);
-			patternDetectedReadout.setText(FlexiweldApp.CHECK_MARK + "Found checkerboard");
-			patternDetectedReadout.setForeground(FlexiweldApp.CONFIRM_TEXT_COLOUR);
-		}else{
-			patternDetectedReadout.setText(FlexiweldApp.CROSS_SYMBOL + "No checkerboard detected");
-			patternDetectedReadout.setForeground(FlexiweldApp.ERROR_TEXT_COLOUR);
+	@Override
+	protected void applyState(UiState state, UiState previous){
+
+		super.applyState(state, previous);
+
+		state.<Boolean>ifChanged(previous, FOUND_CHECKERBOARD, found -> {
+			if(found){
+				patternDetectedReadout.setText(FlexiweldApp.CHECK_MARK + "Found checkerboard");
+				patternDetectedReadout.setForeground(FlexiweldApp.CONFIRM_TEXT_COLOUR);
+			}else{
+				patternDetectedReadout.setText(FlexiweldApp.CROSS_SYMBOL + "No checkerboard detected");
+				patternDetectedReadout.setForeground(FlexiweldApp.ERROR_TEXT_COLOUR);
+			}
+		});
+	}
+
+	@Override
+	public void drawOverlay(VideoFeed videoFeed, Overlay overlay){
+
+		super.drawOverlay(videoFeed, overlay);
+
+		MatOfPoint2f corners = checkerboard.get().corners; // Read it once in case it changes halfway through
+
+		if(corners != null){
+			overlay.checkerboard(videoFeed.transformForDisplay(corners).toArray(), checkerboardSize);
 		}
+	}
 
-		return super.annotateFrame(videoFeed, frame);
+	@Override
+	public void dispose(){
+		detectionExecutor.shutdownNow();
+		super.dispose();
 	}
 }
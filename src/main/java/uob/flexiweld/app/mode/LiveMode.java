@@ -1,32 +1,56 @@
 package uob.flexiweld.app.mode;
 
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
+import uob.flexiweld.app.CameraMode;
 import uob.flexiweld.app.FlexiweldApp;
+import uob.flexiweld.app.QualityGovernor;
+import uob.flexiweld.app.UiState;
 import uob.flexiweld.app.VideoFeed;
 import uob.flexiweld.util.Utils;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Base class for all capture modes that display the live video feed (everything except {@link StandbyMode}). This
- * class controls the buttons common to all modes (stop, pause and snapshot), as well as the status bar fps readout.
+ * class controls the buttons common to all modes (stop, pause, snapshot, mirror and camera mode), as well as the
+ * status bar fps readout.
  * @author Finin Quincey
  */
 public abstract class LiveMode extends CaptureMode {
 
+	/** The name of the session display option that remembers whether the video feed is mirrored. */
+	public static final String MIRROR_OPTION = "mirror";
+
+	/** The option at the top of the camera mode list that lets the mode be changed automatically. */
+	private static final String AUTO_CAMERA_MODE = "Automatic (lower resolution if processing can't keep up)";
+
 	/** A file filter for JPEG images. */
 	private static final FileNameExtensionFilter JPEG_FILTER = Utils.createExtensionFilter("JPEG images", "jpg", "jpeg", "jfif");
 
+	// UI state keys
+	private static final String RESOLUTION = "resolution";
+	private static final String FPS = "fps";
+	private static final String QUALITY = "quality";
+	private static final String QUALITY_COLOUR = "quality_colour";
+
 	/** Status bar label for the camera resolution readout. */
 	private JLabel resolutionReadout;
 
 	/** Status bar label for the camera framerate readout. */
 	private JLabel fpsReadout;
 
+	/** Status bar label for the processing quality readout. */
+	private JLabel qualityReadout;
+
+	/** True while the available camera modes are being checked. */
+	private volatile boolean checkingCameraModes;
+
 	/** Creates a new {@code LiveMode} with the given display name. */
 	public LiveMode(String name){
 		super(name);
@@ -43,9 +67,14 @@ public abstract class LiveMode extends CaptureMode {
 
 		components.add(FlexiweldApp.createButton("\ud83d\udcf7 Snapshot", e -> takeSnapshot(app)));
 
-		JToggleButton mirrorButton = FlexiweldApp.createToggleButton("\u25e7 Mirror", e -> app.getVideoFeed().toggleMirror());
+		JToggleButton mirrorButton = FlexiweldApp.createToggleButton("\u25e7 Mirror", e -> {
+			app.getVideoFeed().toggleMirror();
+			app.getSession().setOption(MIRROR_OPTION, app.getVideoFeed().isMirrored());
+		});
 		mirrorButton.setSelected(app.getVideoFeed().isMirrored());
 		components.add(mirrorButton);
+
+		components.add(FlexiweldApp.createButton("\u2699 Camera", e -> chooseCameraMode(app)));
 	}
 
 	@Override
@@ -53,15 +82,88 @@ public abstract class LiveMode extends CaptureMode {
 		super.populateStatusBar(components);
 		resolutionReadout = FlexiweldApp.addStatusText("", components);
 		fpsReadout = FlexiweldApp.addStatusText("", components);
+		qualityReadout = FlexiweldApp.addStatusText("", components);
 	}
 
 	@Override
 	public Mat annotateFrame(VideoFeed videoFeed, Mat frame){
-		resolutionReadout.setText(videoFeed.getCameraResolution().toString());
-		fpsReadout.setText(String.format("%.4g fps", videoFeed.getFps()));
 		return frame; // Do nothing to the frame
 	}
 
+	@Override
+	protected void reportState(VideoFeed videoFeed, UiState.Builder state){
+		super.reportState(videoFeed, state);
+		CameraMode mode = videoFeed.getCameraMode();
+		state.put(RESOLUTION, checkingCameraModes ? "Checking camera modes..."
+				: mode == null ? videoFeed.getCameraResolution().toString() : mode.toString());
+		state.put(FPS, String.format("%.4g fps", videoFeed.getFps()));
+		QualityGovernor governor = videoFeed.getQualityGovernor();
+		state.put(QUALITY, String.format("Quality: %s (%.0f/%.0f ms)", governor.getLevel().getDisplayName(),
+				governor.getAverageFrameTime(), governor.getTargetFrameTime()));
+		state.put(QUALITY_COLOUR, governor.getLevel() == QualityGovernor.Level.FULL ? FlexiweldApp.STATUS_TEXT_COLOUR
+				: FlexiweldApp.WARNING_TEXT_COLOUR);
+	}
+
+	@Override
+	protected void applyState(UiState state, UiState previous){
+		super.applyState(state, previous);
+		state.ifChanged(previous, RESOLUTION, resolutionReadout::setText);
+		state.ifChanged(previous, FPS, fpsReadout::setText);
+		state.ifChanged(previous, QUALITY, qualityReadout::setText);
+		state.ifChanged(previous, QUALITY_COLOUR, qualityReadout::setForeground);
+	}
+
+	/**
+	 * Finds out which modes the camera supports (which freezes the video for a few seconds the first time) and then
+	 * displays a dialog allowing the user to choose one. The chosen mode is remembered in the session. If this mode
+	 * depends on the resolution (see {@link CaptureMode#dependsOnResolution()}) and the chosen mode has a different
+	 * one, the user is asked to confirm, and the app goes back to measurement mode without calibration or alignment.
+	 */
+	private void chooseCameraMode(FlexiweldApp app){
+		checkingCameraModes = true;
+		app.getVideoFeed().getAvailableCameraModes().whenComplete((modes, e) -> checkingCameraModes = false)
+				.thenAccept(modes -> SwingUtilities.invokeLater(() -> {
+
+			if(!app.getVideoFeed().isRunning()) return; // Camera was stopped in the meantime
+
+			List<Object> options = new ArrayList<>();
+			options.add(AUTO_CAMERA_MODE);
+			options.addAll(modes);
+
+			Object current = app.getVideoFeed().isAutoCameraMode() ? AUTO_CAMERA_MODE : app.getVideoFeed().getCameraMode();
+
+			Object choice = JOptionPane.showInputDialog(app.getFrame(), "Choose the resolution, framerate and pixel "
+					+ "format for the camera.\nLower resolutions are faster but less accurate.", "Camera mode",
+					JOptionPane.QUESTION_MESSAGE, null, options.toArray(), current);
+
+			if(choice == null) return; // Cancelled
+
+			if(choice == AUTO_CAMERA_MODE){
+				app.getVideoFeed().setAutoCameraMode(true);
+				app.getSession().setAutoCameraMode(true);
+			}else{
+
+				CameraMode mode = (CameraMode)choice;
+				Size resolution = app.getVideoFeed().getCameraResolution();
+				boolean discard = dependsOnResolution()
+						&& (mode.getWidth() != resolution.width || mode.getHeight() != resolution.height);
+
+				if(discard && JOptionPane.showConfirmDialog(app.getFrame(), String.format("The calibration and alignment "
+						+ "only apply at %dx%d, so changing the resolution will discard them.\nChange it anyway?",
+						(int)resolution.width, (int)resolution.height), "Camera mode", JOptionPane.OK_CANCEL_OPTION,
+						JOptionPane.WARNING_MESSAGE) != JOptionPane.OK_OPTION) return;
+
+				app.getVideoFeed().setAutoCameraMode(false);
+				app.getSession().setAutoCameraMode(false);
+				app.getVideoFeed().setCameraMode(mode).thenAccept(actual -> SwingUtilities.invokeLater(
+						() -> app.getSession().setCamera(app.getVideoFeed().getCameraNumber(), actual)));
+
+				// The status bar will then show that it isn't calibrated or aligned any more
+				if(discard) app.setMode(new MeasurementMode());
+			}
+		}));
+	}
+
 	/** Captures the current frame and prompts the user to select a location to save it as a JPEG image. */
 	private void takeSnapshot(FlexiweldApp app){
 		app.getVideoFeed().pauseFor(1000); // Pause for a bit so the user can briefly see what was captured
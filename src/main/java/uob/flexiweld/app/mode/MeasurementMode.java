@@ -5,16 +5,30 @@ import org.opencv.core.Point;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import uob.flexiweld.app.FlexiweldApp;
+import uob.flexiweld.app.Overlay;
+import uob.flexiweld.app.QualityGovernor;
+import uob.flexiweld.app.Session;
+import uob.flexiweld.app.UiState;
 import uob.flexiweld.app.VideoFeed;
+import uob.flexiweld.app.metrics.FrameTrace;
+import uob.flexiweld.app.metrics.Histogram;
+import uob.flexiweld.app.metrics.Metrics;
 import uob.flexiweld.geom.Intersection;
 import uob.flexiweld.geom.Line;
 import uob.flexiweld.geom.LineTracker;
+import uob.flexiweld.profiling.MeasurementEvent;
+import uob.flexiweld.profiling.Profiling;
 import uob.flexiweld.util.CalibrationSettings;
+import uob.flexiweld.util.Deadline;
 import uob.flexiweld.util.Utils;
 
+import javax.swing.*;
 import java.awt.*;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Capture mode responsible for processing and display during normal operation, when objects are being measured. This
@@ -48,8 +62,19 @@ public class MeasurementMode extends LiveMode {
 	/** Pairs of parallel, non-coincident lines within this distance of each other are considered to be tubes */
 	private static final double WIDTH_THRESHOLD = 50; // Excludes e.g. the edges of the test card
 
+	/** The fraction of the target frame time that measurement processing is allowed to take. The rest is left for
+	 * display and annotation. */
+	private static final double PROCESSING_BUDGET = 0.75;
+
 	private static final Mat IDENTITY_MATRIX_3X3 = Mat.eye(3, 3, CvType.CV_32F);
 
+	/** Segments and intersections that have moved less than this far since the previous frame keep their track ID, in
+	 * pixels (image space). */
+	private static final double TRACK_RADIUS = 20;
+
+	/** UI state key for whether the results are partial. */
+	private static final String PARTIAL = "partial";
+
 	// Processing parameters
 
 	/** The current calibration settings used for undistorting the video feed. */
@@ -59,18 +84,24 @@ public class MeasurementMode extends LiveMode {
 
 	/** The {@link LineTracker} object used to track the positions of lines over multiple frames. */
 	private final LineTracker lineTracker;
+	/** The quality level currently applied to the line tracker. */
+	private QualityGovernor.Level qualityLevel;
+	/** Whether to record the stage times and result counts in {@link Metrics}. */
+	private boolean recordMetrics = true;
 
 	// Detected features
 
-	/** Stores the list of averaged lines output by the line tracker each frame. */
-	private List<Line> averagedLines;
-	/** Stores the list of centrelines found from the averaged lines each frame.  */
-	private List<Line> centrelines;
+	/** The results of the most recently processed frame. This is the only place the results are stored; everything
+	 * that needs them reads this reference once and then uses that snapshot, so it always sees a consistent set. */
+	private final AtomicReference<MeasurementSnapshot> snapshot = new AtomicReference<>(MeasurementSnapshot.EMPTY);
+	/** Listeners that are notified each time a new snapshot is published, see
+	 * {@link MeasurementMode#addSnapshotListener(Consumer)}. */
+	private final List<Consumer<MeasurementSnapshot>> snapshotListeners = new CopyOnWriteArrayList<>();
 
-	/** Maps intersections to angles of intersection. */
-	private Map<Intersection, Double> intersections;
-	/** Maps line segments (in image space) to their lengths (in world space). */
-	private Map<Line, Double> segments;
+	// Reused from frame to frame to save allocating new ones each time
+	private final MeasurementSnapshot.Builder resultBuilder = new MeasurementSnapshot.Builder();
+	private final MatOfPoint2f worldPoints = new MatOfPoint2f();
+	private float[] worldCoords = new float[0];
 
 	// Display settings (these are pretty self-explanatory)
 
@@ -80,6 +111,16 @@ public class MeasurementMode extends LiveMode {
 	private boolean showIntersections = false;
 	private boolean showAngles = true;
 
+	/** The line tracker debug channel currently shown in place of the video, or null to show the video as normal. */
+	@Nullable private LineTracker.DebugChannel debugView;
+	/** The most recent image from the debug channel being shown, or null if there hasn't been one yet. */
+	@Nullable private Mat debugImage;
+	/** Receives debug images from the line tracker while a debug channel is being shown. */
+	private final Consumer<Mat> debugListener = image -> debugImage = image;
+
+	/** Status bar label for the partial results warning. */
+	private JLabel partialReadout;
+
 	/** Creates a new {@code MeasurementMode} with null calibration settings and alignment matrix. */
 	public MeasurementMode(){
 		this(null, null);
@@ -91,8 +132,18 @@ public class MeasurementMode extends LiveMode {
 		this.calibrationSettings = calibrationSettings;
 		this.alignmentMatrix = alignmentMatrix;
 		this.lineTracker = new LineTracker(5);
-		this.intersections = new HashMap<>();
-		this.segments = new HashMap<>();
+	}
+
+	/** Returns the current calibration settings, or null if the camera is not calibrated. */
+	@Nullable
+	public CalibrationSettings getCalibrationSettings(){
+		return calibrationSettings;
+	}
+
+	/** Returns the current alignment matrix, or null if the camera is not aligned. */
+	@Nullable
+	public Mat getAlignmentMatrix(){
+		return alignmentMatrix;
 	}
 
 	/** Returns true if the camera is calibrated, false if not. */
@@ -105,6 +156,11 @@ public class MeasurementMode extends LiveMode {
 		return alignmentMatrix != null;
 	}
 
+	@Override
+	public boolean dependsOnResolution(){
+		return isCalibrated() || isAligned(); // Both are in terms of the camera's pixels
+	}
+
 	@Override
 	public void populateControls(FlexiweldApp app, List<Component> components){
 
@@ -114,12 +170,25 @@ public class MeasurementMode extends LiveMode {
 		components.add(FlexiweldApp.createButton("\u25a9 " + (isCalibrated() ? "Recalibrate" : "Calibrate"), e -> prepareCalibration(app)));
 		components.add(FlexiweldApp.createButton("\u25a3 " + (isAligned() ? "Realign" : "Align"), e -> prepareAlignment(app)));
 
+		// Restore the display settings from the last session
+		Session session = app.getSession();
+		showLines = session.getOption("lines", showLines);
+		showCentrelines = session.getOption("centrelines", showCentrelines);
+		showSegments = session.getOption("segments", showSegments);
+		showIntersections = session.getOption("intersections", showIntersections);
+		showAngles = session.getOption("angles", showAngles);
+
 		// Annotation visibility toggle buttons
-		components.add(FlexiweldApp.createFancyToggleButton("\u2014 Lines", 		Utils.toColor(LINE_COLOUR), 		showLines, 			e -> showLines 			= !showLines));
-		components.add(FlexiweldApp.createFancyToggleButton("\u2014 Centrelines", 	Utils.toColor(CENTRELINE_COLOUR), 	showCentrelines, 	e -> showCentrelines 	= !showCentrelines));
-		components.add(FlexiweldApp.createFancyToggleButton("\u2014 Segments", 		Utils.toColor(SEGMENT_COLOUR), 		showSegments, 		e -> showSegments 		= !showSegments));
-		components.add(FlexiweldApp.createFancyToggleButton("\u2795 Corners", 		Utils.toColor(INTERSECTION_COLOUR), showIntersections, 	e -> showIntersections 	= !showIntersections));
-		components.add(FlexiweldApp.createFancyToggleButton("\u2aa6 Angles", 		Utils.toColor(ANGLE_COLOUR), 		showAngles, 		e -> showAngles 		= !showAngles));
+		components.add(FlexiweldApp.createFancyToggleButton("\u2014 Lines", 		Utils.toColor(LINE_COLOUR), 		showLines, 			e -> setDisplayOption(session, "lines", 		showLines 			= !showLines)));
+		components.add(FlexiweldApp.createFancyToggleButton("\u2014 Centrelines", 	Utils.toColor(CENTRELINE_COLOUR), 	showCentrelines, 	e -> setDisplayOption(session, "centrelines", 	showCentrelines 	= !showCentrelines)));
+		components.add(FlexiweldApp.createFancyToggleButton("\u2014 Segments", 		Utils.toColor(SEGMENT_COLOUR), 		showSegments, 		e -> setDisplayOption(session, "segments", 		showSegments 		= !showSegments)));
+		components.add(FlexiweldApp.createFancyToggleButton("\u2795 Corners", 		Utils.toColor(INTERSECTION_COLOUR), showIntersections, 	e -> setDisplayOption(session, "intersections", showIntersections 	= !showIntersections)));
+		components.add(FlexiweldApp.createFancyToggleButton("\u2aa6 Angles", 		Utils.toColor(ANGLE_COLOUR), 		showAngles, 		e -> setDisplayOption(session, "angles", 		showAngles 			= !showAngles)));
+
+		// Debug view button, for checking what the line tracker is doing
+		JButton debugButton = FlexiweldApp.createButton(getDebugViewText(), null);
+		debugButton.addActionListener(e -> cycleDebugView(debugButton));
+		components.add(debugButton);
 	}
 
 	@Override
@@ -138,13 +207,74 @@ public class MeasurementMode extends LiveMode {
 		}else{
 			FlexiweldApp.addWarningText("Not aligned", components);
 		}
+
+		partialReadout = FlexiweldApp.addWarningText("Partial results", components);
+		partialReadout.setVisible(false);
+	}
+
+	/** Returns true if processing of the current frame ran out of time before all the measurements were found. */
+	public boolean isPartial(){
+		return snapshot.get().isPartial();
+	}
+
+	/** Returns the results of the most recently processed frame, or {@link MeasurementSnapshot#EMPTY} if no frames have
+	 * been processed yet. This may be called from any thread. */
+	public MeasurementSnapshot getSnapshot(){
+		return snapshot.get();
+	}
+
+	/**
+	 * Sets whether this mode records its stage times and result counts in {@link Metrics} (true by default). This is
+	 * turned off for the frames run through by {@link uob.flexiweld.app.WarmUp}, which aren't real frames and would
+	 * otherwise skew the metrics (they aren't in the processed frame count either, since the {@link VideoFeed} records
+	 * that).
+	 */
+	public void setRecordMetrics(boolean recordMetrics){
+		this.recordMetrics = recordMetrics;
+	}
+
+	/**
+	 * Adds a listener to be notified each time a frame has been processed, with the results of that frame. Listeners
+	 * are called on the processing thread, so they should hand the snapshot off rather than doing anything slow.
+	 * Listeners may be added and removed from any thread.
+	 * @param listener The listener to add
+	 */
+	public void addSnapshotListener(Consumer<MeasurementSnapshot> listener){
+		snapshotListeners.add(listener);
+	}
+
+	/** Removes the given snapshot listener, see {@link MeasurementMode#addSnapshotListener(Consumer)}. */
+	public void removeSnapshotListener(Consumer<MeasurementSnapshot> listener){
+		snapshotListeners.remove(listener);
 	}
 
 	@Override
 	public Mat processFrame(VideoFeed videoFeed, Mat frame){
+		return processFrame(videoFeed, frame, Deadline.after(videoFeed.getQualityGovernor().getTargetFrameTime() * PROCESSING_BUDGET));
+	}
+
+	/**
+	 * Processes the given raw video frame and returns the result, as with {@link CaptureMode#processFrame(VideoFeed, Mat)},
+	 * but stops finding centrelines and intersections once the given deadline has passed. Lines are processed in
+	 * priority order (most stable and longest first), so the most important measurements are found first. If any
+	 * processing was cut short, {@link MeasurementMode#isPartial()} will return true until the next frame.
+	 * @param videoFeed The video feed object calling this method, for reference.
+	 * @param frame The raw video frame (see {@link CaptureMode#processFrame(VideoFeed, Mat)})
+	 * @param deadline The {@link Deadline} by which processing of this frame should be finished
+	 * @return The resulting frame, after processing
+	 */
+	public Mat processFrame(VideoFeed videoFeed, Mat frame, Deadline deadline){
+
+		MeasurementEvent event = Profiling.ENABLED ? new MeasurementEvent() : null;
+		if(event != null) event.begin();
+
+		// The time at the end of each stage, for the metrics and profiling (each timer returns the time it finished)
+		long start = System.nanoTime();
+		long undistorted = start;
 
 		if(isCalibrated()){
 			frame = calibrationSettings.undistort(frame); // Apply lens correction first
+			undistorted = time(Metrics.UNDISTORT_SECONDS, start);
 		}
 
 		// "Image space" refers to coordinates in the undistorted camera frame in pixels, with no other processing
@@ -154,50 +284,61 @@ public class MeasurementMode extends LiveMode {
 		// alignmentMatrix transforms *image* space to *world* space
 		// VideoFeed#transformForDisplay transforms *image* space to *screen* space
 
-		// Discard the intersections and lines from the previous frame
-		intersections.clear();
-		segments.clear();
-
 		// ============================================================================================================
 		// Perform geometry processing in the (undistorted) image space because it's quicker since it has fewer pixels,
 		// and because we won't gain any accuracy by scaling first - accuracy is still limited by the camera resolution
 		// ============================================================================================================
 
-		// Get the averaged lines for this frame from the line tracker
-		averagedLines = lineTracker.processNextFrame(frame);
-		// Find the centrelines from those and store them
-		centrelines = Utils.findCentrelines(averagedLines, WIDTH_THRESHOLD, ANGLE_THRESHOLD);
-		// Sort by angle for easier processing later
-		centrelines.sort(Comparator.comparing(Line::angle).reversed());
+		// Apply the current quality level to the line tracker, if it has changed
+		QualityGovernor.Level level = videoFeed.getQualityGovernor().getLevel();
+		if(level != qualityLevel){
+			level.apply(lineTracker);
+			qualityLevel = level;
+		}
+
+		// Get the averaged lines for this frame from the line tracker (these come out in priority order)
+		List<Line> averagedLines = lineTracker.processNextFrame(frame, videoFeed.getFrameNumber());
+		long tracked = time(Metrics.LINE_TRACKING_SECONDS, undistorted);
+		// Find the centrelines from those (these are also in priority order)
+		List<Line> centrelines = Utils.findCentrelines(averagedLines, WIDTH_THRESHOLD, ANGLE_THRESHOLD, deadline);
+		long centrelined = time(Metrics.CENTRELINES_SECONDS, tracked);
 
 		// Init intersection lists, to be populated by Intersection.intersect(...)
 		List<Intersection> intersectionList = new ArrayList<>();
 		List<Line> segmentList = new ArrayList<>();
 
 		// Find segments and intersections
-		Intersection.intersect(centrelines, intersectionList, segmentList);
+		Intersection.intersect(centrelines, intersectionList, segmentList, deadline);
+		long intersected = time(Metrics.INTERSECTIONS_SECONDS, centrelined);
+
+		boolean partial = deadline.wasMissed();
 
 		// ============================================================================================================
-		// Transform results into the world space to get the actual measurements, and store them in maps for later
+		// Transform results into the world space to get the actual measurements, and collect them in the builder
 		// ============================================================================================================
 
-		MatOfPoint2f dst = new MatOfPoint2f(); // Initialise destination matrix for perspective transform
-
 		Mat transform = isAligned() ? alignmentMatrix : IDENTITY_MATRIX_3X3; // Identity matrix keeps points the same
+		MeasurementSnapshot previous = snapshot.get(); // For matching up track IDs
+
+		resultBuilder.clear();
 
 		// Intersections
 		if(!intersectionList.isEmpty()){
 
 			// Pack the intersections into a matrix and perform the perspective transform on them
-			Core.perspectiveTransform(Intersection.pack(intersectionList), dst, transform);
-			// Unpack the resulting matrix back into a list of intersections
-			List<Intersection> transformedInts = Intersection.unpack(dst);
+			float[] world = toWorld(Intersection.pack(intersectionList), transform);
+			boolean[] claimed = new boolean[previous.getIntersectionCount()];
 
 			for(int i = 0; i < intersectionList.size(); i++){
+				Intersection intersection = intersectionList.get(i);
+				int k = i * 10; // Packed as line A start, line A end, line B start, line B end, point
 				// Measure angle between lines in *world* space
-				double angle = Line.acuteAngleBetween(transformedInts.get(i).getLineA(), transformedInts.get(i).getLineB());
-				// Map *image* space intersection to the angle we just calculated, for annotation use later
-				intersections.put(intersectionList.get(i), angle);
+				double angle = Line.acuteAngleBetween(new Line(world[k], world[k+1], world[k+2], world[k+3]),
+						new Line(world[k+4], world[k+5], world[k+6], world[k+7]));
+				Point point = intersection.getPoint();
+				int id = trackId(videoFeed, previous.intersectionImage, MeasurementSnapshot.INTERSECTION_STRIDE,
+						previous.intersectionIds, claimed, point.x, point.y);
+				resultBuilder.addIntersection(intersection, world[k+8], world[k+9], angle, id);
 			}
 		}
 
@@ -207,61 +348,179 @@ public class MeasurementMode extends LiveMode {
 			// Technically we're transforming some points again here, but that's a fairly inexpensive operation compared
 			// to the alternative of performing the intersections twice (unfortunately this is the price we have to pay
 			// for modularity/maintainability, i.e. not having it all in one loop like it is in LineDetectorTest)
-			Core.perspectiveTransform(Line.pack(segmentList), dst, transform); // Pack into matrix and transform
-			List<Line> transformedLines = Line.unpack(dst); // Unpack back to list of lines
+			float[] world = toWorld(Line.pack(segmentList), transform);
+			boolean[] claimed = new boolean[previous.getSegmentCount()];
 
 			for(int i = 0; i < segmentList.size(); i++){
-				// Map *image* space line to the length of the corresponding line in *world* space
-				segments.put(segmentList.get(i), transformedLines.get(i).length());
+				Line segment = segmentList.get(i);
+				Point midpoint = segment.midpoint();
+				int id = trackId(videoFeed, previous.segmentImage, MeasurementSnapshot.SEGMENT_STRIDE, previous.segmentIds,
+						claimed, midpoint.x, midpoint.y);
+				resultBuilder.addSegment(segment, world, i * MeasurementSnapshot.SEGMENT_STRIDE, id);
 			}
 		}
 
+		// Timestamp the results with when the frame was captured, if we know, since that's when they were measured
+		FrameTrace frameTrace = videoFeed.getFrameTrace();
+		long timestamp = frameTrace == null ? System.currentTimeMillis() : frameTrace.getCaptureTimeMillis();
+		resultBuilder.setFrameTrace(frameTrace);
+
+		// Publish the results all at once, so nothing ever sees half of one frame's results and half of another's
+		// The video feed numbers the frames, since this mode is replaced every time the app goes in and out of it
+		MeasurementSnapshot results = resultBuilder.build(videoFeed.getFrameNumber(), timestamp, averagedLines, centrelines, partial,
+				isAligned());
+		long transformed = time(Metrics.WORLD_TRANSFORM_SECONDS, intersected);
+
+		if(recordMetrics){
+			Metrics.LINES_DETECTED.observe(averagedLines.size());
+			Metrics.SEGMENTS_MEASURED.add(results.getSegmentCount());
+			Metrics.INTERSECTIONS_MEASURED.add(results.getIntersectionCount());
+			if(partial) Metrics.PARTIAL_FRAMES.increment();
+		}
+
+		if(event != null){
+			event.setStageTimes(start, undistorted, tracked, centrelined, intersected, transformed);
+			event.record(videoFeed.getFrameNumber(), averagedLines.size(), centrelines.size(), results.getSegmentCount(),
+					results.getIntersectionCount(), partial);
+		}
+
+		snapshot.set(results);
+		for(Consumer<MeasurementSnapshot> listener : snapshotListeners) listener.accept(results);
+
+		// Only redraw the annotations if the results have actually changed since the previous frame
+		if(!results.hasSameResults(previous)) markOverlayChanged();
+
 		return frame; // Return the undistorted frame for further processing
 	}
 
+	@Override
+	public Mat prepareDisplayFrame(VideoFeed videoFeed, Mat frame){
+		return isCalibrated() ? calibrationSettings.undistort(frame) : frame; // Same lens correction as processFrame
+	}
+
+	/** Records the time since the given start time in the given stage timer, if metrics are being recorded, and returns
+	 * the current time (see {@link Histogram#time(long)}). */
+	private long time(Histogram timer, long start){
+		return recordMetrics ? timer.time(start) : System.nanoTime();
+	}
+
+	/**
+	 * Transforms the given packed image space points into world space using the given transform, and returns their
+	 * coordinates as x, y pairs. The returned array is reused, so it is only valid until the next call, and may be
+	 * longer than the number of coordinates.
+	 */
+	private float[] toWorld(MatOfPoint2f points, Mat transform){
+		Core.perspectiveTransform(points, worldPoints, transform);
+		int n = (int)worldPoints.total() * 2;
+		if(worldCoords.length < n) worldCoords = new float[n];
+		worldPoints.get(0, 0, worldCoords);
+		return worldCoords;
+	}
+
+	/**
+	 * Returns the track ID for a segment or intersection at the given position. If there was an unclaimed segment or
+	 * intersection within {@link MeasurementMode#TRACK_RADIUS} of it in the previous frame, the nearest one is claimed
+	 * and its ID is returned; otherwise a new ID is issued by the video feed (see {@link VideoFeed#nextTrackId()}).
+	 * @param videoFeed The video feed that issues new track IDs
+	 * @param positions The previous frame's image space coordinates, with the x and y of each item at the start of each
+	 *                  stride (for segments, the midpoint is used instead)
+	 * @param stride The number of values per item in the positions array
+	 * @param ids The previous frame's track IDs
+	 * @param claimed Which of the previous frame's items have already been matched
+	 * @param x The x coordinate to match, in image space
+	 * @param y The y coordinate to match, in image space
+	 * @return The track ID
+	 */
+	private int trackId(VideoFeed videoFeed, double[] positions, int stride, int[] ids, boolean[] claimed, double x, double y){
+
+		int nearest = -1;
+		double nearestDistSq = TRACK_RADIUS * TRACK_RADIUS;
+
+		for(int i = 0; i < ids.length; i++){
+			if(claimed[i]) continue;
+			int k = i * stride;
+			// Segments are matched by their midpoints, since the ends move around a lot more
+			double px = stride == MeasurementSnapshot.SEGMENT_STRIDE ? (positions[k] + positions[k+2]) / 2 : positions[k];
+			double py = stride == MeasurementSnapshot.SEGMENT_STRIDE ? (positions[k+1] + positions[k+3]) / 2 : positions[k+1];
+			double distSq = (px - x) * (px - x) + (py - y) * (py - y);
+			if(distSq <= nearestDistSq){
+				nearest = i;
+				nearestDistSq = distSq;
+			}
+		}
+
+		if(nearest < 0) return videoFeed.nextTrackId();
+		claimed[nearest] = true;
+		return ids[nearest];
+	}
+
 	@Override
 	public Mat annotateFrame(VideoFeed videoFeed, Mat frame){
 
+		if(debugView != null && debugImage != null){
+			// Show the debug image instead, transformed in the same way as the video so the overlay still lines up
+			Imgproc.warpAffine(debugImage, frame, videoFeed.getDisplayTransform(), videoFeed.getOutputSize(),
+					Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE, new Scalar(0));
+		}
+
+		return super.annotateFrame(videoFeed, frame);
+	}
+
+	@Override
+	protected void reportState(VideoFeed videoFeed, UiState.Builder state){
+		super.reportState(videoFeed, state);
+		state.put(PARTIAL, snapshot.get().isPartial());
+	}
+
+	@Override
+	protected void applyState(UiState state, UiState previous){
+		super.applyState(state, previous);
+		state.ifChanged(previous, PARTIAL, partialReadout::setVisible);
+	}
+
+	@Override
+	public void drawOverlay(VideoFeed videoFeed, Overlay overlay){
+
+		super.drawOverlay(videoFeed, overlay);
+
+		MeasurementSnapshot results = snapshot.get(); // Read it once so everything drawn is from the same frame
+
 		if(showLines){
-			for(Line line : averagedLines){
-				Imgproc.line(frame, videoFeed.transformForDisplay(line.getStart()), videoFeed.transformForDisplay(line.getEnd()),
-						LINE_COLOUR, 2);
+			for(Line line : results.getAveragedLines()){
+				overlay.line(videoFeed.transformForDisplay(line), LINE_COLOUR, 2);
 			}
 		}
 
 		if(showCentrelines){
-			for(Line line : centrelines){
-				Imgproc.line(frame, videoFeed.transformForDisplay(line.getStart()), videoFeed.transformForDisplay(line.getEnd()),
-						CENTRELINE_COLOUR, 2);
+			for(Line line : results.getCentrelines()){
+				overlay.line(videoFeed.transformForDisplay(line), CENTRELINE_COLOUR, 2);
 			}
 		}
 
 		if(showSegments){
-			for(Line segment : segments.keySet()){
-				Line line = videoFeed.transformForDisplay(segment);
-				Imgproc.line(frame, line.getStart(), line.getEnd(), SEGMENT_COLOUR, 2);
-				Imgproc.putText(frame, String.format("%.2fmm", segments.get(segment)), line.midpoint(),
-						Core.FONT_HERSHEY_PLAIN, 2, SEGMENT_COLOUR, 2);
+			for(int i = 0; i < results.getSegmentCount(); i++){
+				Line line = videoFeed.transformForDisplay(results.getSegment(i));
+				overlay.line(line, SEGMENT_COLOUR, 2);
+				overlay.text(String.format("%.2fmm", results.getSegmentLength(i)), line.midpoint(), SEGMENT_COLOUR);
 			}
 		}
 
-		for(Intersection intersection : intersections.keySet()){
+		for(int i = 0; i < results.getIntersectionCount(); i++){
 
-			Point point = videoFeed.transformForDisplay(intersection.getPoint());
+			Point point = videoFeed.transformForDisplay(results.getIntersectionPoint(i));
 
 			if(showIntersections){
-				Imgproc.drawMarker(frame, point, INTERSECTION_COLOUR, Imgproc.MARKER_CROSS, 14, 2);
+				overlay.marker(point, INTERSECTION_COLOUR, 14, 2);
 				// TODO: If we're going to display coordinates, we need to store the original point
-//				Imgproc.putText(frame, String.format("(%.2f, %.2f)", point.x, point.y), point,
-//						Core.FONT_HERSHEY_PLAIN, 2, INTERSECTION_COLOUR, 2);
+//				overlay.text(String.format("(%.2f, %.2f)", point.x, point.y), point, INTERSECTION_COLOUR);
 			}
 
 			if(showAngles){
 
 				// Determine absolute start and end angle for the arc to be displayed
-				// Because the centrelines were sorted by angle earlier, line B always has the smaller angle
-				double startAngle = videoFeed.transformForDisplay(intersection.getLineB()).angle();
-				double endAngle = videoFeed.transformForDisplay(intersection.getLineA()).angle();
+				// Intersection.intersect(...) always puts the line with the smaller angle as line B
+				double startAngle = videoFeed.transformForDisplay(results.getIntersectionLineB(i)).angle();
+				double endAngle = videoFeed.transformForDisplay(results.getIntersectionLineA(i)).angle();
 
 				if(startAngle < -Math.PI / 2) startAngle += Math.PI;
 
@@ -273,17 +532,42 @@ public class MeasurementMode extends LiveMode {
 
 				double midAngle = (startAngle + endAngle) / 2; // Should be fine since centrelines are rectified
 
-				Imgproc.ellipse(frame, point, ELLIPSE_SIZE, 0, Math.toDegrees(startAngle),
-						Math.toDegrees(endAngle), ANGLE_COLOUR, 2);
+				overlay.arc(point, ELLIPSE_SIZE, Math.toDegrees(startAngle), Math.toDegrees(endAngle), ANGLE_COLOUR, 2);
 
-				Imgproc.putText(frame, String.format("%.2fdeg", Math.toDegrees(intersections.get(intersection))),
+				overlay.text(String.format("%.2f\u00b0", Math.toDegrees(results.getIntersectionAngle(i))),
 						new Point(point.x + ANGLE_DISPLAY_RADIUS * Math.cos(midAngle),
-								point.y + ANGLE_DISPLAY_RADIUS * Math.sin(midAngle) + 10),
-						Core.FONT_HERSHEY_PLAIN, 2, ANGLE_COLOUR, 2);
+								point.y + ANGLE_DISPLAY_RADIUS * Math.sin(midAngle) + 10), ANGLE_COLOUR);
 			}
 		}
+	}
 
-		return super.annotateFrame(videoFeed, frame);
+	/**
+	 * Switches to showing the next line tracker debug channel in place of the video, or back to the video after the
+	 * last one. Only the channel being shown is subscribed to, so the others aren't produced.
+	 */
+	private void cycleDebugView(JButton button){
+
+		if(debugView != null) lineTracker.unsubscribe(debugView, debugListener);
+
+		LineTracker.DebugChannel[] channels = LineTracker.DebugChannel.values();
+		int next = debugView == null ? 0 : debugView.ordinal() + 1;
+		debugView = next < channels.length ? channels[next] : null;
+		debugImage = null; // Don't show the previous channel's image
+
+		if(debugView != null) lineTracker.subscribe(debugView, debugListener);
+
+		button.setText(getDebugViewText());
+	}
+
+	/** Returns the text for the debug view button. */
+	private String getDebugViewText(){
+		return "\ud83d\udd0d View: " + (debugView == null ? "Normal" : debugView.getDisplayName());
+	}
+
+	/** Records the given display option in the session and redraws the overlay to show or hide the annotations. */
+	private void setDisplayOption(Session session, String name, boolean value){
+		session.setOption(name, value);
+		markOverlayChanged();
 	}
 
 	/** Prompts the user to enter calibration parameters and then switches the app into calibration mode. */
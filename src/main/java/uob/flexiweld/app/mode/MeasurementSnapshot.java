@@ -0,0 +1,336 @@
+package uob.flexiweld.app.mode;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.Point;
+import uob.flexiweld.app.metrics.FrameTrace;
+import uob.flexiweld.geom.Intersection;
+import uob.flexiweld.geom.Line;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The results of processing a single frame in {@link MeasurementMode}: the lines that were detected, the centrelines
+ * found from them, and the measured segment lengths and intersection angles. {@code MeasurementSnapshot} objects are
+ * immutable, so they can be passed between threads and read by any number of consumers (the display, exporters, etc.)
+ * without any locking, while the next frame is being processed.
+ * <p></p>
+ * Segments and intersections are stored in parallel arrays of primitives and accessed by index, in priority order
+ * (index 0 is the most important). Each one has a track ID, which stays the same from frame to frame for as long as
+ * that segment or intersection is still there, so results from different frames can be matched up.
+ * <p></p>
+ * All lines and points are in the (undistorted) image space, in pixels, unless they are described as world
+ * coordinates. World coordinates and lengths are in millimetres if the camera has been aligned, or the same as the
+ * image space if not. Angles are in radians.
+ * @author Finin Quincey
+ */
+public final class MeasurementSnapshot {
+
+	/** A {@code MeasurementSnapshot} with no results in it, used before the first frame has been processed. */
+	public static final MeasurementSnapshot EMPTY = new Builder().build(0, 0, Collections.emptyList(),
+			Collections.emptyList(), false, false);
+
+	// Number of values stored per item in each array
+	static final int SEGMENT_STRIDE = 4; // x1, y1, x2, y2
+	static final int INTERSECTION_STRIDE = 2; // x, y
+	static final int INTERSECTION_LINES_STRIDE = 8; // Line A x1, y1, x2, y2, then line B x1, y1, x2, y2
+
+	private final long frameNumber;
+	private final long timestamp;
+	private final List<Line> averagedLines;
+	private final List<Line> centrelines;
+	private final boolean partial;
+	private final boolean aligned;
+	@Nullable private final FrameTrace frameTrace;
+
+	private final int segmentCount;
+	final double[] segmentImage;
+	private final double[] segmentWorld;
+	private final double[] segmentLengths;
+	final int[] segmentIds;
+
+	private final int intersectionCount;
+	final double[] intersectionImage;
+	private final double[] intersectionLines;
+	private final double[] intersectionWorld;
+	private final double[] intersectionAngles;
+	final int[] intersectionIds;
+
+	/** Creates a new {@code MeasurementSnapshot} from the given builder. The arrays are copied, so the builder can be
+	 * reused straight away. */
+	private MeasurementSnapshot(Builder builder, long frameNumber, long timestamp, List<Line> averagedLines,
+								List<Line> centrelines, boolean partial, boolean aligned){
+
+		this.frameNumber = frameNumber;
+		this.timestamp = timestamp;
+		// Lines are already immutable, so shallow copies are enough
+		this.averagedLines = Collections.unmodifiableList(new ArrayList<>(averagedLines));
+		this.centrelines = Collections.unmodifiableList(new ArrayList<>(centrelines));
+		this.partial = partial;
+		this.aligned = aligned;
+		this.frameTrace = builder.frameTrace;
+
+		int n = builder.segmentCount;
+		this.segmentCount = n;
+		this.segmentImage = Arrays.copyOf(builder.segmentImage, n * SEGMENT_STRIDE);
+		this.segmentWorld = Arrays.copyOf(builder.segmentWorld, n * SEGMENT_STRIDE);
+		this.segmentLengths = Arrays.copyOf(builder.segmentLengths, n);
+		this.segmentIds = Arrays.copyOf(builder.segmentIds, n);
+
+		int m = builder.intersectionCount;
+		this.intersectionCount = m;
+		this.intersectionImage = Arrays.copyOf(builder.intersectionImage, m * INTERSECTION_STRIDE);
+		this.intersectionLines = Arrays.copyOf(builder.intersectionLines, m * INTERSECTION_LINES_STRIDE);
+		this.intersectionWorld = Arrays.copyOf(builder.intersectionWorld, m * INTERSECTION_STRIDE);
+		this.intersectionAngles = Arrays.copyOf(builder.intersectionAngles, m);
+		this.intersectionIds = Arrays.copyOf(builder.intersectionIds, m);
+	}
+
+	/** Returns the number of the frame these results are from, as numbered by the video feed (see
+	 * {@link uob.flexiweld.app.VideoFeed#getFrameNumber()}), or 0 for {@link MeasurementSnapshot#EMPTY}. Frames
+	 * processed outside measurement mode have numbers too, so there may be gaps. */
+	public long getFrameNumber(){
+		return frameNumber;
+	}
+
+	/** Returns the time at which the frame was captured (or processed, if the capture time isn't known), in
+	 * milliseconds since the epoch. */
+	public long getTimestamp(){
+		return timestamp;
+	}
+
+	/** Returns the {@link FrameTrace} for the frame these results are from, or null if it wasn't traced. */
+	@Nullable
+	public FrameTrace getFrameTrace(){
+		return frameTrace;
+	}
+
+	/** Returns the averaged lines output by the line tracker, in priority order. The returned list is unmodifiable. */
+	public List<Line> getAveragedLines(){
+		return averagedLines;
+	}
+
+	/** Returns the centrelines found from the averaged lines, in priority order. The returned list is unmodifiable. */
+	public List<Line> getCentrelines(){
+		return centrelines;
+	}
+
+	/** Returns true if processing ran out of time, meaning not all lines were paired or intersected. */
+	public boolean isPartial(){
+		return partial;
+	}
+
+	/** Returns true if the camera was aligned, meaning world coordinates and lengths are in millimetres. */
+	public boolean isAligned(){
+		return aligned;
+	}
+
+	// Segments
+
+	/** Returns the number of line segments measured. */
+	public int getSegmentCount(){
+		return segmentCount;
+	}
+
+	/** Returns the segment with the given index, in image coordinates. */
+	public Line getSegment(int i){
+		return lineAt(segmentImage, i * SEGMENT_STRIDE);
+	}
+
+	/** Returns the segment with the given index, in world coordinates. */
+	public Line getWorldSegment(int i){
+		return lineAt(segmentWorld, i * SEGMENT_STRIDE);
+	}
+
+	/** Returns the length of the segment with the given index, in world units. */
+	public double getSegmentLength(int i){
+		return segmentLengths[i];
+	}
+
+	/** Returns the track ID of the segment with the given index. */
+	public int getSegmentId(int i){
+		return segmentIds[i];
+	}
+
+	// Intersections
+
+	/** Returns the number of intersections measured. */
+	public int getIntersectionCount(){
+		return intersectionCount;
+	}
+
+	/** Returns the point where the intersection with the given index lies, in image coordinates. */
+	public Point getIntersectionPoint(int i){
+		return new Point(intersectionImage[i * INTERSECTION_STRIDE], intersectionImage[i * INTERSECTION_STRIDE + 1]);
+	}
+
+	/** Returns the point where the intersection with the given index lies, in world coordinates. */
+	public Point getWorldIntersectionPoint(int i){
+		return new Point(intersectionWorld[i * INTERSECTION_STRIDE], intersectionWorld[i * INTERSECTION_STRIDE + 1]);
+	}
+
+	/** Returns the first line of the intersection with the given index, in image coordinates (see
+	 * {@link Intersection#getLineA()}). */
+	public Line getIntersectionLineA(int i){
+		return lineAt(intersectionLines, i * INTERSECTION_LINES_STRIDE);
+	}
+
+	/** Returns the second line of the intersection with the given index, in image coordinates (see
+	 * {@link Intersection#getLineB()}). */
+	public Line getIntersectionLineB(int i){
+		return lineAt(intersectionLines, i * INTERSECTION_LINES_STRIDE + 4);
+	}
+
+	/** Returns the (acute) angle between the lines of the intersection with the given index, in world space. */
+	public double getIntersectionAngle(int i){
+		return intersectionAngles[i];
+	}
+
+	/** Returns the track ID of the intersection with the given index. */
+	public int getIntersectionId(int i){
+		return intersectionIds[i];
+	}
+
+	/**
+	 * Returns true if the given snapshot has exactly the same results as this one, i.e. the same lines, segments and
+	 * intersections in the same places, with the same measurements and track IDs. The frame number, timestamp and
+	 * trace aren't compared, since they are different for every frame.
+	 */
+	public boolean hasSameResults(MeasurementSnapshot other){
+		// Cheapest checks first, most frames will fail one of these if they're different at all
+		return segmentCount == other.segmentCount && intersectionCount == other.intersectionCount
+				&& partial == other.partial && aligned == other.aligned
+				&& Arrays.equals(segmentIds, other.segmentIds) && Arrays.equals(intersectionIds, other.intersectionIds)
+				&& Arrays.equals(segmentImage, other.segmentImage) && Arrays.equals(segmentLengths, other.segmentLengths)
+				&& Arrays.equals(intersectionImage, other.intersectionImage)
+				&& Arrays.equals(intersectionLines, other.intersectionLines)
+				&& Arrays.equals(intersectionAngles, other.intersectionAngles)
+				&& sameLines(averagedLines, other.averagedLines) && sameLines(centrelines, other.centrelines);
+	}
+
+	private static boolean sameLines(List<Line> lines, List<Line> others){
+		if(lines.size() != others.size()) return false;
+		for(int i = 0; i < lines.size(); i++){
+			Line line = lines.get(i);
+			Line other = others.get(i);
+			if(!line.getStart().equals(other.getStart()) || !line.getEnd().equals(other.getEnd())) return false;
+		}
+		return true;
+	}
+
+	private static Line lineAt(double[] array, int offset){
+		return new Line(array[offset], array[offset + 1], array[offset + 2], array[offset + 3]);
+	}
+
+	/**
+	 * Collects the segments and intersections for a {@link MeasurementSnapshot}. Builders are intended to be reused from
+	 * frame to frame (call {@link Builder#clear()} at the start of each frame), so that the arrays only need allocating
+	 * again when there are more results than ever before. Builders are not thread-safe.
+	 */
+	public static final class Builder {
+
+		private static final int INITIAL_CAPACITY = 16;
+
+		private int segmentCount;
+		private double[] segmentImage = new double[INITIAL_CAPACITY * SEGMENT_STRIDE];
+		private double[] segmentWorld = new double[INITIAL_CAPACITY * SEGMENT_STRIDE];
+		private double[] segmentLengths = new double[INITIAL_CAPACITY];
+		private int[] segmentIds = new int[INITIAL_CAPACITY];
+
+		private int intersectionCount;
+		private double[] intersectionImage = new double[INITIAL_CAPACITY * INTERSECTION_STRIDE];
+		private double[] intersectionLines = new double[INITIAL_CAPACITY * INTERSECTION_LINES_STRIDE];
+		private double[] intersectionWorld = new double[INITIAL_CAPACITY * INTERSECTION_STRIDE];
+		private double[] intersectionAngles = new double[INITIAL_CAPACITY];
+		private int[] intersectionIds = new int[INITIAL_CAPACITY];
+
+		@Nullable private FrameTrace frameTrace;
+
+		/** Removes all the segments, intersections and the frame trace from this builder, ready for the next frame. */
+		public void clear(){
+			segmentCount = 0;
+			intersectionCount = 0;
+			frameTrace = null;
+		}
+
+		/** Sets the {@link FrameTrace} for the frame the results are from, or null if it isn't being traced. */
+		public void setFrameTrace(@Nullable FrameTrace frameTrace){
+			this.frameTrace = frameTrace;
+		}
+
+		/**
+		 * Adds a segment to this builder.
+		 * @param image The segment in image coordinates
+		 * @param world The world coordinates of the segment, as x1, y1, x2, y2 starting at the given offset
+		 * @param offset The index of the first world coordinate in the given array
+		 * @param id The track ID of the segment
+		 */
+		public void addSegment(Line image, float[] world, int offset, int id){
+
+			if(segmentCount == segmentLengths.length){
+				int capacity = segmentCount * 2;
+				segmentImage = Arrays.copyOf(segmentImage, capacity * SEGMENT_STRIDE);
+				segmentWorld = Arrays.copyOf(segmentWorld, capacity * SEGMENT_STRIDE);
+				segmentLengths = Arrays.copyOf(segmentLengths, capacity);
+				segmentIds = Arrays.copyOf(segmentIds, capacity);
+			}
+
+			int i = segmentCount * SEGMENT_STRIDE;
+			put(segmentImage, i, image);
+			for(int j = 0; j < SEGMENT_STRIDE; j++) segmentWorld[i + j] = world[offset + j];
+			segmentLengths[segmentCount] = Math.hypot(world[offset + 2] - world[offset], world[offset + 3] - world[offset + 1]);
+			segmentIds[segmentCount] = id;
+			segmentCount++;
+		}
+
+		/**
+		 * Adds an intersection to this builder.
+		 * @param image The intersection in image coordinates
+		 * @param worldX The x coordinate of the intersection point in world space
+		 * @param worldY The y coordinate of the intersection point in world space
+		 * @param angle The angle between the lines of the intersection, in world space
+		 * @param id The track ID of the intersection
+		 */
+		public void addIntersection(Intersection image, double worldX, double worldY, double angle, int id){
+
+			if(intersectionCount == intersectionAngles.length){
+				int capacity = intersectionCount * 2;
+				intersectionImage = Arrays.copyOf(intersectionImage, capacity * INTERSECTION_STRIDE);
+				intersectionLines = Arrays.copyOf(intersectionLines, capacity * INTERSECTION_LINES_STRIDE);
+				intersectionWorld = Arrays.copyOf(intersectionWorld, capacity * INTERSECTION_STRIDE);
+				intersectionAngles = Arrays.copyOf(intersectionAngles, capacity);
+				intersectionIds = Arrays.copyOf(intersectionIds, capacity);
+			}
+
+			int i = intersectionCount * INTERSECTION_STRIDE;
+			Point point = image.getPoint();
+			intersectionImage[i] = point.x;
+			intersectionImage[i + 1] = point.y;
+			intersectionWorld[i] = worldX;
+			intersectionWorld[i + 1] = worldY;
+			put(intersectionLines, intersectionCount * INTERSECTION_LINES_STRIDE, image.getLineA());
+			put(intersectionLines, intersectionCount * INTERSECTION_LINES_STRIDE + 4, image.getLineB());
+			intersectionAngles[intersectionCount] = angle;
+			intersectionIds[intersectionCount] = id;
+			intersectionCount++;
+		}
+
+		/** Returns a new {@link MeasurementSnapshot} with the results added to this builder and the given values. */
+		public MeasurementSnapshot build(long frameNumber, long timestamp, List<Line> averagedLines, List<Line> centrelines,
+										 boolean partial, boolean aligned){
+			return new MeasurementSnapshot(this, frameNumber, timestamp, averagedLines, centrelines, partial, aligned);
+		}
+
+		private static void put(double[] array, int offset, Line line){
+			Point start = line.getStart();
+			Point end = line.getEnd();
+			array[offset] = start.x;
+			array[offset + 1] = start.y;
+			array[offset + 2] = end.x;
+			array[offset + 3] = end.y;
+		}
+	}
+
+}
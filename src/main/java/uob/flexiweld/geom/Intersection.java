@@ -2,6 +2,7 @@ package uob.flexiweld.geom;
 
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
+import uob.flexiweld.util.Deadline;
 
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -32,7 +33,8 @@ public class Intersection {
 		return point.clone(); // Return a copy to ensure immutability
 	}
 
-	/** Returns the first {@link Line} on which this intersection lies. */
+	/** Returns the first {@link Line} on which this intersection lies. For intersections found using
+	 * {@link Intersection#intersect(List, List, List)}, this is the line with the larger angle. */
 	public Line getLineA(){
 		return lineA; // Lines are already immutable so can be returned directly
 	}
@@ -94,6 +96,19 @@ public class Intersection {
 	 * @param segments A list of lines to be populated with the line segments between intersections (will be cleared)
 	 */
 	public static void intersect(List<Line> lines, List<Intersection> intersections, List<Line> segments){
+		intersect(lines, intersections, segments, Deadline.NONE);
+	}
+
+	/**
+	 * Finds intersections between the given list of lines. Lines are processed in the order given, and processing
+	 * stops early if the given deadline passes. All intersections and segments are found for each line that gets
+	 * processed, so the results for the earlier lines in the list are always complete.
+	 * @param lines A list of lines whose intersections are to be found, in priority order
+	 * @param intersections A list of intersections to be populated with the intersections found (will be cleared)
+	 * @param segments A list of lines to be populated with the line segments between intersections (will be cleared)
+	 * @param deadline The {@link Deadline} by which processing should stop
+	 */
+	public static void intersect(List<Line> lines, List<Intersection> intersections, List<Line> segments, Deadline deadline){
 
 		intersections.clear();
 		segments.clear();
@@ -102,7 +117,7 @@ public class Intersection {
 		// again, find which ones lie on a given line, sort them and find the segments - for every single line.
 		// Sometimes efficiency is more important than separation of concerns!
 
-		for(int i = 0; i < lines.size(); i++){ // Don't use enhanced for loop or we'll get a CME
+		for(int i = 0; i < lines.size() && !deadline.hasPassed(); i++){ // Don't use enhanced for loop or we'll get a CME
 
 			Line lineA = lines.get(i);
 
@@ -121,7 +136,9 @@ public class Intersection {
 
 					if(j >= i){
 						// Only add intersections with lines that have already been processed
-						intersections.add(new Intersection(lineA, lineB, intersection));
+						// Line A is always the one with the larger angle, regardless of the order they were given in
+						intersections.add(lineA.angle() >= lineB.angle() ? new Intersection(lineA, lineB, intersection)
+								: new Intersection(lineB, lineA, intersection));
 					}
 				}
 			}
@@ -1,50 +1,104 @@
 package uob.flexiweld.geom;
 
-import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
+import uob.flexiweld.profiling.LineTrackingEvent;
+import uob.flexiweld.profiling.Profiling;
 import uob.flexiweld.util.Utils;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A {@code LineTracker} object allows lines in a video stream to be tracked using a 'fuzzy moving average' method. The
- * primary method, {@link LineTracker#processNextFrame(Mat)}, processes a single frame of the video to extract the
+ * primary method, {@link LineTracker#processNextFrame(Mat, long)}, processes a single frame of the video to extract the
  * lines. Each {@code LineTracker} maintains a record of the raw lines detected for a given number of previous frames,
  * as specified in the constructor. This data is used to perform the aforementioned fuzzy moving average.
  * <p></p>
  * A variety of parameters may also be set to change the behaviour of the line detector and the averaging process. These
  * default to generally-applicable values if not set.
+ * <p></p>
+ * For debugging, the intermediate results of each frame can be viewed by subscribing to one of the
+ * {@link DebugChannel}s. Debug images are only produced for channels that have subscribers, so there is no cost
+ * when nothing is subscribed.
+ * <p></p>
+ * The averaged lines are returned in priority order: lines that were detected consistently over the previous frames
+ * come first, followed by less stable lines, with longer lines first within each group. Later processing stages that
+ * may not have time to deal with every line should therefore work through them in order.
  * @see Line
  * @author Finin Quincey
  */
 public class LineTracker {
 
+	/** The intermediate results of processing a frame that can be viewed for debugging purposes. */
+	public enum DebugChannel {
+
+		/** The output of the edge detector, as a single-channel image. Areas of the frame that weren't searched
+		 * (see {@link LineTracker#rescanInterval(int)}) are black. */
+		EDGES("Edges"),
+		/** The frame with the raw lines from the Hough transform drawn on it, before averaging. */
+		RAW_LINES("Raw lines"),
+		/** The frame with the lines resulting from the fuzzy moving average drawn on it. */
+		FUSED_LINES("Fused lines");
+
+		private final String displayName;
+
+		DebugChannel(String displayName){
+			this.displayName = displayName;
+		}
+
+		/** Returns the name of this debug channel, for displaying to the user. */
+		public String getDisplayName(){
+			return displayName;
+		}
+	}
+
 	/** The maximum number of lines that can be displayed at once (does not affect processing, only display) */
 	private static final int MAX_DISPLAYED_LINES = 50;
 
-	/** Number of frames to average over when performing fuzzy average of lines */
-	public final int interpFrames;
+	/** The margin added around the previously-detected lines when only searching a region of interest, in pixels. */
+	private static final int ROI_MARGIN = 60;
 
 	// These values may be changed between frames
+	/** Number of frames to average over when performing fuzzy average of lines */
+	private int interpFrames;
 	/** Lines within this angle of each other are considered parallel */
 	private double angleThreshold = Math.toRadians(10);
 	/** Parallel lines within this distance of each other are considered coincident */
 	private double proximityThreshold = 10;
 	/** Lines whose endpoints both lie within this distance of the edge of the frame will be discarded */
 	private double border = 20;
-	/** Whether the raw detected lines will be drawn onto the frame when {@link LineTracker#processNextFrame(Mat)} is called */
-	private boolean annotations = false;
-	/** Whether {@link LineTracker#processNextFrame(Mat)} returns the result of the edge detector instead of the original frame. */
-	private boolean showEdges = false;
+
+	/** The factor by which frames are scaled before edge detection. Lines are always returned in full-size coordinates. */
+	private double processingScale = 1;
+	/** The minimum number of votes for the Hough transform to accept a line, at full resolution. */
+	private int houghThreshold = 40;
+	/** The minimum length of lines accepted by the Hough transform, in pixels at full resolution. */
+	private double minLineLength = 20;
+	/** The maximum gap between two segments for the Hough transform to join them together, in pixels at full resolution. */
+	private double maxLineGap = 20;
+	/** The whole frame is searched for lines every this many frames. In between, only the region around the lines
+	 * found previously is searched. A value of 1 means the whole frame is searched every time. */
+	private int rescanInterval = 1;
+	/** The maximum number of raw lines kept from each frame. If the Hough transform finds more than this, only the
+	 * longest ones are kept. This stops noisy frames from making the averaging process take forever. */
+	private int maxLines = 200;
+
+	/** The number of frames left before the whole frame is next rescanned (0 means the next one is). This only
+	 * counts frames this tracker has processed; it isn't a frame number. */
+	private int framesUntilRescan;
+	/** The averaged lines output by the previous call to {@link LineTracker#processNextFrame(Mat, long)}. */
+	private List<Line> lastAveragedLines = new ArrayList<>();
 
 	/** Stores the lines from the last n frames for averaging. Each sub-list is one frame, ordered oldest to newest. */
 	private final List<List<Line>> prevLines = new ArrayList<>();
 
+	/** The consumers subscribed to each debug channel. Channels with no subscribers are not in the map at all. */
+	private final Map<DebugChannel, List<Consumer<Mat>>> debugSubscribers = new EnumMap<>(DebugChannel.class);
+
 	/**
 	 * Constructs a new {@code LineTracker} which averages over the given number of frames.
 	 * @param interpFrames The number of frames to perform the fuzzy moving average over. Higher numbers result in
@@ -54,6 +108,24 @@ public class LineTracker {
 		this.interpFrames = interpFrames;
 	}
 
+	/** Returns the number of frames this line tracker currently averages over. */
+	public int getInterpFrames(){
+		return interpFrames;
+	}
+
+	/**
+	 * Sets the number of frames this line tracker averages over. If this is fewer than the number of frames currently
+	 * stored, the oldest frames are discarded straight away.
+	 * @param frames The number of frames to perform the fuzzy moving average over
+	 * @return The {@code LineTracker} object, allowing this method to be chained onto the constructor.
+	 */
+	public LineTracker interpFrames(int frames){
+		if(frames < 1) throw new IllegalArgumentException("Must average over at least one frame");
+		this.interpFrames = frames;
+		while(prevLines.size() > interpFrames) prevLines.remove(0);
+		return this;
+	}
+
 	/**
 	 * Sets the angle threshold for this line tracker. Lines with less than this angle between them will be considered
 	 * parallel. This value is 10 degrees by default.
@@ -88,50 +160,117 @@ public class LineTracker {
 	}
 
 	/**
-	 * Sets whether the original frame or the result of the edge detector will be returned by
-	 * {@link LineTracker#processNextFrame(Mat)}.
-	 * @param edges True to return the result of the edge detector, false to return the original frame.
+	 * Sets the processing scale for this line tracker. Frames are scaled down by this factor before edge detection,
+	 * which is much quicker but less accurate. This value is 1 (full resolution) by default.
+	 * @param scale The processing scale, between 0 (exclusive) and 1 (inclusive)
+	 * @return The {@code LineTracker} object, allowing this method to be chained onto the constructor.
+	 */
+	public LineTracker processingScale(double scale){
+		if(scale <= 0 || scale > 1) throw new IllegalArgumentException("Processing scale must be between 0 and 1");
+		this.processingScale = scale;
+		return this;
+	}
+
+	/**
+	 * Sets the Hough threshold for this line tracker. Fewer, stronger lines are detected with higher thresholds. The
+	 * threshold is given for a full-resolution frame and is scaled automatically with the processing scale. This value
+	 * is 40 by default.
+	 * @param votes The minimum number of votes for a line to be detected
 	 * @return The {@code LineTracker} object, allowing this method to be chained onto the constructor.
 	 */
-	public LineTracker edges(boolean edges){
-		this.showEdges = edges;
+	public LineTracker houghThreshold(int votes){
+		this.houghThreshold = votes;
 		return this;
 	}
 
 	/**
-	 * Sets whether the raw detected lines will be drawn onto the frame when {@link LineTracker#processNextFrame(Mat)}
-	 * is called.
-	 * @param annotations True to enable annotations, false to disable them.
+	 * Sets the rescan interval for this line tracker. The whole frame is searched for lines every this many frames; in
+	 * between, only the region surrounding the most recently detected lines is searched. This value is 1 (search the
+	 * whole frame every time) by default.
+	 * @param frames The number of frames between full rescans
 	 * @return The {@code LineTracker} object, allowing this method to be chained onto the constructor.
 	 */
-	public LineTracker annotations(boolean annotations){
-		this.annotations = annotations;
+	public LineTracker rescanInterval(int frames){
+		if(frames < 1) throw new IllegalArgumentException("Rescan interval must be at least 1");
+		this.rescanInterval = frames;
 		return this;
 	}
 
+	/**
+	 * Sets the maximum number of lines this line tracker keeps from each frame. If more lines than this are detected,
+	 * the longest ones are kept. This value is 200 by default.
+	 * @param lines The maximum number of lines per frame
+	 * @return The {@code LineTracker} object, allowing this method to be chained onto the constructor.
+	 */
+	public LineTracker maxLines(int lines){
+		this.maxLines = lines;
+		return this;
+	}
+
+	/**
+	 * Subscribes the given consumer to the given debug channel. Each time {@link LineTracker#processNextFrame(Mat, long)} is
+	 * called, the debug image for that channel is produced and passed to the consumer, on the same thread. The image
+	 * is in the same coordinate space as the frame, and belongs to the consumer (it is not reused by the tracker).
+	 * @param channel The debug channel to subscribe to
+	 * @param consumer The consumer to pass the debug images to
+	 * @return The {@code LineTracker} object, allowing this method to be chained onto the constructor.
+	 */
+	public LineTracker subscribe(DebugChannel channel, Consumer<Mat> consumer){
+		debugSubscribers.computeIfAbsent(channel, c -> new ArrayList<>()).add(consumer);
+		return this;
+	}
+
+	/**
+	 * Unsubscribes the given consumer from the given debug channel. If it was the last subscriber, the debug images for
+	 * that channel will no longer be produced.
+	 * @param channel The debug channel to unsubscribe from
+	 * @param consumer The consumer to unsubscribe
+	 */
+	public void unsubscribe(DebugChannel channel, Consumer<Mat> consumer){
+		List<Consumer<Mat>> subscribers = debugSubscribers.get(channel);
+		if(subscribers != null && subscribers.remove(consumer) && subscribers.isEmpty()) debugSubscribers.remove(channel);
+	}
+
+	/** Returns true if anything is subscribed to the given debug channel. */
+	public boolean hasSubscribers(DebugChannel channel){
+		return debugSubscribers.containsKey(channel);
+	}
+
 	/**
 	 * Processes the given frame to extract lines, performs a fuzzy moving average with the previous n frames (where n
 	 * is the number specified on creation), discards the oldest frame and stores the new one.
-	 * @param frame The new frame to be processed (this frame will only be modified if annotations are enabled).
-	 * @return The set of lines resulting from the fuzzy average of the lines in the given frame and the previous frames.
+	 * @param frame The new frame to be processed (this frame will not be modified). This
+	 *              may be a colour or greyscale image, but greyscale is quicker since the edge detector doesn't
+	 *              have to look at each channel separately.
+	 * @param frameNumber The number of the frame in the video, as numbered by whatever is supplying the frames. This
+	 *                    is only used to label profiling events, so they match up with the rest of the pipeline.
+	 * @return The set of lines resulting from the fuzzy average of the lines in the given frame and the previous frames,
+	 * in priority order (see {@link LineTracker}).
 	 */
-	public List<Line> processNextFrame(Mat frame){
+	public List<Line> processNextFrame(Mat frame, long frameNumber){
+
+		LineTrackingEvent event = Profiling.ENABLED ? new LineTrackingEvent() : null;
+		if(event != null) event.begin();
+
+		// Only search the area around the previous lines, unless it's time for a full rescan
+		boolean fullScan = framesUntilRescan <= 0;
+		// If the interval has been reduced since the last rescan, don't wait any longer than the new interval
+		framesUntilRescan = fullScan ? rescanInterval - 1 : Math.min(framesUntilRescan, rescanInterval) - 1;
+		Rect roi = fullScan ? new Rect(0, 0, frame.width(), frame.height())
+				: regionOfInterest(lastAveragedLines, frame.size());
+
+		Mat source = new Mat(frame, roi); // Submatrix, so this doesn't copy anything
+		if(processingScale < 1) source = Utils.process(source, (s, d) -> Imgproc.resize(s, d, new Size(), processingScale, processingScale, Imgproc.INTER_AREA));
 
 		// Canny edge detector
-		Mat edges = Utils.process(frame, (s, d) -> Imgproc.Canny(s, d, 50, 200, 3, false));
+		Mat edges = Utils.process(source, (s, d) -> Imgproc.Canny(s, d, 50, 200, 3, false));
 
 		// Hough line transform
-		List<Line> lines = extractLines(edges, border);
+		List<Line> lines = extractLines(edges, roi, frame.size());
 
-		// Display
-		if(showEdges) frame = Utils.process(edges, (s, d) -> Imgproc.cvtColor(s, d, Imgproc.COLOR_GRAY2BGR));
-
-		if(annotations){
-			for(int i = 0; i < Math.min(lines.size()-1, MAX_DISPLAYED_LINES); i++){
-				Line line = lines.get(i);
-				Imgproc.line(frame, line.getStart(), line.getEnd(), Utils.GREEN, 2, Imgproc.LINE_AA, 0);
-			}
-		}
+		// Debug images (the checks are here so nothing gets created unless it's needed)
+		if(hasSubscribers(DebugChannel.EDGES)) publish(DebugChannel.EDGES, edgeImage(edges, roi, frame.size()));
+		if(hasSubscribers(DebugChannel.RAW_LINES)) publish(DebugChannel.RAW_LINES, linesImage(frame, lines, Utils.GREEN));
 
 		// TODO: Why is this here? It definitely needs to be, but there should be a comment explaining why!
 		lines.sort(Comparator.comparing(Line::angle));
@@ -143,22 +282,93 @@ public class LineTracker {
 		List<Line> allPrevLines = new ArrayList<>(Utils.flatten(prevLines));
 		Collections.reverse(allPrevLines); // Do the more recent lines first
 
-		return fuzzyAverageLines(allPrevLines, proximityThreshold, angleThreshold);
+		lastAveragedLines = fuzzyAverageLines(allPrevLines, proximityThreshold, angleThreshold);
+
+		if(hasSubscribers(DebugChannel.FUSED_LINES)){
+			publish(DebugChannel.FUSED_LINES, linesImage(frame, lastAveragedLines, Utils.BLUE));
+		}
+
+		if(event != null) event.record(frameNumber, fullScan, processingScale, lines.size(), lastAveragedLines.size());
+
+		return lastAveragedLines;
+
+	}
+
+	/** Passes the given debug image to everything subscribed to the given channel. */
+	private void publish(DebugChannel channel, Mat image){
+		List<Consumer<Mat>> subscribers = debugSubscribers.get(channel);
+		// Copy the list in case a subscriber unsubscribes itself
+		for(Consumer<Mat> subscriber : new ArrayList<>(subscribers)) subscriber.accept(image);
+	}
 
+	/** Returns a full-size image of the given edges, which were detected in the given region of interest. */
+	private static Mat edgeImage(Mat edges, Rect roi, Size frameSize){
+		Mat image = Mat.zeros(frameSize, CvType.CV_8UC1);
+		// The edges may have been detected at a lower scale, so scale them back up to fit the region
+		Imgproc.resize(edges, image.submat(roi), roi.size(), 0, 0, Imgproc.INTER_NEAREST);
+		return image;
+	}
+
+	/** Returns a colour copy of the given frame with the given lines drawn on it. */
+	private static Mat linesImage(Mat frame, List<Line> lines, Scalar colour){
+		Mat image = new Mat();
+		if(frame.channels() == 1) Imgproc.cvtColor(frame, image, Imgproc.COLOR_GRAY2BGR);
+		else frame.copyTo(image);
+		for(int i = 0; i < Math.min(lines.size(), MAX_DISPLAYED_LINES); i++){
+			Line line = lines.get(i);
+			Imgproc.line(image, line.getStart(), line.getEnd(), colour, 2, Imgproc.LINE_AA, 0);
+		}
+		return image;
+	}
+
+	/**
+	 * Returns the region of the frame to search for lines when not doing a full rescan. This is the bounding box of
+	 * the given lines plus a margin, or the whole frame if there are no lines.
+	 * @param lines The most recently detected lines
+	 * @param frameSize The size of the whole frame
+	 * @return The resulting region of interest, clipped to the frame
+	 */
+	private static Rect regionOfInterest(List<Line> lines, Size frameSize){
+
+		if(lines.isEmpty()) return new Rect(0, 0, (int)frameSize.width, (int)frameSize.height);
+
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+		for(Line line : lines){
+			for(Point p : line.toPoints()){
+				minX = Math.min(minX, p.x);
+				minY = Math.min(minY, p.y);
+				maxX = Math.max(maxX, p.x);
+				maxY = Math.max(maxY, p.y);
+			}
+		}
+
+		int x = (int)Math.max(0, minX - ROI_MARGIN);
+		int y = (int)Math.max(0, minY - ROI_MARGIN);
+		int width = (int)Math.min(frameSize.width, maxX + ROI_MARGIN) - x;
+		int height = (int)Math.min(frameSize.height, maxY + ROI_MARGIN) - y;
+
+		// Lines can lie outside the frame after averaging, in which case just search everything
+		if(width <= 0 || height <= 0) return new Rect(0, 0, (int)frameSize.width, (int)frameSize.height);
+
+		return new Rect(x, y, width, height);
 	}
 
 	/**
 	 * Performs a probabilistic Hough line transform on the given image source and converts the resulting matrix to a
-	 * list of {@link Line} objects.
+	 * list of {@link Line} objects in the coordinate space of the full frame.
 	 * @param source The image from which lines are to be extracted, usually the output of an edge detection filter
-	 * @param border Detected lines whose ends both lie within this distance of the edge of the image will be ignored
+	 * @param roi The region of the full frame the source image was taken from
+	 * @param frameSize The size of the full frame. Detected lines whose ends both lie within the border distance of
+	 *                  the edge of the full frame will be ignored.
 	 * @return The resulting list of {@code Line} objects (in the order returned by the Hough line transform)
 	 */
-	private static List<Line> extractLines(Mat source, double border){
+	private List<Line> extractLines(Mat source, Rect roi, Size frameSize){
 
 		// Probabilistic Hough Line Transform
 		Mat lineMatrix = new Mat(); // will hold the results of the detection
-		Imgproc.HoughLinesP(source, lineMatrix, 1, Math.PI / 180, 40, 20, 20); // runs the actual detection
+		Imgproc.HoughLinesP(source, lineMatrix, 1, Math.PI / 180, Math.max(1, (int)(houghThreshold * processingScale)),
+				minLineLength * processingScale, maxLineGap * processingScale); // runs the actual detection
 
 		List<Line> lines = new ArrayList<>();
 
@@ -166,15 +376,23 @@ public class LineTracker {
 		for(int i = 0; i < lineMatrix.rows(); i++){
 
 			double[] l = lineMatrix.get(i, 0);
+			// Convert back to full-frame coordinates
+			for(int j = 0; j < 4; j++) l[j] = l[j] / processingScale + (j % 2 == 0 ? roi.x : roi.y);
 			// Discard lines that are on the edge of the frame, we don't want to detect the edge
-			if(l[0] < border && l[2] < border || l[0] > source.width() - border && l[2] > source.width() - border
-			|| l[1] < border && l[3] < border || l[1] > source.height() - border && l[3] > source.height() - border)
+			if(l[0] < border && l[2] < border || l[0] > frameSize.width - border && l[2] > frameSize.width - border
+			|| l[1] < border && l[3] < border || l[1] > frameSize.height - border && l[3] > frameSize.height - border)
 				continue;
 			// Create the line, add to the list and draw it
 			Line line = new Line(l[0], l[1], l[2], l[3]);
 			lines.add(line);
 		}
 
+		// Keep the longest lines if there are too many, they're the most likely to be the edges of tubes
+		if(lines.size() > maxLines){
+			lines.sort(Comparator.comparingDouble(Line::length).reversed());
+			lines = new ArrayList<>(lines.subList(0, maxLines));
+		}
+
 		return lines;
 	}
 
@@ -186,11 +404,13 @@ public class LineTracker {
 	 *                      between two lines is taken as the smaller of the perpendicular distances from one line to
 	 *                      the midpoint of the other)
 	 * @param angleThreshold The maximum (acute) angle between two lines for them to be considered coincident
-	 * @return The resulting list of averaged lines
+	 * @return The resulting list of averaged lines, with the lines averaged from the most raw lines first, and longer
+	 * lines first where they were averaged from the same number of raw lines
 	 */
 	private static List<Line> fuzzyAverageLines(List<Line> lines, double distThreshold, double angleThreshold){
 
 		List<Line> averagedLines = new ArrayList<>();
+		List<Integer> support = new ArrayList<>(); // Number of raw lines that went into each averaged line
 		lines = new ArrayList<>(lines); // Make a copy so we don't modify the input list
 
 		while(!lines.isEmpty()){
@@ -231,10 +451,16 @@ public class LineTracker {
 			if(start != null && end != null){
 				averageLine = new Line(averageLine.nearestPointTo(start), averageLine.nearestPointTo(end));
 				averagedLines.add(averageLine);
+				support.add(coincident.size());
 			}
 		}
 
-		return averagedLines;
+		// Lines that were detected in more frames are more stable, so put them first
+		return IntStream.range(0, averagedLines.size()).boxed()
+				.sorted(Comparator.comparing(support::get, Comparator.reverseOrder())
+						.thenComparing(i -> averagedLines.get(i).length(), Comparator.reverseOrder()))
+				.map(averagedLines::get)
+				.collect(Collectors.toList());
 	}
 
 }
@@ -0,0 +1,41 @@
+package uob.flexiweld.profiling;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event covering a single camera calibration solve. Only use this class if {@link Profiling#ENABLED} is true.
+ * @author Finin Quincey
+ */
+@Name("uob.flexiweld.Calibration")
+@Label("Calibration Solve")
+@Category({"Flexiweld", "Calibration"})
+@Description("Solving for the camera calibration parameters from a set of checkerboard images")
+public class CalibrationEvent extends Event {
+
+	@Label("Images")
+	@Description("Number of images used in the solve")
+	int images;
+
+	@Label("Rejected Images")
+	int rejected;
+
+	@Label("RMS Error")
+	@Description("Root-mean-square reprojection error, in pixels")
+	double rmsError;
+
+	/**
+	 * Ends this event and commits it with the given values, if it is being recorded.
+	 * @param images The number of images used
+	 * @param rejected The number of images rejected as outliers
+	 * @param rmsError The reprojection error
+	 */
+	public void record(int images, int rejected, double rmsError){
+		end();
+		if(!shouldCommit()) return;
+		this.images = images;
+		this.rejected = rejected;
+		this.rmsError = rmsError;
+		commit();
+	}
+
+}
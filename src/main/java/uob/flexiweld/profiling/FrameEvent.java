@@ -0,0 +1,56 @@
+package uob.flexiweld.profiling;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event covering the processing of a single camera frame by the video feed, from picking up the frame to
+ * converting the output for display. Only use this class if {@link Profiling#ENABLED} is true.
+ * @author Finin Quincey
+ */
+@Name("uob.flexiweld.Frame")
+@Label("Frame")
+@Category({"Flexiweld", "Pipeline"})
+@Description("Processing of a single camera frame")
+@StackTrace(false) // Always comes from the same place, and stack traces are expensive
+public class FrameEvent extends Event {
+
+	@Label("Frame Number")
+	@Description("Sequence number of the frame, as used by the other pipeline events")
+	long frame;
+
+	@Label("Capture Mode")
+	String mode;
+
+	@Label("Quality Level")
+	String qualityLevel;
+
+	@Label("Processing Time")
+	@Description("Time taken by the capture mode to process the frame")
+	@Timespan(Timespan.NANOSECONDS)
+	long processingTime;
+
+	@Label("Display Time")
+	@Description("Time taken to scale and annotate the frame for display")
+	@Timespan(Timespan.NANOSECONDS)
+	long displayTime;
+
+	/**
+	 * Ends this event and commits it with the given values, if it is being recorded.
+	 * @param frame The frame number
+	 * @param mode The capture mode the frame was processed in
+	 * @param qualityLevel The quality level the frame was processed at
+	 * @param processingTime The time taken by the capture mode, in nanoseconds
+	 * @param displayTime The time taken to prepare the frame for display, in nanoseconds
+	 */
+	public void record(long frame, Object mode, Enum<?> qualityLevel, long processingTime, long displayTime){
+		end();
+		if(!shouldCommit()) return;
+		this.frame = frame;
+		this.mode = mode.getClass().getSimpleName();
+		this.qualityLevel = qualityLevel.name();
+		this.processingTime = processingTime;
+		this.displayTime = displayTime;
+		commit();
+	}
+
+}
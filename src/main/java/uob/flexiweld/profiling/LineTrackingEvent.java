@@ -0,0 +1,54 @@
+package uob.flexiweld.profiling;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event covering the detection and averaging of lines in a single frame by a line tracker. Only use this class
+ * if {@link Profiling#ENABLED} is true.
+ * @author Finin Quincey
+ */
+@Name("uob.flexiweld.LineTracking")
+@Label("Line Tracking")
+@Category({"Flexiweld", "Pipeline"})
+@Description("Detection and averaging of lines in a single frame")
+@StackTrace(false)
+public class LineTrackingEvent extends Event {
+
+	@Label("Frame Number")
+	@Description("The video feed's number for the frame, the same as the Frame event this is nested inside")
+	long frame;
+
+	@Label("Full Scan")
+	@Description("Whether the whole frame was searched, rather than just around the previous lines")
+	boolean fullScan;
+
+	@Label("Processing Scale")
+	double processingScale;
+
+	@Label("Raw Lines")
+	@Description("Number of lines found by the Hough transform")
+	int rawLines;
+
+	@Label("Averaged Lines")
+	int averagedLines;
+
+	/**
+	 * Ends this event and commits it with the given values, if it is being recorded.
+	 * @param frame The frame number
+	 * @param fullScan Whether the whole frame was searched
+	 * @param processingScale The scale the frame was processed at
+	 * @param rawLines The number of lines detected in this frame
+	 * @param averagedLines The number of lines after averaging
+	 */
+	public void record(long frame, boolean fullScan, double processingScale, int rawLines, int averagedLines){
+		end();
+		if(!shouldCommit()) return;
+		this.frame = frame;
+		this.fullScan = fullScan;
+		this.processingScale = processingScale;
+		this.rawLines = rawLines;
+		this.averagedLines = averagedLines;
+		commit();
+	}
+
+}
@@ -0,0 +1,92 @@
+package uob.flexiweld.profiling;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event covering the measurement of a single frame, with the time taken by each stage and the number of things
+ * found. Only use this class if {@link Profiling#ENABLED} is true.
+ * @author Finin Quincey
+ */
+@Name("uob.flexiweld.Measurement")
+@Label("Measurement")
+@Category({"Flexiweld", "Pipeline"})
+@Description("Measurement of segments and intersections in a single frame")
+@StackTrace(false)
+public class MeasurementEvent extends Event {
+
+	@Label("Frame Number")
+	long frame;
+
+	@Label("Lines")
+	@Description("Number of averaged lines from the line tracker")
+	int lines;
+
+	@Label("Centrelines")
+	int centrelines;
+
+	@Label("Segments")
+	int segments;
+
+	@Label("Intersections")
+	int intersections;
+
+	@Label("Partial")
+	@Description("Whether processing ran out of time before all the measurements were found")
+	boolean partial;
+
+	@Label("Undistort Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long undistortTime;
+
+	@Label("Line Tracking Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long lineTrackingTime;
+
+	@Label("Centrelines Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long centrelinesTime;
+
+	@Label("Intersections Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long intersectionsTime;
+
+	@Label("World Transform Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long worldTransformTime;
+
+	/**
+	 * Sets the time taken by each stage, from the {@link System#nanoTime()} at the start of processing and at the end
+	 * of each stage in turn.
+	 */
+	public void setStageTimes(long start, long undistorted, long tracked, long centrelined, long intersected,
+							  long transformed){
+		this.undistortTime = undistorted - start;
+		this.lineTrackingTime = tracked - undistorted;
+		this.centrelinesTime = centrelined - tracked;
+		this.intersectionsTime = intersected - centrelined;
+		this.worldTransformTime = transformed - intersected;
+	}
+
+	/**
+	 * Ends this event and commits it with the given values, if it is being recorded. The stage times should already
+	 * have been set with {@link MeasurementEvent#setStageTimes(long, long, long, long, long, long)}.
+	 * @param frame The video feed's frame number
+	 * @param lines The number of averaged lines
+	 * @param centrelines The number of centrelines
+	 * @param segments The number of segments measured
+	 * @param intersections The number of intersections measured
+	 * @param partial Whether processing was cut short
+	 */
+	public void record(long frame, int lines, int centrelines, int segments, int intersections, boolean partial){
+		end();
+		if(!shouldCommit()) return;
+		this.frame = frame;
+		this.lines = lines;
+		this.centrelines = centrelines;
+		this.segments = segments;
+		this.intersections = intersections;
+		this.partial = partial;
+		commit();
+	}
+
+}
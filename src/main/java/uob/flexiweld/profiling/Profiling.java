@@ -0,0 +1,43 @@
+package uob.flexiweld.profiling;
+
+/**
+ * Decides whether the Java Flight Recorder events in this package can be used. JFR is only included in some Java 8
+ * runtimes (OpenJDK 8u262 and later), and the event classes can't even be loaded without it, so every place that
+ * records an event checks {@link Profiling#ENABLED} first and never touches the event classes if it is false. For
+ * example:
+ * <pre>{@code
+ * FrameEvent event = Profiling.ENABLED ? new FrameEvent() : null;
+ * if(event != null) event.begin();
+ * ...
+ * if(event != null) event.record(...);
+ * }</pre>
+ * When JFR is available but not recording, the events cost next to nothing; {@code record} methods check
+ * {@code shouldCommit()} before filling in any of their fields. To capture a recording, start the app with e.g.
+ * {@code -XX:StartFlightRecording=duration=60s,filename=flexiweld.jfr} and open the file in JDK Mission Control, where
+ * the events appear under the Flexiweld category alongside the garbage collection and JIT compilation events.
+ * <p></p>
+ * JFR events can be turned off altogether with {@code -Dflexiweld.jfr=false}.
+ * <p></p>
+ * Note that the event classes ({@code *Event.java}) need the {@code jdk.jfr} module to <i>compile</i>, even though the
+ * compiled app runs on any Java 8 runtime. Build with OpenJDK 8u262 or later, or with JDK 11 or later using
+ * {@code -source 8 -target 8}. Older JDK 8 builds can't compile them, and neither can {@code --release 8}, since
+ * {@code jdk.jfr} isn't part of the Java 8 API.
+ * @author Finin Quincey
+ */
+public final class Profiling {
+
+	/** True if the JFR events can be used, false if JFR isn't available or events have been turned off. */
+	public static final boolean ENABLED = !"false".equals(System.getProperty("flexiweld.jfr")) && isJfrAvailable();
+
+	private Profiling(){} // No instances!
+
+	private static boolean isJfrAvailable(){
+		try{
+			Class.forName("jdk.jfr.Event", false, Profiling.class.getClassLoader());
+			return true;
+		}catch(ClassNotFoundException | LinkageError e){
+			return false;
+		}
+	}
+
+}
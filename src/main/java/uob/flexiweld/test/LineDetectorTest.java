@@ -13,6 +13,7 @@ import java.awt.*;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Main test class for the first stage of proof-of-concept development. This implements a linear calibration ->
@@ -96,6 +97,9 @@ public class LineDetectorTest {
 		boolean correction = true;
 
 		LineTracker tracker = new LineTracker(5);
+		long frameNumber = 0;
+		Mat[] edgeImage = new Mat[1];
+		Consumer<Mat> edgeListener = m -> edgeImage[0] = m;
 
 		// === Background line removal test code ===
 		// (This kind of works, but of course it sometimes excludes foreground lines that happen to coincide with one
@@ -147,9 +151,15 @@ public class LineDetectorTest {
 			//frame = Utils.process(frame, (s, d) -> Imgproc.resize(s, d, size)); // Resize to fit screen nicely
 			if(mirror) frame = Utils.process(frame, (s, d) -> Imgproc.remap(s, d, mapX, mapY, Imgproc.INTER_LINEAR));
 
-			tracker.edges(displayEdges);
+			// Only subscribe while the edges are displayed, so the edge image isn't produced otherwise
+			if(displayEdges != tracker.hasSubscribers(LineTracker.DebugChannel.EDGES)){
+				if(displayEdges) tracker.subscribe(LineTracker.DebugChannel.EDGES, edgeListener);
+				else tracker.unsubscribe(LineTracker.DebugChannel.EDGES, edgeListener);
+			}
+
+			List<Line> averagedLines = tracker.processNextFrame(frame, frameNumber++);
 
-			List<Line> averagedLines = tracker.processNextFrame(frame);
+			if(displayEdges) frame = Utils.process(edgeImage[0], (s, d) -> Imgproc.cvtColor(s, d, Imgproc.COLOR_GRAY2BGR));
 
 			// Remove background lines
 //			for(Line ref : backgroundLines){
@@ -0,0 +1,303 @@
+package uob.flexiweld.util;
+
+import com.sun.istack.internal.Nullable;
+import org.opencv.core.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A calibration profile holds everything needed to start measuring straight away: the {@link CalibrationSettings},
+ * the alignment matrix (if there is one), the camera resolution they were calculated for, and the undistortion maps
+ * for that resolution, which would otherwise take a noticeable amount of time to calculate on startup.
+ * {@code CalibrationProfile} objects are immutable.
+ * <p></p>
+ * Profiles are saved in a binary format with a fixed-size header followed by the data itself. The header contains a
+ * version number, so the format can be changed later without breaking existing files, and a checksum of the data, so
+ * a file that has been corrupted (e.g. by the power being cut while saving) is rejected rather than giving wrong
+ * measurements. The undistortion maps are stored little-endian (since version 2), which is the native byte order on
+ * both the Pi and PCs, so they are copied straight between their matrices and the file buffer (which is
+ * memory-mapped when reading) without going through a Java array. Calibration files saved in version 1 or in the
+ * original format can still be loaded.
+ * @author Finin Quincey
+ */
+public class CalibrationProfile {
+
+	/** Identifies a file as a calibration profile, and distinguishes it from the original headerless format. */
+	private static final int MAGIC = 0x464C5750; // "FLWP"
+	/** The current version of the file format. Version 1 stored the undistortion maps big-endian. */
+	private static final short VERSION = 2;
+	/** The size of the file header, in bytes. */
+	private static final int HEADER_SIZE = 36;
+
+	/** Header flag indicating that the file contains an alignment matrix. */
+	private static final short FLAG_ALIGNMENT = 1;
+	/** Header flag indicating that the file contains undistortion maps. */
+	private static final short FLAG_MAPS = 1 << 1;
+
+	/** The type of the first undistortion map. The second map is always {@link CvType#CV_16UC1}. */
+	private static final int MAP1_TYPE = CvType.CV_16SC2;
+
+	private final CalibrationSettings calibrationSettings;
+	@Nullable private final Mat alignmentMatrix;
+	private final Size resolution;
+
+	/**
+	 * Creates a new {@code CalibrationProfile} with the given parameters. The alignment matrix will be copied to ensure
+	 * it cannot change, and may therefore be safely modified afterwards.
+	 * @param calibrationSettings The calibration settings
+	 * @param alignmentMatrix The alignment matrix, or null if the camera has not been aligned
+	 * @param resolution The camera resolution the calibration settings were calculated for
+	 */
+	public CalibrationProfile(CalibrationSettings calibrationSettings, @Nullable Mat alignmentMatrix, Size resolution){
+		this.calibrationSettings = calibrationSettings;
+		this.alignmentMatrix = alignmentMatrix == null ? null : alignmentMatrix.clone();
+		this.resolution = resolution;
+	}
+
+	/** Returns the calibration settings for this profile. */
+	public CalibrationSettings getCalibrationSettings(){
+		return calibrationSettings;
+	}
+
+	/** Returns a copy of the alignment matrix for this profile, or null if it doesn't have one. */
+	@Nullable
+	public Mat getAlignmentMatrix(){
+		return alignmentMatrix == null ? null : alignmentMatrix.clone();
+	}
+
+	/** Returns the camera resolution this profile was calculated for. */
+	public Size getResolution(){
+		return resolution;
+	}
+
+	/**
+	 * Returns true if this profile was calculated for the given camera resolution. A profile must not be used at any
+	 * other resolution: the camera matrix and the alignment matrix are both in pixels, and they can't just be scaled,
+	 * since cameras often crop or bin the sensor differently in each mode.
+	 */
+	public boolean isForResolution(Size resolution){
+		return (int)this.resolution.width == (int)resolution.width && (int)this.resolution.height == (int)resolution.height;
+	}
+
+	/**
+	 * Attempts to save this calibration profile to the given file.
+	 * @param path The path of the file to save to
+	 * @return True if the file was saved successfully, false otherwise.
+	 */
+	public boolean save(String path){
+
+		try{
+
+			double[] cameraMatrix = new double[9];
+			Mat camera = new Mat();
+			calibrationSettings.getCameraMatrix().convertTo(camera, CvType.CV_64F); // Make sure it's doubles
+			camera.get(0, 0, cameraMatrix);
+
+			double[] distCoeffs = calibrationSettings.getDistCoeffs().toArray();
+
+			double[] alignment = null;
+			if(alignmentMatrix != null){
+				alignment = new double[9];
+				Mat m = new Mat();
+				alignmentMatrix.convertTo(m, CvType.CV_64F);
+				m.get(0, 0, alignment);
+			}
+
+			Mat[] maps = calibrationSettings.getUndistortionMaps(resolution);
+
+			int payloadSize = Double.BYTES * (cameraMatrix.length + distCoeffs.length + (alignment == null ? 0 : 9))
+					+ mapSize(maps[0]) + mapSize(maps[1]);
+
+			// Direct, so the maps can be copied into it without going through a Java array
+			ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + payloadSize);
+
+			// Payload first, so the checksum can be calculated before writing the header
+			buffer.position(HEADER_SIZE);
+			for(double d : cameraMatrix) buffer.putDouble(d);
+			for(double d : distCoeffs) buffer.putDouble(d);
+			if(alignment != null) for(double d : alignment) buffer.putDouble(d);
+			writeMap(buffer, maps[0]);
+			writeMap(buffer, maps[1]);
+
+			buffer.position(HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(buffer); // Moves the position to the end, but the header is written with absolute puts anyway
+
+			buffer.position(0);
+			buffer.putInt(MAGIC);
+			buffer.putShort(VERSION);
+			buffer.putShort((short)(FLAG_MAPS | (alignment == null ? 0 : FLAG_ALIGNMENT)));
+			buffer.putInt((int)resolution.width);
+			buffer.putInt((int)resolution.height);
+			buffer.putInt(distCoeffs.length);
+			buffer.putInt(MAP1_TYPE);
+			buffer.putInt(CvType.CV_16UC1);
+			buffer.putInt(payloadSize);
+			buffer.putInt((int)crc.getValue());
+
+			buffer.rewind();
+
+			// Try-with-resources block automatically closes the file when done or if an exception is thrown
+			try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+				while(buffer.hasRemaining()) channel.write(buffer);
+				channel.force(false); // Make sure it's actually on the disk, stations get switched off at the wall
+			}
+
+			return true;
+
+		}catch(CvException | IOException e){
+			System.err.println(String.format("Unable to save calibration file %s", path));
+		}
+
+		return false;
+	}
+
+	/**
+	 * Attempts to read a calibration profile from the given file. Files saved in the original format (which only
+	 * contain calibration settings) are also accepted, in which case the resulting profile has no alignment matrix.
+	 * The profile may be for a different resolution to the camera's current one, so callers should check it with
+	 * {@link CalibrationProfile#isForResolution(Size)} before using it.
+	 * @param path The path of the file to read
+	 * @param resolution The current camera resolution, used when the file doesn't specify one
+	 * @return The resulting {@code CalibrationProfile} object, or null if the file could not be read.
+	 */
+	public static CalibrationProfile load(String path, Size resolution){
+
+		// Try-with-resources block automatically closes the file when done or if an exception is thrown
+		try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+
+			if(channel.size() < HEADER_SIZE) return loadLegacy(path, resolution);
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if(buffer.getInt() != MAGIC) return loadLegacy(path, resolution);
+
+			short version = buffer.getShort();
+
+			if(version > VERSION){
+				System.err.println(String.format("Calibration file %s was saved by a newer version (%d)", path, version));
+				return null;
+			}
+
+			short flags = buffer.getShort();
+			Size size = new Size(buffer.getInt(), buffer.getInt());
+			int distCoeffCount = buffer.getInt();
+			int map1Type = buffer.getInt();
+			int map2Type = buffer.getInt();
+			int payloadSize = buffer.getInt();
+			int checksum = buffer.getInt();
+
+			if(HEADER_SIZE + (long)payloadSize != channel.size()){
+				System.err.println(String.format("Calibration file %s is truncated", path));
+				return null;
+			}
+
+			ByteBuffer payload = buffer.slice();
+			CRC32 crc = new CRC32();
+			crc.update(payload.duplicate()); // Duplicate so it doesn't move the position of the original
+			if((int)crc.getValue() != checksum){
+				System.err.println(String.format("Calibration file %s is corrupted (checksum mismatch)", path));
+				return null;
+			}
+
+			Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+			cameraMatrix.put(0, 0, readDoubles(payload, 9));
+
+			MatOfDouble distCoeffs = new MatOfDouble(readDoubles(payload, distCoeffCount));
+
+			Mat alignmentMatrix = null;
+			if((flags & FLAG_ALIGNMENT) != 0){
+				alignmentMatrix = new Mat(3, 3, CvType.CV_64F);
+				alignmentMatrix.put(0, 0, readDoubles(payload, 9));
+			}
+
+			CalibrationSettings settings;
+
+			if((flags & FLAG_MAPS) != 0 && map1Type == MAP1_TYPE && map2Type == CvType.CV_16UC1){
+				ByteOrder order = version < 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+				Mat map1 = readMap(payload, size, map1Type, order);
+				Mat map2 = readMap(payload, size, map2Type, order);
+				settings = new CalibrationSettings(cameraMatrix, distCoeffs, size, map1, map2);
+			}else{
+				settings = new CalibrationSettings(cameraMatrix, distCoeffs); // Maps will be calculated when needed
+			}
+
+			return new CalibrationProfile(settings, alignmentMatrix, size);
+
+		}catch(CvException | IOException | IllegalArgumentException e){
+			System.err.println(String.format("Unable to read calibration file %s", path));
+		}
+
+		return null;
+	}
+
+	/** Reads a calibration file in the original format and wraps the result in a profile with no alignment matrix. */
+	private static CalibrationProfile loadLegacy(String path, Size resolution){
+		CalibrationSettings settings = CalibrationSettings.load(path);
+		return settings == null ? null : new CalibrationProfile(settings, null, resolution);
+	}
+
+	private static double[] readDoubles(ByteBuffer buffer, int count){
+		double[] values = new double[count];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + count * Double.BYTES);
+		return values;
+	}
+
+	/** Returns the number of bytes taken up by the given map. */
+	private static int mapSize(Mat map){
+		return (int)(map.total() * map.elemSize());
+	}
+
+	/** Writes the given map to the given direct buffer, little-endian, and moves the buffer's position past it. */
+	private static void writeMap(ByteBuffer buffer, Mat map){
+
+		int size = mapSize(map);
+
+		if(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN){
+			// Wrap the buffer in a matrix of the same type, so copyTo writes the map straight into it
+			Mat target = new Mat(map.rows(), map.cols(), map.type(), buffer.slice());
+			map.copyTo(target);
+			target.release();
+		}else{
+			short[] values = new short[size / Short.BYTES];
+			map.get(0, 0, values);
+			buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(values);
+		}
+
+		buffer.position(buffer.position() + size);
+	}
+
+	/** Reads a map of the given size and type from the given buffer, and moves the buffer's position past it. */
+	private static Mat readMap(ByteBuffer buffer, Size size, int type, ByteOrder order){
+
+		Mat map = new Mat(size, type);
+		int bytes = mapSize(map);
+
+		if(buffer.remaining() < bytes) throw new IllegalArgumentException("Map extends past the end of the file");
+
+		if(order == ByteOrder.nativeOrder() && buffer.isDirect()){
+			// Wrap the file contents in a matrix and copy them in one go; the map mustn't refer to the file directly,
+			// since it can be overwritten while the map is still in use
+			Mat source = new Mat(map.rows(), map.cols(), type, buffer.slice());
+			source.copyTo(map);
+			source.release();
+		}else{
+			short[] values = new short[bytes / Short.BYTES];
+			buffer.slice().order(order).asShortBuffer().get(values);
+			map.put(0, 0, values);
+		}
+
+		buffer.position(buffer.position() + bytes);
+		return map;
+	}
+
+}
@@ -1,19 +1,24 @@
 package uob.flexiweld.util;
 
-import org.opencv.core.CvException;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfDouble;
+import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.utils.Converters;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Container object for a camera matrix and distortion coefficient matrix. Also handles file saving and loading.
+ * Container object for a camera matrix and distortion coefficient matrix. Also handles loading of calibration files
+ * in the original format (see {@link CalibrationProfile} for the current format).
  * {@code CalibrationSettings} objects are immutable.
+ * <p></p>
+ * Undistortion is done using a pair of lookup tables (see
+ * {@link Imgproc#initUndistortRectifyMap(Mat, Mat, Mat, Mat, Size, int, Mat, Mat)}), which are calculated the first time
+ * an image of a given size is undistorted and reused after that.
  * @author Finin Quincey
  */
 public class CalibrationSettings {
@@ -23,6 +28,13 @@ public class CalibrationSettings {
 	/** The single-column matrix of distortion coefficients representing the lens distortion. */
 	private final MatOfDouble distCoeffs;
 
+	/** The image size the undistortion maps were calculated for, or null if they haven't been calculated yet. */
+	private Size mapSize;
+	/** The first undistortion map (x and y coordinates, see {@link Imgproc#remap(Mat, Mat, Mat, Mat, int)}). */
+	private Mat map1;
+	/** The second undistortion map (interpolation coefficients, see {@link Imgproc#remap(Mat, Mat, Mat, Mat, int)}). */
+	private Mat map2;
+
 	/**
 	 * Creates a new {@code CalibrationSettings} object from the given calibration output matrices. The input matrices
 	 * will be copied to ensure they cannot change, and may therefore be safely modified afterwards.
@@ -33,51 +45,71 @@ public class CalibrationSettings {
 	}
 
 	/**
-	 * Undistorts the given image using this {@code CalibrationSettings} object's parameters and returns the result.
-	 * @param source The image to undistort
-	 * @return The resulting undistorted image.
+	 * Creates a new {@code CalibrationSettings} object from the given calibration output matrices, along with a pair
+	 * of undistortion maps that have already been calculated for the given image size. The maps are not copied, so they
+	 * must not be modified afterwards.
 	 */
-	// We don't really want to clone the matrices each frame just for the sake of immutability, but since we're only
-	// going to use them for undistortion we can instead keep it immutable by simply routing that through here
-	public Mat undistort(Mat source){
-		return Utils.process(source, (s, d) -> Imgproc.undistort(s, d, cameraMatrix, distCoeffs));
+	CalibrationSettings(Mat cameraMatrix, MatOfDouble distCoeffs, Size mapSize, Mat map1, Mat map2){
+		this(cameraMatrix, distCoeffs);
+		this.mapSize = mapSize;
+		this.map1 = map1;
+		this.map2 = map2;
 	}
 
-	/**
-	 * Attempts to save this calibration settings object to the given file.
-	 * @param path The path of the file to save to
-	 * @return True if the file was saved successfully, false otherwise.
-	 */
-	public boolean save(String path){
-		// Try-with-resources block automatically closes the file when done or if an exception is thrown
-		try(RandomAccessFile file = new RandomAccessFile(path, "rw")){
-
-			List<Double> doubles = new ArrayList<>();
-			Converters.Mat_to_vector_double(cameraMatrix.reshape(0, 9), doubles);
-			for(double d : doubles) file.writeDouble(d);
-
-			doubles.clear();
-			Converters.Mat_to_vector_double(distCoeffs.t(), doubles); // Transpose because Converters requires a column
-			file.writeInt(doubles.size()); // distCoeffs may be various lengths so we need to write the size first
-			for(double d : doubles) file.writeDouble(d);
+	/** Returns a copy of the camera matrix. */
+	public Mat getCameraMatrix(){
+		return cameraMatrix.clone();
+	}
 
-			return true;
+	/** Returns a copy of the distortion coefficients. */
+	public MatOfDouble getDistCoeffs(){
+		return new MatOfDouble(distCoeffs.clone());
+	}
 
-		}catch(CvException | IOException e){
-			System.err.println(String.format("Unable to save calibration file %s", path));
+	/**
+	 * Returns the two undistortion maps for images of the given size, calculating them first if necessary. The returned
+	 * matrices are shared and must not be modified.
+	 * @param size The size of the images to be undistorted
+	 * @return An array containing the two undistortion maps, in the order expected by
+	 * {@link Imgproc#remap(Mat, Mat, Mat, Mat, int)}
+	 */
+	// Synchronised because this may be called from the frame thread and while saving at the same time
+	synchronized Mat[] getUndistortionMaps(Size size){
+
+		if(!size.equals(mapSize)){
+			map1 = new Mat();
+			map2 = new Mat();
+			// Fixed-point maps are quicker to remap with than floating-point ones, and half the size to store
+			Imgproc.initUndistortRectifyMap(cameraMatrix, distCoeffs, new Mat(), cameraMatrix, size, CvType.CV_16SC2, map1, map2);
+			mapSize = size;
 		}
 
-		return false;
+		return new Mat[]{map1, map2};
+	}
+
+	/**
+	 * Undistorts the given image using this {@code CalibrationSettings} object's parameters and returns the result.
+	 * @param source The image to undistort
+	 * @return The resulting undistorted image.
+	 */
+	// We don't really want to clone the matrices each frame just for the sake of immutability, but since we're only
+	// going to use them for undistortion we can instead keep it immutable by simply routing that through here
+	public Mat undistort(Mat source){
+		// This is exactly what Imgproc.undistort does internally, except that recalculates the maps every time
+		Mat[] maps = getUndistortionMaps(source.size());
+		return Utils.process(source, (s, d) -> Imgproc.remap(s, d, maps[0], maps[1], Imgproc.INTER_LINEAR));
 	}
 
 	/**
-	 * Attempts to read a calibration settings object from the given file.
+	 * Attempts to read a calibration settings object from the given file, which must be in the original format
+	 * (which has no header and only contains the camera matrix and distortion coefficients). Files in the current
+	 * format should be read using {@link CalibrationProfile#load(String, Size)}, which also handles the original format.
 	 * @param path The path of the file to read
 	 * @return The resulting {@code CalibrationSettings} object, or null if the file could not be read.
 	 */
 	public static CalibrationSettings load(String path){
 		// Try-with-resources block automatically closes the file when done or if an exception is thrown
-		try(RandomAccessFile file = new RandomAccessFile(path, "rw")){
+		try(DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))){
 
 			List<Double> doubles = new ArrayList<>();
 			for(int i=0; i<9; i++) doubles.add(file.readDouble());
@@ -0,0 +1,52 @@
+package uob.flexiweld.util;
+
+/**
+ * Represents a point in time by which some processing should be finished. Long-running loops can check
+ * {@link Deadline#hasPassed()} each iteration and stop early, returning whatever results they have so far. Once a
+ * deadline has been found to have passed, {@link Deadline#wasMissed()} returns true, so callers can tell whether the
+ * results they got back are complete or not.
+ * <p></p>
+ * Deadlines use {@link System#nanoTime()}, so they are not affected by changes to the system clock.
+ * @author Finin Quincey
+ */
+public final class Deadline {
+
+	/** A deadline that never passes, for when processing should always run to completion. */
+	public static final Deadline NONE = new Deadline(0, false);
+
+	/** The value of {@link System#nanoTime()} at which this deadline passes. */
+	private final long time;
+	/** False for {@link Deadline#NONE}, true for all other deadlines. */
+	private final boolean limited;
+	/** Whether this deadline has been checked after it passed. */
+	private boolean missed;
+
+	private Deadline(long time, boolean limited){
+		this.time = time;
+		this.limited = limited;
+	}
+
+	/** Returns a new deadline that passes the given number of milliseconds from now. */
+	public static Deadline after(double milliseconds){
+		return new Deadline(System.nanoTime() + (long)(milliseconds * 1e6), true);
+	}
+
+	/** Returns true if this deadline has passed, false if not. */
+	public boolean hasPassed(){
+		// Compare the difference rather than the values themselves, in case nanoTime overflows
+		if(limited && System.nanoTime() - time > 0) missed = true;
+		return missed;
+	}
+
+	/** Returns true if this deadline was found to have passed by any call to {@link Deadline#hasPassed()}, i.e. if
+	 * any processing was cut short because of it. */
+	public boolean wasMissed(){
+		return missed;
+	}
+
+	/** Returns the time remaining until this deadline passes, in milliseconds (negative if it has already passed). */
+	public double remaining(){
+		return limited ? (time - System.nanoTime()) / 1e6 : Double.POSITIVE_INFINITY;
+	}
+
+}
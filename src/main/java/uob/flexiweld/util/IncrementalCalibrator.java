@@ -0,0 +1,247 @@
+package uob.flexiweld.util;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+import uob.flexiweld.profiling.CalibrationEvent;
+import uob.flexiweld.profiling.Profiling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Calculates calibration parameters from a growing set of calibration images, so that the calibration can be
+ * re-calculated each time an image is captured. Each solve reports the reprojection error for every image used, and
+ * images that don't fit with the rest (e.g. because the checkerboard was blurred or the corners were detected in the
+ * wrong order) are rejected.
+ * <p></p>
+ * To stop solves getting slower and slower as more images are captured, each solve only uses a limited number of
+ * images, chosen to cover as wide a range of checkerboard positions and orientations as possible.
+ * <p></p>
+ * {@code IncrementalCalibrator} objects are immutable, so {@link IncrementalCalibrator#solve(List)} may be called from
+ * any thread.
+ * @author Finin Quincey
+ */
+public class IncrementalCalibrator {
+
+	/** Images whose reprojection error is more than this many times the median error are rejected. */
+	private static final double OUTLIER_FACTOR = 3;
+	/** Images are never rejected if their reprojection error is below this value, in pixels. This stops good images
+	 * being rejected when all the errors are tiny. */
+	private static final double MIN_OUTLIER_ERROR = 0.5;
+
+	/** The number of internal corners in the checkerboard in each direction. */
+	private final Size checkerboardSize;
+	/** The positions of the checkerboard corners on the board itself, in millimetres. */
+	private final MatOfPoint3f objectPoints;
+	/** The resolution of the camera the images were captured with. */
+	private final Size resolution;
+	/** The maximum number of images to use for each solve. */
+	private final int maxViews;
+
+	/**
+	 * Creates a new {@code IncrementalCalibrator} with the given parameters.
+	 * @param checkerboardSize The number of internal corners in the checkerboard in each direction
+	 * @param squareSize The size of each square of the checkerboard, in millimetres
+	 * @param resolution The resolution of the camera the images were captured with
+	 * @param maxViews The maximum number of images to use for each solve
+	 */
+	public IncrementalCalibrator(Size checkerboardSize, double squareSize, Size resolution, int maxViews){
+		this.checkerboardSize = checkerboardSize;
+		this.objectPoints = Utils.generateCheckerboardPoints(checkerboardSize, squareSize);
+		this.resolution = resolution;
+		this.maxViews = maxViews;
+	}
+
+	/**
+	 * Calculates the calibration parameters from the given images. This may take a while, so it should not be called
+	 * from the EDT.
+	 * @param views The corner coordinates of the detected checkerboard in each image (will not be modified)
+	 * @return A {@link Result} containing the calibration settings and the reprojection errors
+	 */
+	public Result solve(List<Mat> views){
+
+		List<Mat> selected = selectViews(views);
+		Result result = solveWith(selected, Collections.emptyList());
+
+		// Throw out any images that don't agree with the rest and try again
+		List<Mat> rejected = new ArrayList<>();
+		double threshold = Math.max(MIN_OUTLIER_ERROR, median(result.errors) * OUTLIER_FACTOR);
+
+		for(int i = 0; i < selected.size(); i++){
+			if(result.errors[i] > threshold) rejected.add(selected.get(i));
+		}
+
+		// Need to keep enough images to actually do the calibration
+		if(!rejected.isEmpty() && selected.size() - rejected.size() >= 3){
+			selected.removeAll(rejected);
+			result = solveWith(selected, rejected);
+		}
+
+		return result;
+	}
+
+	/** Runs the calibration using the given images and returns the result. */
+	private Result solveWith(List<Mat> views, List<Mat> rejected){
+
+		CalibrationEvent event = Profiling.ENABLED ? new CalibrationEvent() : null;
+		if(event != null) event.begin();
+
+		// Output matrices
+		Mat cameraMatrix = new Mat(3, 3, CvType.CV_32F);
+		MatOfDouble distCoeffs = new MatOfDouble(new Mat(1, 4, CvType.CV_64F));
+		List<Mat> rvecs = new ArrayList<>(); // Not using these four for anything
+		List<Mat> tvecs = new ArrayList<>();
+		Mat stdDevIntrinsics = new Mat();
+		Mat stdDevExtrinsics = new Mat();
+		Mat perViewErrors = new Mat();
+
+		double rms = Calib3d.calibrateCameraExtended(Collections.nCopies(views.size(), objectPoints), views, resolution,
+				cameraMatrix, distCoeffs, rvecs, tvecs, stdDevIntrinsics, stdDevExtrinsics, perViewErrors);
+
+		if(event != null) event.record(views.size(), rejected.size(), rms);
+
+		double[] errors = new double[views.size()];
+		for(int i = 0; i < errors.length; i++) errors[i] = perViewErrors.get(i, 0)[0];
+
+		return new Result(new CalibrationSettings(cameraMatrix, distCoeffs), rms, views, errors, rejected);
+	}
+
+	/**
+	 * Selects up to {@link IncrementalCalibrator#maxViews} images from the given list, picking images that are as
+	 * different from each other as possible. Each image is described by where the checkerboard is, how big it is and
+	 * how much it is tilted, and each image picked is the one furthest from all the images picked so far.
+	 * @param views The images to choose from
+	 * @return A new list containing the chosen images, in their original order
+	 */
+	private List<Mat> selectViews(List<Mat> views){
+
+		if(views.size() <= maxViews) return new ArrayList<>(views);
+
+		double[][] poses = views.stream().map(this::describePose).toArray(double[][]::new);
+
+		// Distance from each image to the nearest image picked so far
+		double[] distances = new double[views.size()];
+		Arrays.fill(distances, Double.MAX_VALUE);
+		boolean[] picked = new boolean[views.size()];
+
+		// Always keep the most recent image, since it's the one that's just been captured
+		int next = views.size() - 1;
+
+		for(int n = 0; n < maxViews; n++){
+
+			picked[next] = true;
+
+			int furthest = -1;
+
+			for(int i = 0; i < views.size(); i++){
+				if(picked[i]) continue;
+				distances[i] = Math.min(distances[i], distance(poses[i], poses[next]));
+				if(furthest < 0 || distances[i] > distances[furthest]) furthest = i;
+			}
+
+			next = furthest;
+		}
+
+		List<Mat> selected = new ArrayList<>();
+		for(int i = 0; i < views.size(); i++){
+			if(picked[i]) selected.add(views.get(i));
+		}
+		return selected;
+	}
+
+	/**
+	 * Returns a set of numbers roughly describing the position and orientation of the checkerboard in the given image:
+	 * the position of its centre, its size, and how much longer each edge is than the opposite edge (which indicates
+	 * how much it is tilted). Each number is scaled to roughly the same range so they can be compared directly.
+	 */
+	private double[] describePose(Mat view){
+
+		Point[] corners = new MatOfPoint2f(view).toArray();
+
+		// The four outer corners of the checkerboard
+		Point topLeft = corners[0];
+		Point topRight = corners[(int)checkerboardSize.width - 1];
+		Point bottomLeft = corners[corners.length - (int)checkerboardSize.width];
+		Point bottomRight = corners[corners.length - 1];
+
+		double top = distance(topLeft, topRight);
+		double bottom = distance(bottomLeft, bottomRight);
+		double left = distance(topLeft, bottomLeft);
+		double right = distance(topRight, bottomRight);
+
+		double diagonal = Math.hypot(resolution.width, resolution.height);
+
+		return new double[]{
+				(topLeft.x + topRight.x + bottomLeft.x + bottomRight.x) / 4 / resolution.width,
+				(topLeft.y + topRight.y + bottomLeft.y + bottomRight.y) / 4 / resolution.height,
+				(top + bottom + left + right) / 4 / diagonal,
+				Math.log(top / bottom),
+				Math.log(left / right)
+		};
+	}
+
+	private static double distance(Point p, Point q){
+		return Math.hypot(p.x - q.x, p.y - q.y);
+	}
+
+	private static double distance(double[] a, double[] b){
+		double sum = 0;
+		for(int i = 0; i < a.length; i++) sum += (a[i] - b[i]) * (a[i] - b[i]);
+		return Math.sqrt(sum);
+	}
+
+	private static double median(double[] values){
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted.length % 2 == 1 ? sorted[sorted.length / 2] : (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+	}
+
+	/**
+	 * The result of a calibration solve. This holds the resulting {@link CalibrationSettings}, along with the overall
+	 * and per-image reprojection errors and which images were used or rejected. {@code Result} objects are immutable.
+	 */
+	public static class Result {
+
+		private final CalibrationSettings settings;
+		private final double rms;
+		private final List<Mat> views;
+		private final double[] errors;
+		private final List<Mat> rejected;
+
+		private Result(CalibrationSettings settings, double rms, List<Mat> views, double[] errors, List<Mat> rejected){
+			this.settings = settings;
+			this.rms = rms;
+			this.views = Collections.unmodifiableList(new ArrayList<>(views));
+			this.errors = errors;
+			this.rejected = Collections.unmodifiableList(new ArrayList<>(rejected));
+		}
+
+		/** Returns the resulting calibration settings. */
+		public CalibrationSettings getSettings(){
+			return settings;
+		}
+
+		/** Returns the overall RMS reprojection error, in pixels. */
+		public double getError(){
+			return rms;
+		}
+
+		/** Returns an unmodifiable list of the images that were used for the calibration. */
+		public List<Mat> getViews(){
+			return views;
+		}
+
+		/** Returns the RMS reprojection error for the image at the given index in {@link Result#getViews()}. */
+		public double getError(int view){
+			return errors[view];
+		}
+
+		/** Returns an unmodifiable list of the images that were rejected because they didn't fit with the rest. */
+		public List<Mat> getRejectedViews(){
+			return rejected;
+		}
+	}
+
+}
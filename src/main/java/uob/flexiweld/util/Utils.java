@@ -167,12 +167,27 @@ public final class Utils {
 	 * @return The resulting list of centrelines
 	 */
 	public static List<Line> findCentrelines(List<Line> lines, double widthThreshold, double angleThreshold){
+		return findCentrelines(lines, widthThreshold, angleThreshold, Deadline.NONE);
+	}
+
+	/**
+	 * Detects pairs of (approximately) parallel lines that are less than the specified width apart and returns a list
+	 * of lines equidistant from both lines of each pair. Lines are paired in the order given, and pairing stops early
+	 * if the given deadline passes.
+	 * @param lines A list of {@link Line} objects to find centrelines for, in priority order (will not be modified by
+	 *              this method)
+	 * @param widthThreshold The maximum distance between pairs of lines for a centreline to be detected
+	 * @param angleThreshold The maximum angle between pairs of lines for a centreline to be detected
+	 * @param deadline The {@link Deadline} by which pairing should stop
+	 * @return The resulting list of centrelines, in the order the pairs were found
+	 */
+	public static List<Line> findCentrelines(List<Line> lines, double widthThreshold, double angleThreshold, Deadline deadline){
 
 		List<Line> centrelines = new ArrayList<>();
 
 		List<Line> linesModifiable = new ArrayList<>(lines);
 
-		while(!linesModifiable.isEmpty()){
+		while(!linesModifiable.isEmpty() && !deadline.hasPassed()){
 
 			Line ref = linesModifiable.get(0);
 